@@ -0,0 +1,80 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.benchmarks;
+
+import org.dcom.resultservice.AuthorisationCache;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Resolves access levels through AuthorisationCache with a validator that answers at once, so only the cost of the service's own authorisation path is measured. A user with a lower level costs more validator calls on a miss.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+@Threads(4)
+public class AuthorisationBenchmark {
+
+	private static final int TOKENS=100000;
+
+	@Param({"level1","level4"})
+	public String granted;
+
+	private AuthorisationCache cache;
+	private AuthorisationCache uncached;
+	private String[] tokens;
+
+	@Setup
+	public void setup() {
+		cache=new AuthorisationCache(BenchmarkData.validator(granted),TOKENS,3600000);
+		//a cache of one entry misses on every new token
+		uncached=new AuthorisationCache(BenchmarkData.validator(granted),1,3600000);
+		tokens=new String[TOKENS];
+		for (int i=0;i<TOKENS;i++) tokens[i]=BenchmarkData.token(i);
+	}
+
+	@Benchmark
+	public int cachedToken() {
+		return cache.getLevel(tokens[(int)(Thread.currentThread().getId()%TOKENS)]);
+	}
+
+	@Benchmark
+	public int manyTokens() {
+		return cache.getLevel(tokens[ThreadLocalRandom.current().nextInt(TOKENS)]);
+	}
+
+	@Benchmark
+	public int uncachedToken() {
+		return uncached.getLevel(tokens[ThreadLocalRandom.current().nextInt(TOKENS)]);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.benchmarks;
+
+import org.dcom.core.servicehelper.UserAuthorisationValidator;
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.AuthorisationCache;
+import org.dcom.resultservice.ResultServiceAPI;
+import org.dcom.resultservice.ResultServiceDatabase;
+import org.dcom.resultservice.RuleEngineAuthoriser;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.UriInfo;
+
+/**
+* Builds the results, tokens and service objects the benchmarks run against. Histories mix short pass and fail results with the occasional result carrying a supporting file, as rule engines upload them.
+*/
+public class BenchmarkData {
+
+	private static final LocalDateTime BASE=LocalDateTime.of(2022,1,1,0,0);
+	private static final String FILE=String.join("",Collections.nCopies(64,"Supporting evidence for the compliance result. "));
+
+	public static List<ComplianceCheckResultItem> history(int size) {
+		List<ComplianceCheckResultItem> items=new ArrayList<ComplianceCheckResultItem>(size);
+		for (int i=0;i<size;i++) {
+			List<String> data=new ArrayList<String>();
+			List<String> contentType=new ArrayList<String>();
+			if (i%10==0) {
+				data.add(FILE);
+				contentType.add("text/plain");
+			}
+			items.add(new ComplianceCheckResultItem("document-"+(i%20),BASE.minusMinutes(i),Arrays.asList("clause "+(i%7)+" satisfied","measured value "+i,"within tolerance"),"rule-engine-"+(i%3),i%4==0 ? "fail" : "pass",data,contentType));
+		}
+		return items;
+	}
+
+	public static List<ComplianceCheckResultIndexItem> checks(int size) {
+		List<ComplianceCheckResultIndexItem> items=new ArrayList<ComplianceCheckResultIndexItem>(size);
+		for (int i=0;i<size;i++) items.add(new ComplianceCheckResultIndexItem("document-"+(i%20),"check-"+i,i%4==0 ? "fail" : "pass",BASE.minusHours(i)));
+		return items;
+	}
+
+	//an unsigned token carrying only an expiry, which is all the caches read from it
+	public static String token(int i) {
+		Base64.Encoder encoder=Base64.getUrlEncoder().withoutPadding();
+		String header=encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8));
+		String payload=encoder.encodeToString(("{\"sub\":\"user-"+i+"\",\"exp\":"+(System.currentTimeMillis()/1000+86400)+"}").getBytes(StandardCharsets.UTF_8));
+		return "Bearer "+header+"."+payload+".";
+	}
+
+	//a validator granting the given permission and refusing the others
+	public static UserAuthorisationValidator validator(String granted) {
+		return (UserAuthorisationValidator)Proxy.newProxyInstance(BenchmarkData.class.getClassLoader(),new Class<?>[]{UserAuthorisationValidator.class},(proxy,method,args) -> {
+			if (method.getReturnType()==boolean.class) return args!=null && args.length>1 && granted.equals(args[1]);
+			return null;
+		});
+	}
+
+	public static UriInfo uriInfo(Map<String,String> query) {
+		MultivaluedHashMap<String,String> parameters=new MultivaluedHashMap<String,String>();
+		for (Map.Entry<String,String> e: query.entrySet()) parameters.putSingle(e.getKey(),e.getValue());
+		return (UriInfo)Proxy.newProxyInstance(BenchmarkData.class.getClassLoader(),new Class<?>[]{UriInfo.class},(proxy,method,args) -> {
+			if (method.getName().equals("getQueryParameters")) return parameters;
+			throw new UnsupportedOperationException(method.getName());
+		});
+	}
+
+	//the API as Jersey would inject it, with user tokens granted level 1 and every rule engine token accepted
+	public static ResultServiceAPI api(ResultServiceDatabase database) {
+		ResultServiceAPI api=new ResultServiceAPI();
+		api.database=database;
+		api.authenticator=validator("level1");
+		api.authorisationCache=new AuthorisationCache(api.authenticator,10000,60000);
+		api.ruleEngineAuthoriser=new RuleEngineAuthoriser(10000,60000,60000) {
+			public boolean authorize(String token) {
+				return true;
+			}
+		};
+		return api;
+	}
+
+	//the upload body read by JSONResultUpload, with the conditions of the upload alongside the results
+	public static String jsonUpload(List<ComplianceCheckResultItem> results,List<String> conditions) {
+		StringBuilder body=new StringBuilder("{\"conditions\":[");
+		for (int i=0;i<conditions.size();i++) {
+			if (i>0) body.append(",");
+			body.append("\"").append(conditions.get(i)).append("\"");
+		}
+		body.append("],\"results\":[");
+		for (int i=0;i<results.size();i++) {
+			if (i>0) body.append(",");
+			body.append(results.get(i).toJSON());
+		}
+		return body.append("]}").toString();
+	}
+
+	//the upload read by BulkResultUpload, the same results for check-0 of each building
+	public static String bulkUpload(int buildings,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		StringBuilder body=new StringBuilder("{\"uploads\":[");
+		for (int b=0;b<buildings;b++) {
+			if (b>0) body.append(",");
+			String upload=jsonUpload(results,conditions);
+			body.append("{\"building\":\"").append(100000000001L+b).append("\",\"complianceCheckUID\":\"check-0\",").append(upload.substring(1));
+		}
+		return body.append("]}").toString();
+	}
+
+	//the upload read by XMLResultUpload
+	public static String xmlUpload(List<ComplianceCheckResultItem> results,List<String> conditions) {
+		StringBuilder body=new StringBuilder("<ComplianceCheckResults>");
+		for (String condition: conditions) body.append("<conditions>").append(condition).append("</conditions>");
+		for (ComplianceCheckResultItem item: results) {
+			body.append("<ComplianceCheckResultItem>");
+			element(body,"reference",item.getReference());
+			element(body,"time",item.getTime().toString());
+			element(body,"result",item.getResult());
+			element(body,"attributation",item.getAttributation());
+			for (String reason: item.getReasons()) element(body,"reasons",reason);
+			for (String data: item.getSupportingFileData()) element(body,"supportingFileData",data);
+			for (String type: item.getSupportingFileContentType()) element(body,"supportingFileContentType",type);
+			body.append("</ComplianceCheckResultItem>");
+		}
+		return body.append("</ComplianceCheckResults>").toString();
+	}
+
+	private static void element(StringBuilder body,String name,String text) {
+		body.append("<").append(name).append(">").append(text.replace("&","&amp;").replace("<","&lt;")).append("</").append(name).append(">");
+	}
+}
@@ -0,0 +1,89 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.benchmarks;
+
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.ResultCursor;
+import org.dcom.resultservice.ResultServiceDatabase;
+import org.dcom.resultservice.ResultWindow;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+* A ResultServiceDatabase answering every building and check with the same prepared results, so that a benchmark measures the service code around the database rather than the database.
+*/
+public class FixedResultServiceDatabase implements ResultServiceDatabase {
+
+	private List<ComplianceCheckResultIndexItem> checks;
+	private List<ComplianceCheckResultItem> history;
+	private LongAdder added=new LongAdder();
+
+	public FixedResultServiceDatabase(List<ComplianceCheckResultIndexItem> checks,List<ComplianceCheckResultItem> history) {
+		this.checks=checks;
+		this.history=history;
+	}
+
+	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn) {
+		return checks;
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+	}
+
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit) {
+		List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,results::add);
+		return results;
+	}
+
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+		int count=0;
+		for (ComplianceCheckResultItem item: history) {
+			consumer.accept(item);
+			if (limit>0 && ++count>=limit) return;
+		}
+	}
+
+	//uploads are counted and dropped
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window) {
+		ResultWindow.Collector windows=new ResultWindow.Collector(window);
+		for (ComplianceCheckResultItem item: history) windows.add(item.getTime(),item.getReference(),item.getResult(),1);
+		return windows.get();
+	}
+
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		added.add(results.size());
+		return null;
+	}
+
+	public LocalDateTime storedTime(LocalDateTime time) {
+		return time;
+	}
+
+	public long getAdded() {
+		return added.sum();
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,87 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.benchmarks;
+
+import org.dcom.resultservice.ResultServiceAPI;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Parses uploads through the PUT methods of the API into a database that drops them, measuring the cost of reading an upload body.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class IngestBenchmark {
+
+	@Param({"10","100","1000"})
+	public int uploadSize;
+
+	private ResultServiceAPI api;
+	private byte[] json;
+	private byte[] xml;
+	private byte[] bulk;
+	private String token;
+
+	@Setup
+	public void setup() {
+		api=BenchmarkData.api(new FixedResultServiceDatabase(BenchmarkData.checks(0),BenchmarkData.history(0)));
+		List<String> conditions=Arrays.asList("storeys <= 4","building use: residential");
+		json=BenchmarkData.jsonUpload(BenchmarkData.history(uploadSize),conditions).getBytes(StandardCharsets.UTF_8);
+		xml=BenchmarkData.xmlUpload(BenchmarkData.history(uploadSize),conditions).getBytes(StandardCharsets.UTF_8);
+		//the same number of results spread over ten buildings
+		bulk=BenchmarkData.bulkUpload(10,BenchmarkData.history(Math.max(1,uploadSize/10)),conditions).getBytes(StandardCharsets.UTF_8);
+		token=BenchmarkData.token(0);
+	}
+
+	@Benchmark
+	public int json() {
+		Response response=api.updateJSON(token,"100000000001","check-0",new ByteArrayInputStream(json));
+		return response.getStatus();
+	}
+
+	@Benchmark
+	public int xml() {
+		Response response=api.updateXML(token,"100000000001","check-0",new ByteArrayInputStream(xml));
+		return response.getStatus();
+	}
+
+	@Benchmark
+	public int bulk() {
+		Response response=api.bulkJSON(token,new ByteArrayInputStream(bulk));
+		return response.getStatus();
+	}
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.benchmarks;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.influxdb.InfluxDBBlobStore;
+import org.dcom.resultservice.influxdb.InfluxDBResultMapper;
+import com.influxdb.query.FluxRecord;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+* Maps a history of pivoted FluxRecords to results as InfluxDBResultServiceDatabase does while streaming a query, and builds the points of an upload. Supporting files are looked up in memory in place of the blob store.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class RecordMappingBenchmark {
+
+	@Param({"100","10000"})
+	public int historySize;
+
+	@Param({"1","3"})
+	public int level;
+
+	private List<ComplianceCheckResultItem> history;
+	private List<FluxRecord> records;
+	private InfluxDBResultMapper mapper;
+
+	@Setup
+	public void setup() {
+		history=BenchmarkData.history(historySize);
+		Map<String,String> blobs=new HashMap<String,String>();
+		records=new ArrayList<FluxRecord>(historySize);
+		for (int i=0;i<history.size();i++) {
+			ComplianceCheckResultItem item=history.get(i);
+			FluxRecord record=new FluxRecord(0);
+			record.getValues().put("_measurement",item.getReference());
+			record.getValues().put("_time",item.getTime().toInstant(ZoneOffset.UTC));
+			record.getValues().put("result",item.getResult());
+			record.getValues().put("reasons",String.join(",",item.getReasons()));
+			record.getValues().put("attributation",item.getAttributation());
+			if (!item.getSupportingFileData().isEmpty()) {
+				List<String> hashes=new ArrayList<String>();
+				for (String data: item.getSupportingFileData()) {
+					String hash=InfluxDBBlobStore.hash(data);
+					blobs.put(hash,data);
+					hashes.add(hash);
+				}
+				record.getValues().put("supportingFileHashes",String.join(",",hashes));
+				record.getValues().put("supportingFileContentType",String.join(",",item.getSupportingFileContentType()));
+			}
+			records.add(record);
+		}
+		mapper=new InfluxDBResultMapper(blobs::get);
+	}
+
+	@Benchmark
+	public void toResultItem(Blackhole blackhole) {
+		for (FluxRecord record: records) blackhole.consume(mapper.toResultItem(record,level));
+	}
+
+	@Benchmark
+	public void toLineProtocol(Blackhole blackhole) {
+		for (ComplianceCheckResultItem item: history) {
+			List<String> hashes=new ArrayList<String>();
+			for (String data: item.getSupportingFileData()) hashes.add(InfluxDBBlobStore.hash(data));
+			blackhole.consume(InfluxDBResultMapper.resultPoint(item.getReference(),item.getTime().toInstant(ZoneOffset.UTC),item.getResult(),item.getReasons(),item.getAttributation(),hashes,item.getSupportingFileContentType()).toLineProtocol());
+		}
+	}
+}
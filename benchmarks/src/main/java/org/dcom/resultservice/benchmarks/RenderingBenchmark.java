@@ -0,0 +1,109 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.benchmarks;
+
+import org.dcom.resultservice.ResultServiceAPI;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+* Renders building overviews and result histories through the API methods themselves, so any change to how responses are built shows up here. Histories are written to a stream that discards them.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3,time=2)
+@Measurement(iterations=5,time=2)
+@Fork(1)
+public class RenderingBenchmark {
+
+	@Param({"10","1000","10000"})
+	public int historySize;
+
+	@Param({"application/json","application/xml","application/x-ndjson"})
+	public String format;
+
+	private ResultServiceAPI api;
+	private UriInfo all;
+	private UriInfo page;
+	private String token;
+
+	@Setup
+	public void setup() {
+		api=BenchmarkData.api(new FixedResultServiceDatabase(BenchmarkData.checks(Math.min(historySize,200)),BenchmarkData.history(historySize)));
+		all=BenchmarkData.uriInfo(new HashMap<String,String>());
+		Map<String,String> limit=new HashMap<String,String>();
+		limit.put("limit","100");
+		page=BenchmarkData.uriInfo(limit);
+		token=BenchmarkData.token(0);
+	}
+
+	@Benchmark
+	public Object building() {
+		if (format.equals(MediaType.APPLICATION_XML)) return api.buildingXML("100000000001",token).getEntity();
+		return api.buildingJSON("100000000001",token).getEntity();
+	}
+
+	@Benchmark
+	public void history(Blackhole blackhole) throws IOException {
+		render(history(all),blackhole);
+	}
+
+	@Benchmark
+	public void historyPage(Blackhole blackhole) throws IOException {
+		render(history(page),blackhole);
+	}
+
+	private Response history(UriInfo info) {
+		if (format.equals(MediaType.APPLICATION_XML)) return api.buildingXML("100000000001","check-0",token,info);
+		if (format.equals(MediaType.APPLICATION_JSON)) return api.buildingJSON("100000000001","check-0",token,info);
+		return api.buildingNDJSON("100000000001","check-0",token,info);
+	}
+
+	private static void render(Response response,Blackhole blackhole) throws IOException {
+		((StreamingOutput)response.getEntity()).write(new OutputStream() {
+			public void write(int b) {
+				blackhole.consume(b);
+			}
+
+			public void write(byte[] b,int off,int len) {
+				blackhole.consume(b);
+				blackhole.consume(len);
+			}
+		});
+	}
+}
@@ -0,0 +1,280 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.loadtest;
+
+import com.owlike.genson.Genson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+* An in process stand in for the parts of the InfluxDB 2 HTTP API the service uses: organisations, buckets, line protocol writes, deletes, health and the Flux queries the service sends, see StandInQuery.
+* Points are held in memory per bucket. It answers with realistic response shapes and sizes so that the service's own costs can be measured, it does not aim to be a database.
+*/
+public class InfluxDBStandIn {
+
+	/**
+	* One point as written in line protocol.
+	*/
+	public static class Row {
+		String measurement;
+		Map<String,String> tags;
+		Map<String,String> fields;
+		long time;
+
+		Row(String measurement,Map<String,String> tags,Map<String,String> fields,long time) {
+			this.measurement=measurement;
+			this.tags=tags;
+			this.fields=fields;
+			this.time=time;
+		}
+	}
+
+	private HttpServer server;
+	private Genson genson=new Genson();
+	private AtomicLong ids=new AtomicLong(1);
+	private ConcurrentHashMap<String,Map<String,String>> buckets=new ConcurrentHashMap<String,Map<String,String>>();
+	//points of each bucket by uprn tag, so a query of the single bucket layout only scans the building asked for
+	private ConcurrentHashMap<String,ConcurrentHashMap<String,List<Row>>> points=new ConcurrentHashMap<String,ConcurrentHashMap<String,List<Row>>>();
+	private Map<String,String> org=new HashMap<String,String>();
+
+	public InfluxDBStandIn(int port,int threads) throws IOException {
+		org.put("id",nextId());
+		org.put("name","DCOM");
+		server=HttpServer.create(new InetSocketAddress("127.0.0.1",port),1024);
+		server.setExecutor(Executors.newFixedThreadPool(threads));
+		server.createContext("/health",exchange -> respond(exchange,200,"application/json","{\"name\":\"influxdb\",\"status\":\"pass\"}"));
+		server.createContext("/ping",exchange -> respond(exchange,204,null,null));
+		server.createContext("/api/v2/orgs",this::orgs);
+		server.createContext("/api/v2/buckets",this::buckets);
+		server.createContext("/api/v2/write",this::write);
+		server.createContext("/api/v2/query",this::query);
+		server.createContext("/api/v2/delete",exchange -> respond(exchange,204,null,null));
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		((ExecutorService)server.getExecutor()).shutdownNow();
+	}
+
+	public String getURL() {
+		return "http://127.0.0.1:"+server.getAddress().getPort();
+	}
+
+	public long getPointCount() {
+		long count=0;
+		for (Map<String,List<Row>> bucket: points.values()) {
+			for (List<Row> rows: bucket.values()) count+=rows.size();
+		}
+		return count;
+	}
+
+	//a snapshot of the points of a bucket, only those of one uprn tag unless it is null
+	List<Row> getRows(String bucket,String uprn) {
+		List<Row> result=new ArrayList<Row>();
+		Map<String,List<Row>> series=points.get(bucket);
+		if (series==null) return result;
+		for (Map.Entry<String,List<Row>> entry: series.entrySet()) {
+			if (uprn!=null && !uprn.equals(entry.getKey())) continue;
+			synchronized (entry.getValue()) {
+				result.addAll(entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	private String nextId() {
+		return String.format("%016x",ids.getAndIncrement());
+	}
+
+	private void orgs(HttpExchange exchange) throws IOException {
+		if (exchange.getRequestMethod().equals("POST")) {
+			respond(exchange,201,"application/json",genson.serialize(org));
+		} else {
+			respond(exchange,200,"application/json","{\"orgs\":["+genson.serialize(org)+"]}");
+		}
+	}
+
+	private void buckets(HttpExchange exchange) throws IOException {
+		String method=exchange.getRequestMethod();
+		String path=exchange.getRequestURI().getPath();
+		String id=path.length()>"/api/v2/buckets/".length() ? path.substring("/api/v2/buckets/".length()) : null;
+		if (method.equals("POST")) {
+			Map<String,Object> body=genson.deserialize(body(exchange),Map.class);
+			Map<String,String> bucket=new LinkedHashMap<String,String>();
+			bucket.put("id",nextId());
+			bucket.put("orgID",org.get("id"));
+			bucket.put("name",body.get("name").toString());
+			buckets.put(bucket.get("id"),bucket);
+			respond(exchange,201,"application/json",genson.serialize(bucket));
+		} else if (method.equals("PATCH") && id!=null) {
+			Map<String,Object> body=genson.deserialize(body(exchange),Map.class);
+			Map<String,String> bucket=buckets.get(id);
+			if (bucket==null) {
+				respond(exchange,404,"application/json","{\"code\":\"not found\"}");
+				return;
+			}
+			String oldName=bucket.get("name");
+			bucket.put("name",body.get("name").toString());
+			ConcurrentHashMap<String,List<Row>> series=points.remove(oldName);
+			if (series!=null) points.put(bucket.get("name"),series);
+			respond(exchange,200,"application/json",genson.serialize(bucket));
+		} else if (method.equals("DELETE") && id!=null) {
+			Map<String,String> bucket=buckets.remove(id);
+			if (bucket!=null) points.remove(bucket.get("name"));
+			respond(exchange,204,null,null);
+		} else {
+			Map<String,String> query=parameters(exchange.getRequestURI().getRawQuery());
+			List<Map<String,String>> all=new ArrayList<Map<String,String>>(buckets.values());
+			all.sort((a,b) -> a.get("name").compareTo(b.get("name")));
+			List<Map<String,String>> page=new ArrayList<Map<String,String>>();
+			if (query.containsKey("name")) {
+				for (Map<String,String> b: all) if (b.get("name").equals(query.get("name"))) page.add(b);
+			} else {
+				int offset=query.containsKey("offset") ? Integer.parseInt(query.get("offset")) : 0;
+				int limit=query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 20;
+				for (int i=offset;i<all.size() && i<offset+limit;i++) page.add(all.get(i));
+			}
+			respond(exchange,200,"application/json","{\"buckets\":"+genson.serialize(page)+"}");
+		}
+	}
+
+	private void write(HttpExchange exchange) throws IOException {
+		String bucket=parameters(exchange.getRequestURI().getRawQuery()).get("bucket");
+		ConcurrentHashMap<String,List<Row>> series=points.computeIfAbsent(bucket,k -> new ConcurrentHashMap<String,List<Row>>());
+		for (String line: body(exchange).split("\n")) {
+			if (line.isEmpty()) continue;
+			Row row=parseLine(line);
+			List<Row> rows=series.computeIfAbsent(row.tags.getOrDefault("uprn",""),k -> Collections.synchronizedList(new ArrayList<Row>()));
+			rows.add(row);
+		}
+		respond(exchange,204,null,null);
+	}
+
+	private void query(HttpExchange exchange) throws IOException {
+		Map<String,Object> body=genson.deserialize(body(exchange),Map.class);
+		String csv=new StandInQuery(body.get("query").toString()).execute(this);
+		respond(exchange,200,"text/csv; charset=utf-8",csv);
+	}
+
+	//line protocol: measurement[,tag=value...] field=value[,field=value...] [timestamp], with backslash escapes and quoted string fields
+	static Row parseLine(String line) {
+		int[] position={0};
+		String measurement=readToken(line,position,new char[]{',',' '});
+		Map<String,String> tags=new HashMap<String,String>();
+		while (position[0]<line.length() && line.charAt(position[0])==',') {
+			position[0]++;
+			String key=readToken(line,position,new char[]{'='});
+			position[0]++;
+			tags.put(key,readToken(line,position,new char[]{',',' '}));
+		}
+		position[0]++;
+		Map<String,String> fields=new HashMap<String,String>();
+		while (position[0]<line.length() && line.charAt(position[0])!=' ') {
+			String key=readToken(line,position,new char[]{'='});
+			position[0]++;
+			String value;
+			if (line.charAt(position[0])=='"') {
+				StringBuilder s=new StringBuilder();
+				position[0]++;
+				while (line.charAt(position[0])!='"') {
+					if (line.charAt(position[0])=='\\') position[0]++;
+					s.append(line.charAt(position[0]++));
+				}
+				position[0]++;
+				value=s.toString();
+			} else {
+				value=readToken(line,position,new char[]{',',' '});
+			}
+			fields.put(key,value);
+			if (position[0]<line.length() && line.charAt(position[0])==',') position[0]++;
+		}
+		long time=position[0]<line.length() ? Long.parseLong(line.substring(position[0]+1).trim()) : System.currentTimeMillis()*1000000L;
+		return new Row(measurement,tags,fields,time);
+	}
+
+	private static String readToken(String line,int[] position,char[] ends) {
+		StringBuilder s=new StringBuilder();
+		while (position[0]<line.length()) {
+			char c=line.charAt(position[0]);
+			if (c=='\\' && position[0]+1<line.length()) {
+				s.append(line.charAt(position[0]+1));
+				position[0]+=2;
+				continue;
+			}
+			for (char end: ends) if (c==end) return s.toString();
+			s.append(c);
+			position[0]++;
+		}
+		return s.toString();
+	}
+
+	private static String body(HttpExchange exchange) throws IOException {
+		InputStream in=exchange.getRequestBody();
+		String encoding=exchange.getRequestHeaders().getFirst("Content-Encoding");
+		if (encoding!=null && encoding.equalsIgnoreCase("gzip")) in=new GZIPInputStream(in);
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		in.transferTo(bytes);
+		return new String(bytes.toByteArray(),StandardCharsets.UTF_8);
+	}
+
+	private static Map<String,String> parameters(String query) {
+		Map<String,String> parameters=new HashMap<String,String>();
+		if (query==null) return parameters;
+		for (String pair: query.split("&")) {
+			int split=pair.indexOf('=');
+			if (split>0) parameters.put(URLDecoder.decode(pair.substring(0,split),StandardCharsets.UTF_8),URLDecoder.decode(pair.substring(split+1),StandardCharsets.UTF_8));
+		}
+		return parameters;
+	}
+
+	private static void respond(HttpExchange exchange,int status,String contentType,String body) throws IOException {
+		if (body==null) {
+			exchange.sendResponseHeaders(status,-1);
+			exchange.close();
+			return;
+		}
+		byte[] bytes=body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type",contentType);
+		exchange.sendResponseHeaders(status,bytes.length);
+		try (OutputStream out=exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
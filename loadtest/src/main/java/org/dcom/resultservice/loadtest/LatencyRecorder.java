@@ -0,0 +1,62 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.loadtest;
+
+import java.util.Arrays;
+
+/**
+* The latencies of one endpoint as seen by one load generating thread, merged across threads for the report. Every sample is kept so that percentiles are exact.
+*/
+public class LatencyRecorder {
+
+	private long[] samples=new long[1024];
+	private int count=0;
+	private long errors=0;
+
+	public void record(long nanos,boolean error) {
+		if (error) {
+			errors++;
+			return;
+		}
+		if (count==samples.length) samples=Arrays.copyOf(samples,count*2);
+		samples[count++]=nanos;
+	}
+
+	public void merge(LatencyRecorder other) {
+		if (count+other.count>samples.length) samples=Arrays.copyOf(samples,count+other.count);
+		System.arraycopy(other.samples,0,samples,count,other.count);
+		count+=other.count;
+		errors+=other.errors;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	//in milliseconds, call once all samples are merged
+	public double percentile(double p) {
+		if (count==0) return 0;
+		Arrays.sort(samples,0,count);
+		int index=(int)Math.ceil(p/100.0*count)-1;
+		return samples[Math.max(0,Math.min(count-1,index))]/1000000.0;
+	}
+}
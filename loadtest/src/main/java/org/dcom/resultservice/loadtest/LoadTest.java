@@ -0,0 +1,314 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.loadtest;
+
+import org.dcom.core.servicehelper.ServiceBaseInfo;
+import org.dcom.core.servicehelper.UserAuthorisationValidator;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.AuthorisationCache;
+import org.dcom.resultservice.CachingResultServiceDatabase;
+import org.dcom.resultservice.ResultServiceAPI;
+import org.dcom.resultservice.RequestExecutor;
+import org.dcom.resultservice.ResultEventHub;
+import org.dcom.resultservice.ResultServiceDatabase;
+import org.dcom.resultservice.ResultServiceStartup;
+import org.dcom.resultservice.RuleEngineAuthoriser;
+import org.dcom.resultservice.SearchingResultServiceDatabase;
+import org.dcom.resultservice.influxdb.InfluxDBResultServiceDatabase;
+import org.dcom.resultservice.local.LocalResultServiceDatabase;
+import com.sun.net.httpserver.HttpServer;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.glassfish.hk2.utilities.binding.AbstractBinder;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+
+/**
+* Runs ResultServiceAPI in an embedded Jersey server over the InfluxDB stand in, or the local backend, seeds a synthetic estate and drives a mixed read and upload workload at it from a number of threads.
+* Reports requests per second and p50/p99 latency for each endpoint. Options are given as name=value arguments, see the Readme.
+*/
+public class LoadTest {
+
+	private static final String[] ENDPOINTS={"index","history","page","ingest"};
+	private static final List<String> CONDITIONS=Arrays.asList("storeys <= 4","building use: residential");
+
+	private Map<String,String> options=new LinkedHashMap<String,String>();
+	private int buildings;
+	private int checks;
+	private int[] mix=new int[ENDPOINTS.length];
+	private HttpClient client;
+	private String baseURL;
+	private String userToken;
+
+	public LoadTest(String[] args) {
+		options.put("backend","influxdb");
+		options.put("buildings","1000");
+		options.put("checks","20");
+		options.put("history","20");
+		options.put("uploadSize","5");
+		options.put("threads","32");
+		options.put("warmupSeconds","10");
+		options.put("seconds","60");
+		options.put("cache","1000");
+		options.put("mix","index:40,history:30,page:10,ingest:20");
+		for (String arg: args) {
+			int split=arg.indexOf('=');
+			if (split<=0) throw new IllegalArgumentException("Options are given as name=value, not "+arg);
+			options.put(arg.substring(0,split),arg.substring(split+1));
+		}
+		buildings=option("buildings");
+		checks=option("checks");
+		for (String part: options.get("mix").split(",")) {
+			String[] weight=part.split(":");
+			mix[Arrays.asList(ENDPOINTS).indexOf(weight[0])]=Integer.parseInt(weight[1]);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new LoadTest(args).run();
+	}
+
+	private int option(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	public void run() throws Exception {
+		System.out.println("Options "+options);
+		InfluxDBStandIn standIn=null;
+		ResultServiceDatabase backend;
+		if (options.get("backend").equals("local")) {
+			backend=new LocalResultServiceDatabase(Files.createTempDirectory("resultservice-loadtest").toString(),4*1024*1024);
+		} else {
+			standIn=new InfluxDBStandIn(0,option("threads"));
+			standIn.start();
+			backend=new InfluxDBResultServiceDatabase(standIn.getURL(),"loadtest","loadtest","loadtest");
+		}
+		ResultServiceDatabase database=new SearchingResultServiceDatabase(backend,10000,60000,5000);
+		if (option("cache")>0) database=new CachingResultServiceDatabase(database,option("cache"),5000,30000,5000);
+
+		seed(backend);
+		if (backend instanceof InfluxDBResultServiceDatabase && ((InfluxDBResultServiceDatabase)backend).getWritePipeline()!=null) {
+			while (((InfluxDBResultServiceDatabase)backend).getWritePipeline().getQueueDepth()>0) Thread.sleep(100);
+		}
+
+		HttpServer server=JdkHttpServerFactory.createHttpServer(URI.create("http://127.0.0.1:0/"),config(database),false);
+		server.setExecutor(Executors.newFixedThreadPool(Math.max(option("threads"),16)));
+		server.start();
+		baseURL="http://127.0.0.1:"+server.getAddress().getPort();
+		client=HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(Executors.newCachedThreadPool()).build();
+		userToken=token();
+
+		Map<String,LatencyRecorder> results=drive();
+		report(results);
+
+		server.stop(0);
+		database.close();
+		if (standIn!=null) {
+			System.out.println("Stand in holds "+standIn.getPointCount()+" points");
+			standIn.stop();
+		}
+		System.exit(0);
+	}
+
+	private ResourceConfig config(ResultServiceDatabase database) {
+		UserAuthorisationValidator validator=(UserAuthorisationValidator)Proxy.newProxyInstance(LoadTest.class.getClassLoader(),new Class<?>[]{UserAuthorisationValidator.class},(proxy,method,args) -> {
+			if (method.getReturnType()==boolean.class) return args!=null && args.length>1 && ("level1".equals(args[1]) || "editor".equals(args[1]));
+			return null;
+		});
+		AuthorisationCache authorisationCache=new AuthorisationCache(validator,10000,60000);
+		RuleEngineAuthoriser ruleEngineAuthoriser=new RuleEngineAuthoriser(10000,60000,60000) {
+			public boolean authorize(String token) {
+				return token!=null;
+			}
+		};
+		ServiceBaseInfo serviceBaseInfo=new ServiceBaseInfo(ServiceBaseInfo.NAME,ServiceBaseInfo.DESCRIPTION,ServiceBaseInfo.OPERATOR,ServiceBaseInfo.SECURITY_SERVICE_TYPE,ServiceBaseInfo.SECURITY_SERVICE_URI,ServiceBaseInfo.HOSTNAME,ServiceBaseInfo.PORT);
+		RequestExecutor requestExecutor=RequestExecutor.fromConfiguration();
+		ResultEventHub eventHub=new ResultEventHub(1000,1000,4,3600000);
+		//the database is already connected, so there is nothing to wait for
+		ResultServiceStartup startup=new ResultServiceStartup(1000);
+		startup.start(() -> {},() -> {});
+		ResourceConfig config=new ResourceConfig();
+		config.register(ResultServiceAPI.class);
+		config.register(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bind(database).to(ResultServiceDatabase.class);
+				bind(validator).to(UserAuthorisationValidator.class);
+				bind(serviceBaseInfo).to(ServiceBaseInfo.class);
+				bind(authorisationCache).to(AuthorisationCache.class);
+				bind(ruleEngineAuthoriser).to(RuleEngineAuthoriser.class);
+				bind(requestExecutor).to(RequestExecutor.class);
+				bind(eventHub).to(ResultEventHub.class);
+				bind(startup).to(ResultServiceStartup.class);
+			}
+		});
+		return config;
+	}
+
+	private static String uprn(int building) {
+		return String.valueOf(100000000000L+building);
+	}
+
+	private static String checkId(int check) {
+		return "check-"+check;
+	}
+
+	private static List<ComplianceCheckResultItem> results(int count,LocalDateTime time) {
+		List<ComplianceCheckResultItem> items=new ArrayList<ComplianceCheckResultItem>(count);
+		for (int i=0;i<count;i++) {
+			ThreadLocalRandom random=ThreadLocalRandom.current();
+			items.add(new ComplianceCheckResultItem("document-"+i,time.minusSeconds(i),Arrays.asList("clause "+random.nextInt(50)+" satisfied","measured value "+random.nextInt(1000)),"rule-engine",random.nextInt(4)==0 ? "fail" : "pass",new ArrayList<String>(),new ArrayList<String>()));
+		}
+		return items;
+	}
+
+	//writes the starting history of every building and check straight to the database
+	private void seed(ResultServiceDatabase backend) throws InterruptedException {
+		long started=System.nanoTime();
+		int history=option("history");
+		ExecutorService seeders=Executors.newFixedThreadPool(option("threads"));
+		LocalDateTime now=LocalDateTime.now();
+		for (int b=0;b<buildings;b++) {
+			final int building=b;
+			seeders.execute(() -> {
+				for (int c=0;c<checks;c++) backend.addResults(uprn(building),checkId(c),results(history,now.minusDays(c)),CONDITIONS);
+			});
+		}
+		seeders.shutdown();
+		seeders.awaitTermination(1,TimeUnit.DAYS);
+		System.out.printf("Seeded %d buildings x %d checks x %d results in %.1fs%n",buildings,checks,history,(System.nanoTime()-started)/1e9);
+	}
+
+	private Map<String,LatencyRecorder> drive() throws InterruptedException {
+		int threads=option("threads");
+		long warmupEnd=System.nanoTime()+TimeUnit.SECONDS.toNanos(option("warmupSeconds"));
+		long end=warmupEnd+TimeUnit.SECONDS.toNanos(option("seconds"));
+		List<Map<String,LatencyRecorder>> perThread=new ArrayList<Map<String,LatencyRecorder>>();
+		ExecutorService workers=Executors.newFixedThreadPool(threads);
+		for (int t=0;t<threads;t++) {
+			Map<String,LatencyRecorder> recorders=new LinkedHashMap<String,LatencyRecorder>();
+			for (String endpoint: ENDPOINTS) recorders.put(endpoint,new LatencyRecorder());
+			perThread.add(recorders);
+			workers.execute(() -> {
+				long now;
+				while ((now=System.nanoTime())<end) {
+					String endpoint=pick();
+					boolean error;
+					try {
+						error=send(endpoint)>=400;
+					} catch (Exception e) {
+						error=true;
+					}
+					if (now>=warmupEnd) recorders.get(endpoint).record(System.nanoTime()-now,error);
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(1,TimeUnit.DAYS);
+		Map<String,LatencyRecorder> merged=new LinkedHashMap<String,LatencyRecorder>();
+		for (String endpoint: ENDPOINTS) {
+			LatencyRecorder recorder=new LatencyRecorder();
+			for (Map<String,LatencyRecorder> recorders: perThread) recorder.merge(recorders.get(endpoint));
+			merged.put(endpoint,recorder);
+		}
+		return merged;
+	}
+
+	private String pick() {
+		int total=0;
+		for (int weight: mix) total+=weight;
+		int choice=ThreadLocalRandom.current().nextInt(total);
+		for (int i=0;i<mix.length;i++) {
+			if (choice<mix[i]) return ENDPOINTS[i];
+			choice-=mix[i];
+		}
+		return ENDPOINTS[0];
+	}
+
+	private int send(String endpoint) throws Exception {
+		ThreadLocalRandom random=ThreadLocalRandom.current();
+		String building=baseURL+"/"+uprn(random.nextInt(buildings));
+		String check=building+"/"+checkId(random.nextInt(checks));
+		HttpRequest.Builder request;
+		switch (endpoint) {
+			case "index":
+				request=HttpRequest.newBuilder(URI.create(building)).header("Authorization",userToken).header("Accept","application/json").GET();
+				break;
+			case "history":
+				request=HttpRequest.newBuilder(URI.create(check)).header("Authorization",userToken).header("Accept","application/json").GET();
+				break;
+			case "page":
+				request=HttpRequest.newBuilder(URI.create(check+"?limit=10")).header("Authorization",userToken).header("Accept","application/json").GET();
+				break;
+			default:
+				request=HttpRequest.newBuilder(URI.create(check)).header("Authorization","rule-engine").header("Content-Type","application/json").header("Accept","application/json").PUT(HttpRequest.BodyPublishers.ofString(upload(results(option("uploadSize"),LocalDateTime.now()))));
+		}
+		return client.send(request.build(),HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	//the upload body read by JSONResultUpload, with the conditions of the upload alongside the results
+	private static String upload(List<ComplianceCheckResultItem> results) {
+		StringBuilder body=new StringBuilder("{\"conditions\":[");
+		for (int i=0;i<CONDITIONS.size();i++) {
+			if (i>0) body.append(",");
+			body.append("\"").append(CONDITIONS.get(i)).append("\"");
+		}
+		body.append("],\"results\":[");
+		for (int i=0;i<results.size();i++) {
+			if (i>0) body.append(",");
+			body.append(results.get(i).toJSON());
+		}
+		return body.append("]}").toString();
+	}
+
+	//an unsigned token carrying only an expiry, which is all the caches read from it
+	private static String token() {
+		Base64.Encoder encoder=Base64.getUrlEncoder().withoutPadding();
+		String header=encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8));
+		String payload=encoder.encodeToString(("{\"sub\":\"loadtest\",\"exp\":"+(System.currentTimeMillis()/1000+86400)+"}").getBytes(StandardCharsets.UTF_8));
+		return "Bearer "+header+"."+payload+".";
+	}
+
+	private void report(Map<String,LatencyRecorder> results) {
+		double seconds=option("seconds");
+		System.out.printf("%-10s %10s %8s %10s %10s %10s%n","endpoint","requests","errors","req/s","p50 ms","p99 ms");
+		long total=0;
+		for (Map.Entry<String,LatencyRecorder> entry: results.entrySet()) {
+			LatencyRecorder r=entry.getValue();
+			total+=r.getCount();
+			System.out.printf("%-10s %10d %8d %10.1f %10.2f %10.2f%n",entry.getKey(),r.getCount(),r.getErrors(),r.getCount()/seconds,r.percentile(50),r.percentile(99));
+		}
+		System.out.printf("%-10s %10d %8s %10.1f%n","total",total,"",total/seconds);
+	}
+}
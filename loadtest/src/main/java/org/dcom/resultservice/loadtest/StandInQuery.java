@@ -0,0 +1,264 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.loadtest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+* Answers the Flux queries InfluxDBResultServiceDatabase and InfluxDBBlobStore send, recognised by their shape: the latest result summary of a building, a pivoted result history and a blob lookup. Any other query is answered with no rows.
+* Results are returned as the annotated CSV InfluxDB produces, so the client's own parser reads them.
+*/
+public class StandInQuery {
+
+	private static final String STRING="((?:[^\"\\\\]|\\\\.)*)";
+	private static final Pattern FROM=Pattern.compile("from\\(bucket:\""+STRING+"\"\\)");
+	private static final Pattern SET_CHECK=Pattern.compile("set\\(key:\"checkId\",value:\""+STRING+"\"\\)");
+	private static final Pattern UPRN=Pattern.compile("r\\.uprn == \""+STRING+"\"");
+	private static final Pattern CHECK=Pattern.compile("r\\.checkId == \""+STRING+"\"");
+	private static final Pattern MEASUREMENT=Pattern.compile("r\\._measurement == \""+STRING+"\"");
+	private static final Pattern SHARD=Pattern.compile("r\\.shard == \""+STRING+"\"");
+	private static final Pattern RANGE=Pattern.compile("range\\(start: ?([^,)]+)(?:, ?stop: ?([^)]+))?\\)");
+	private static final Pattern LIMIT=Pattern.compile("limit\\(n: ?(\\d+)\\)");
+
+	/**
+	* A bucket read by the query, with the check id a union gives its rows.
+	*/
+	private static class Source {
+		private String bucket;
+		private String checkId;
+	}
+
+	private String query;
+
+	public StandInQuery(String query) {
+		this.query=query;
+	}
+
+	public String execute(InfluxDBStandIn database) {
+		if (query.contains("r._measurement == \"blob\"")) return blob(database);
+		if (query.contains("group(columns:[\"checkId\",\"_measurement\"])")) return summary(database);
+		if (query.contains("pivot(")) return history(database);
+		return csv(new ArrayList<String>(),new ArrayList<Map<String,String>>());
+	}
+
+	private String blob(InfluxDBStandIn database) {
+		long[] range=range();
+		String shard=first(SHARD);
+		List<Map<String,String>> rows=new ArrayList<Map<String,String>>();
+		for (Source source: sources()) {
+			for (InfluxDBStandIn.Row row: database.getRows(source.bucket,null)) {
+				if (row.time<range[0] || row.time>=range[1] || !shard.equals(row.tags.get("shard"))) continue;
+				Map<String,String> values=new HashMap<String,String>();
+				values.put("_time",time(row.time));
+				values.put("_measurement",row.measurement);
+				values.put("_field","data");
+				values.put("_value",row.fields.get("data"));
+				rows.add(values);
+			}
+		}
+		return csv(List.of("_time","_measurement","_field","_value"),rows);
+	}
+
+	//the latest result of each check and document reference of a building
+	private String summary(InfluxDBStandIn database) {
+		long[] range=range();
+		Map<String,InfluxDBStandIn.Row> latest=new LinkedHashMap<String,InfluxDBStandIn.Row>();
+		Map<String,String> checks=new HashMap<String,String>();
+		for (Source source: sources()) {
+			for (InfluxDBStandIn.Row row: rows(database,source,range)) {
+				if (row.measurement.equals("conditions") || !row.fields.containsKey("result")) continue;
+				String checkId=source.checkId!=null ? source.checkId : row.tags.get("checkId");
+				String key=checkId+"\n"+row.measurement;
+				InfluxDBStandIn.Row current=latest.get(key);
+				if (current==null || row.time>current.time) {
+					latest.put(key,row);
+					checks.put(key,checkId);
+				}
+			}
+		}
+		List<Map<String,String>> rows=new ArrayList<Map<String,String>>();
+		for (Map.Entry<String,InfluxDBStandIn.Row> entry: latest.entrySet()) {
+			Map<String,String> values=new HashMap<String,String>();
+			values.put("_time",time(entry.getValue().time));
+			values.put("_value",entry.getValue().fields.get("result"));
+			values.put("_measurement",entry.getValue().measurement);
+			values.put("checkId",checks.get(entry.getKey()));
+			rows.add(values);
+		}
+		return csv(List.of("_time","_value","_measurement","checkId"),rows);
+	}
+
+	//one row per result with a column per field, newest first
+	private String history(InfluxDBStandIn database) {
+		long[] range=range();
+		Set<String> measurements=all(MEASUREMENT);
+		List<InfluxDBStandIn.Row> matched=new ArrayList<InfluxDBStandIn.Row>();
+		for (Source source: sources()) {
+			for (InfluxDBStandIn.Row row: rows(database,source,range)) {
+				if (!measurements.isEmpty() && !measurements.contains(row.measurement)) continue;
+				matched.add(row);
+			}
+		}
+		matched.sort(Comparator.comparingLong((InfluxDBStandIn.Row r) -> r.time).thenComparing(r -> r.measurement).reversed());
+		String limit=first(LIMIT);
+		int n=limit==null ? Integer.MAX_VALUE : Integer.parseInt(limit);
+		//after group() the limit is of the whole history, otherwise it is of each document reference
+		boolean perMeasurement=!query.contains("group()");
+		Map<String,Integer> counts=new HashMap<String,Integer>();
+		Set<String> columns=new TreeSet<String>();
+		List<Map<String,String>> rows=new ArrayList<Map<String,String>>();
+		for (InfluxDBStandIn.Row row: matched) {
+			int count=counts.merge(perMeasurement ? row.measurement : "",1,Integer::sum);
+			if (count>n) continue;
+			Map<String,String> values=new HashMap<String,String>(row.fields);
+			values.put("_time",time(row.time));
+			values.put("_measurement",row.measurement);
+			columns.addAll(row.fields.keySet());
+			rows.add(values);
+		}
+		List<String> header=new ArrayList<String>();
+		header.add("_time");
+		header.add("_measurement");
+		header.addAll(columns);
+		return csv(header,rows);
+	}
+
+	private List<InfluxDBStandIn.Row> rows(InfluxDBStandIn database,Source source,long[] range) {
+		Set<String> uprns=all(UPRN);
+		String checkId=first(CHECK);
+		List<InfluxDBStandIn.Row> rows=new ArrayList<InfluxDBStandIn.Row>();
+		List<InfluxDBStandIn.Row> candidates=new ArrayList<InfluxDBStandIn.Row>();
+		if (uprns.isEmpty()) {
+			candidates=database.getRows(source.bucket,null);
+		} else {
+			for (String uprn: uprns) candidates.addAll(database.getRows(source.bucket,uprn));
+		}
+		for (InfluxDBStandIn.Row row: candidates) {
+			if (row.time<range[0] || row.time>=range[1]) continue;
+			if (checkId!=null && !checkId.equals(row.tags.get("checkId"))) continue;
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private List<Source> sources() {
+		List<Source> sources=new ArrayList<Source>();
+		Matcher from=FROM.matcher(query);
+		List<Integer> starts=new ArrayList<Integer>();
+		while (from.find()) {
+			Source source=new Source();
+			source.bucket=unescape(from.group(1));
+			sources.add(source);
+			starts.add(from.start());
+		}
+		for (int i=0;i<sources.size();i++) {
+			String part=query.substring(starts.get(i),i+1<starts.size() ? starts.get(i+1) : query.length());
+			Matcher set=SET_CHECK.matcher(part);
+			if (set.find()) sources.get(i).checkId=unescape(set.group(1));
+		}
+		return sources;
+	}
+
+	private long[] range() {
+		Matcher range=RANGE.matcher(query);
+		if (!range.find()) return new long[]{Long.MIN_VALUE,Long.MAX_VALUE};
+		long stop=range.group(2)==null ? nanos(Instant.now()) : time(range.group(2).trim());
+		return new long[]{time(range.group(1).trim()),stop};
+	}
+
+	//an absolute time, or a duration such as -100y or 26h relative to now
+	private static long time(String value) {
+		if (Character.isDigit(value.charAt(value.length()-1))) return nanos(Instant.parse(value));
+		long amount=Long.parseLong(value.substring(0,value.length()-1));
+		switch (value.charAt(value.length()-1)) {
+			case 'y': return nanos(Instant.now().minus(Duration.ofDays(-amount*365)));
+			case 'd': return nanos(Instant.now().plus(amount,ChronoUnit.DAYS));
+			case 'h': return nanos(Instant.now().plus(amount,ChronoUnit.HOURS));
+			case 'm': return nanos(Instant.now().plus(amount,ChronoUnit.MINUTES));
+			default: return nanos(Instant.now().plus(amount,ChronoUnit.SECONDS));
+		}
+	}
+
+	private static long nanos(Instant time) {
+		//clamped, as a hundred years back is before the range of a long of nanoseconds
+		if (time.getEpochSecond()<=-9223372036L) return Long.MIN_VALUE;
+		return time.getEpochSecond()*1000000000L+time.getNano();
+	}
+
+	private static String time(long nanos) {
+		return Instant.ofEpochSecond(Math.floorDiv(nanos,1000000000L),Math.floorMod(nanos,1000000000L)).toString();
+	}
+
+	private String first(Pattern pattern) {
+		Matcher m=pattern.matcher(query);
+		return m.find() ? unescape(m.group(1)) : null;
+	}
+
+	private Set<String> all(Pattern pattern) {
+		Set<String> values=new HashSet<String>();
+		Matcher m=pattern.matcher(query);
+		while (m.find()) values.add(unescape(m.group(1)));
+		return values;
+	}
+
+	private static String unescape(String value) {
+		return value.replace("\\\"","\"").replace("\\\\","\\");
+	}
+
+	//the annotated CSV of one table, every column but the time a string
+	private static String csv(List<String> columns,List<Map<String,String>> rows) {
+		StringBuilder csv=new StringBuilder();
+		csv.append("#datatype,string,long");
+		for (String c: columns) csv.append(c.equals("_time") ? ",dateTime:RFC3339" : ",string");
+		csv.append("\r\n#group,false,false");
+		for (int i=0;i<columns.size();i++) csv.append(",false");
+		csv.append("\r\n#default,_result,");
+		for (int i=0;i<columns.size();i++) csv.append(",");
+		csv.append("\r\n,result,table");
+		for (String c: columns) csv.append(",").append(c);
+		csv.append("\r\n");
+		for (Map<String,String> row: rows) {
+			csv.append(",,0");
+			for (String c: columns) {
+				csv.append(",");
+				String value=row.get(c);
+				if (value!=null) csv.append(escape(value));
+			}
+			csv.append("\r\n");
+		}
+		return csv.append("\r\n").toString();
+	}
+
+	private static String escape(String value) {
+		if (value.indexOf(',')<0 && value.indexOf('"')<0 && value.indexOf('\n')<0 && value.indexOf('\r')<0) return value;
+		return "\""+value.replace("\"","\"\"")+"\"";
+	}
+}
@@ -0,0 +1,70 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.servicehelper.UserAuthorisationValidator;
+
+/**
+* Remembers the access level and editor permission resolved for each user token, so the authorisation service is consulted once per token rather than up to four times per request.
+*/
+public class AuthorisationCache {
+
+	//how long a decision about a token without an exp claim is kept, as it may be revoked at any time
+	private static final long OPAQUE_TOKEN_MILLIS=5000;
+
+	private UserAuthorisationValidator authenticator;
+	private TokenCache<Integer> levels;
+	private TokenCache<Boolean> editors;
+
+	public AuthorisationCache(UserAuthorisationValidator authenticator,int maxSize,long ttlMillis) {
+		this.authenticator=authenticator;
+		levels=new TokenCache<Integer>(maxSize,ttlMillis,OPAQUE_TOKEN_MILLIS);
+		editors=new TokenCache<Boolean>(maxSize,ttlMillis,OPAQUE_TOKEN_MILLIS);
+	}
+
+	//returns the level of detail the token may see, or -1 if it has no access
+	public int getLevel(String token) {
+		if (token==null) return -1;
+		return levels.get(token,this::resolveLevel,level -> level>0);
+	}
+
+	public boolean isEditor(String token) {
+		if (token==null) return false;
+		return editors.get(token,t -> authenticator.validatePermission(t,"editor"),editor -> editor);
+	}
+
+	private int resolveLevel(String token) {
+		if ( authenticator.validatePermission(token,"level1")) return 1;
+		if ( authenticator.validatePermission(token,"level2")) return 2;
+		if ( authenticator.validatePermission(token,"level3")) return 3;
+		if ( authenticator.validatePermission(token,"level4")) return 4;
+		return -1;
+	}
+
+	public long getHits() {
+		return levels.getHits()+editors.getHits();
+	}
+
+	public long getMisses() {
+		return levels.getMisses()+editors.getMisses();
+	}
+
+	public int size() {
+		return levels.size()+editors.size();
+	}
+}
@@ -0,0 +1,319 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.owlike.genson.stream.JsonStreamException;
+import com.owlike.genson.stream.ObjectReader;
+import com.owlike.genson.stream.ValueType;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* Reads a bulk upload carrying results for many buildings and compliance checks, of the form
+* {"uploads":[{"building":"..","complianceCheckUID":"..","conditions":[..],"results":[..]},..]}
+* Results are read in a single pass and grouped by building and check, and each group is passed to the database once it holds a full batch, so a whole estate is written in a few large writes rather than one small write per check.
+* Each building and check succeeds or fails on its own: an upload that is invalid is refused whole, a building and check the database refuses takes no more results, and the others are still written. The outcome of each is reported.
+*/
+public class BulkResultUpload {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( BulkResultUpload.class );
+
+	/**
+	* Receives the results of one building and compliance check.
+	*/
+	public interface Destination {
+		void addResults(String uprn,String checkId,List<ComplianceCheckResultItem> results,List<String> conditions);
+	}
+
+	/**
+	* What happened to the results sent for one building and check.
+	*/
+	public static class Outcome {
+		private String uprn;
+		private String checkId;
+		private int stored=0;
+		private int refused=0;
+		private String error;
+		private boolean busy=false;
+
+		private Outcome(String uprn,String checkId) {
+			this.uprn=uprn;
+			this.checkId=checkId;
+		}
+
+		private void refuse(int results,String reason) {
+			refused+=results;
+			if (error==null) error=reason;
+		}
+
+		public String getUprn() {
+			return uprn;
+		}
+
+		public String getCheckId() {
+			return checkId;
+		}
+
+		public int getStored() {
+			return stored;
+		}
+
+		public int getRefused() {
+			return refused;
+		}
+
+		//null if every result was stored
+		public String getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error==null;
+		}
+
+		private String toJSON() {
+			StringBuilder str=new StringBuilder();
+			str.append("{\"building\":").append(jsonString(uprn)).append(",\"complianceCheckUID\":").append(jsonString(checkId));
+			str.append(",\"success\":").append(isSuccess()).append(",\"stored\":").append(stored).append(",\"refused\":").append(refused);
+			if (error!=null) str.append(",\"error\":").append(jsonString(error));
+			return str.append("}").toString();
+		}
+	}
+
+	/**
+	* The outcome of each building and check in a bulk upload, in the order they first appeared.
+	*/
+	public static class Report {
+		private Map<String,Outcome> outcomes=new LinkedHashMap<String,Outcome>();
+		private String error;
+
+		private Outcome outcome(String uprn,String checkId) {
+			return outcomes.computeIfAbsent(uprn+"\n"+checkId,k -> new Outcome(uprn,checkId));
+		}
+
+		public List<Outcome> getOutcomes() {
+			return new ArrayList<Outcome>(outcomes.values());
+		}
+
+		//set if the body is not valid JSON, results read before the error may be stored and are reported
+		public String getError() {
+			return error;
+		}
+
+		public boolean isMalformed() {
+			return error!=null;
+		}
+
+		public boolean isSuccess() {
+			if (error!=null) return false;
+			for (Outcome outcome: outcomes.values()) if (!outcome.isSuccess()) return false;
+			return true;
+		}
+
+		//nothing was stored and the database was too busy to take some of it, so the whole upload may be retried
+		public boolean isBusy() {
+			boolean busy=false;
+			for (Outcome outcome: outcomes.values()) {
+				if (outcome.stored>0) return false;
+				busy|=outcome.busy;
+			}
+			return busy;
+		}
+
+		public int getStored() {
+			int stored=0;
+			for (Outcome outcome: outcomes.values()) stored+=outcome.stored;
+			return stored;
+		}
+
+		public String toJSON() {
+			StringBuilder str=new StringBuilder();
+			str.append("{\"success\":").append(isSuccess()).append(",\"results\":").append(getStored());
+			if (error!=null) str.append(",\"error\":").append(jsonString(error));
+			str.append(",\"uploads\":[");
+			boolean first=true;
+			for (Outcome outcome: outcomes.values()) {
+				if (first) first=false;
+				else str.append(",");
+				str.append(outcome.toJSON());
+			}
+			return str.append("]}").toString();
+		}
+	}
+
+	/**
+	* The results read for one building and check that have not been passed on yet.
+	*/
+	private static class Group {
+		private Outcome outcome;
+		private List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		private List<String> conditions=new ArrayList<String>();
+
+		private Group(Outcome outcome) {
+			this.outcome=outcome;
+		}
+	}
+
+	private Destination destination;
+	private int batchSize;
+	private int maxBuffered;
+	private Report report=new Report();
+	private Map<Outcome,Group> groups=new LinkedHashMap<Outcome,Group>();
+	private int buffered=0;
+
+	private BulkResultUpload(Destination destination,int batchSize,int maxBuffered) {
+		this.destination=destination;
+		this.batchSize=batchSize;
+		this.maxBuffered=maxBuffered;
+	}
+
+	/**
+	* Passes the results of the upload to the destination, at most batchSize at a time. A group is passed on when it reaches batchSize results and every group is passed on when maxBuffered results are held.
+	* The results of one upload in the body are held until the whole upload has been read, so that an invalid upload is refused whole.
+	* A body that is not valid JSON stops the read, groups passed on before it stay stored and are reported as such.
+	*/
+	public static Report read(InputStream body,int batchSize,int maxBuffered,Destination destination) {
+		BulkResultUpload upload=new BulkResultUpload(destination,batchSize,maxBuffered);
+		ObjectReader reader=JSONResultUpload.createReader(body);
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				ValueType type=reader.next();
+				if (reader.name().equals("uploads") && type==ValueType.ARRAY) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						if (reader.next()==ValueType.OBJECT) {
+							upload.readUpload(reader);
+						} else {
+							reader.skipValue();
+							upload.report.outcome(null,null).refuse(0,"An upload must be an object");
+						}
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			upload.flushAll();
+		} catch (JsonStreamException e) {
+			upload.report.error=e.getMessage();
+			for (Group group: upload.groups.values()) group.outcome.refuse(group.results.size(),"Not stored as the body is malformed");
+		} finally {
+			reader.close();
+		}
+		return upload.report;
+	}
+
+	private void readUpload(ObjectReader reader) {
+		String uprn=null;
+		String checkId=null;
+		String error=null;
+		List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		List<String> conditions=new ArrayList<String>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			ValueType type=reader.next();
+			String name=reader.name();
+			if (name.equals("building") || name.equals("complianceCheckUID")) {
+				String value=null;
+				if (type==ValueType.ARRAY || type==ValueType.OBJECT) reader.skipValue();
+				else value=JSONResultUpload.text(reader);
+				if (name.equals("building")) uprn=value;
+				else checkId=value;
+			} else if (name.equals("conditions") && type!=ValueType.OBJECT) {
+				JSONResultUpload.readList(reader,type,conditions);
+			} else if (name.equals("results") && type==ValueType.ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (reader.next()!=ValueType.OBJECT) {
+						reader.skipValue();
+						if (error==null) error="A result must be an object";
+						continue;
+					}
+					try {
+						results.add(JSONResultUpload.readResult(reader).build());
+						buffered++;
+					} catch (IllegalArgumentException e) {
+						if (error==null) error=e.getMessage();
+					}
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (error==null && (uprn==null || checkId==null)) error="An upload needs a building and a complianceCheckUID";
+		Outcome outcome=report.outcome(uprn,checkId);
+		if (error!=null || outcome.error!=null) {
+			buffered-=results.size();
+			outcome.refuse(results.size(),error);
+			return;
+		}
+		if (results.isEmpty() && conditions.isEmpty()) return;
+		Group group=groups.computeIfAbsent(outcome,Group::new);
+		group.results.addAll(results);
+		group.conditions.addAll(conditions);
+		if (group.results.size()>=batchSize) flush(group);
+		if (buffered>=maxBuffered) flushAll();
+	}
+
+	private void flush(Group group) {
+		groups.remove(group.outcome);
+		buffered-=group.results.size();
+		Outcome outcome=group.outcome;
+		List<String> conditions=group.conditions;
+		//a group holding only conditions is still passed on once
+		int i=0;
+		do {
+			List<ComplianceCheckResultItem> batch=group.results.subList(i,Math.min(group.results.size(),i+batchSize));
+			i+=batchSize;
+			if (outcome.error!=null) {
+				outcome.refuse(batch.size(),null);
+				continue;
+			}
+			try {
+				destination.addResults(outcome.uprn,outcome.checkId,new ArrayList<ComplianceCheckResultItem>(batch),conditions);
+				outcome.stored+=batch.size();
+			} catch (ResultServiceBusyException e) {
+				outcome.busy=true;
+				outcome.refuse(batch.size(),"The result service is busy");
+			} catch (RuntimeException e) {
+				LOGGER.warn("Could not store bulk results for "+outcome.uprn+" "+outcome.checkId+": "+e.getMessage());
+				outcome.refuse(batch.size(),"Could not be stored");
+			}
+			conditions=new ArrayList<String>();
+		} while (i<group.results.size());
+	}
+
+	private void flushAll() {
+		for (Group group: new ArrayList<Group>(groups.values())) flush(group);
+	}
+
+	private static String jsonString(String value) {
+		if (value==null) return "null";
+		return "\""+value.replace("\\","\\\\").replace("\"","\\\"")+"\"";
+	}
+}
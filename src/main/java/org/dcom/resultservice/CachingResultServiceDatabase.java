@@ -0,0 +1,280 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+* A read through cache of result queries that can be placed in front of any ResultServiceDatabase. Entries are held in least recently used order up to a fixed count and expire after a time to live.
+* Writing results for a compliance check, or changing a building's UPRN, removes exactly the entries for that check or building, found through an index of the keys of each building and check so a write costs no more than the entries it removes.
+*/
+public class CachingResultServiceDatabase implements ResultServiceDatabase {
+
+	private static final int GENERATIONS=1024;
+
+	private static class Key {
+		private String uprn;
+		private String checkId;
+		private LocalDateTime start;
+		private LocalDateTime end;
+		private String documentFilter;
+		private String freeText;
+		private int level;
+		private String after;
+		private int limit;
+
+		private Key(String uprn,String checkId,LocalDateTime start,LocalDateTime end,String documentFilter,String freeText,int level,ResultCursor after,int limit) {
+			this.uprn=uprn;
+			this.checkId=checkId;
+			this.start=start;
+			this.end=end;
+			this.documentFilter=documentFilter;
+			this.freeText=freeText;
+			this.level=level;
+			this.after=after==null ? null : after.encode();
+			this.limit=limit;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k=(Key)o;
+			return level==k.level && limit==k.limit && Objects.equals(uprn,k.uprn) && Objects.equals(checkId,k.checkId) && Objects.equals(start,k.start) && Objects.equals(end,k.end) && Objects.equals(documentFilter,k.documentFilter) && Objects.equals(freeText,k.freeText) && Objects.equals(after,k.after);
+		}
+
+		public int hashCode() {
+			return Objects.hash(uprn,checkId,start,end,documentFilter,freeText,level,after,limit);
+		}
+	}
+
+	private static class Entry {
+		private List<ComplianceCheckResultItem> results;
+		private long expires;
+
+		private Entry(List<ComplianceCheckResultItem> results,long expires) {
+			this.results=results;
+			this.expires=expires;
+		}
+	}
+
+	private ResultServiceDatabase delegate;
+	private int maxEntries;
+	private int maxItems;
+	private long ttlMillis;
+	private long settleMillis;
+	private LinkedHashMap<Key,Entry> cache;
+	//the keys in the cache of each building and check, the null check holding those read across every check. Guarded by the cache lock
+	private HashMap<String,HashMap<String,Set<Key>>> keys=new HashMap<String,HashMap<String,Set<Key>>>();
+	//bumped on every change to a building so that a query which started before the change does not cache what it read. Buildings share a fixed number of counters, a change to another building with the same counter only costs a query its caching
+	private AtomicLong[] generations=new AtomicLong[GENERATIONS];
+	//the time of the latest write to each check, dropped once it is older than the settle window
+	private ConcurrentHashMap<String,Long> lastWrites=new ConcurrentHashMap<String,Long>();
+	private volatile long lastPruned=System.currentTimeMillis();
+
+	private LongAdder hits=new LongAdder();
+	private LongAdder misses=new LongAdder();
+	private LongAdder evictions=new LongAdder();
+	private LongAdder invalidations=new LongAdder();
+
+	/**
+	* @param maxItems the largest result list that is cached, longer histories are always read from the database
+	* @param settleMillis how long after a write results for that check are not cached, as the backend may still be writing them
+	*/
+	public CachingResultServiceDatabase(ResultServiceDatabase delegate,int maxEntries,int maxItems,long ttlMillis,long settleMillis) {
+		this.delegate=delegate;
+		this.maxEntries=maxEntries;
+		this.maxItems=maxItems;
+		this.ttlMillis=ttlMillis;
+		this.settleMillis=settleMillis;
+		for (int i=0;i<GENERATIONS;i++) generations[i]=new AtomicLong();
+		cache=new LinkedHashMap<Key,Entry>(16,0.75f,true) {
+			protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest) {
+				if (size()<=CachingResultServiceDatabase.this.maxEntries) return false;
+				evictions.increment();
+				unindex(eldest.getKey());
+				return true;
+			}
+		};
+	}
+
+	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn) {
+		return delegate.getComplianceChecks(uprn);
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+		delegate.updateUPRN(oldUPRN,newUPRN);
+		invalidate(oldUPRN,null);
+		invalidate(newUPRN,null);
+	}
+
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit) {
+		List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,results::add);
+		return results;
+	}
+
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+		Key key=new Key(uprn,checkId,start,end,documentFilter,freeText,level,after,limit);
+		List<ComplianceCheckResultItem> cached=get(key);
+		if (cached!=null) {
+			hits.increment();
+			for (ComplianceCheckResultItem item: cached) consumer.accept(item);
+			return;
+		}
+		misses.increment();
+		long generation=generation(uprn).get();
+		List<ComplianceCheckResultItem> collected=new ArrayList<ComplianceCheckResultItem>();
+		boolean[] tooLarge={false};
+		delegate.streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,item -> {
+			if (!tooLarge[0]) {
+				collected.add(item);
+				if (collected.size()>maxItems) {
+					tooLarge[0]=true;
+					collected.clear();
+				}
+			}
+			consumer.accept(item);
+		});
+		if (tooLarge[0]) return;
+		Long lastWrite=lastWrites.get(uprn+"\n"+checkId);
+		if (lastWrite!=null && System.currentTimeMillis()-lastWrite<settleMillis) return;
+		synchronized (cache) {
+			if (generation(uprn).get()==generation) {
+				cache.put(key,new Entry(Collections.unmodifiableList(collected),System.currentTimeMillis()+ttlMillis));
+				index(key);
+			}
+		}
+	}
+
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window) {
+		return delegate.summariseResults(uprn,checkId,start,end,window);
+	}
+
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		LocalDateTime conditionsTime=delegate.addResults(uprn,checkId,results,conditions);
+		long now=System.currentTimeMillis();
+		lastWrites.put(uprn+"\n"+checkId,now);
+		//results read across every check of the building include this one
+		lastWrites.put(uprn+"\n"+null,now);
+		//at most once per settle window, so the map holds only the checks written in the last two windows
+		if (now-lastPruned>=settleMillis) {
+			lastPruned=now;
+			lastWrites.values().removeIf(t -> now-t>=settleMillis);
+		}
+		invalidate(uprn,checkId);
+		return conditionsTime;
+	}
+
+	public LocalDateTime storedTime(LocalDateTime time) {
+		return delegate.storedTime(time);
+	}
+
+	public void close() {
+		delegate.close();
+	}
+
+	private List<ComplianceCheckResultItem> get(Key key) {
+		synchronized (cache) {
+			Entry entry=cache.get(key);
+			if (entry==null) return null;
+			if (entry.expires<=System.currentTimeMillis()) {
+				cache.remove(key);
+				unindex(key);
+				return null;
+			}
+			return entry.results;
+		}
+	}
+
+	private AtomicLong generation(String uprn) {
+		return generations[Math.floorMod(uprn.hashCode(),GENERATIONS)];
+	}
+
+	private void index(Key key) {
+		keys.computeIfAbsent(key.uprn,k -> new HashMap<String,Set<Key>>()).computeIfAbsent(key.checkId,k -> new HashSet<Key>()).add(key);
+	}
+
+	private void unindex(Key key) {
+		HashMap<String,Set<Key>> building=keys.get(key.uprn);
+		if (building==null) return;
+		Set<Key> check=building.get(key.checkId);
+		if (check==null) return;
+		check.remove(key);
+		if (check.isEmpty()) building.remove(key.checkId);
+		if (building.isEmpty()) keys.remove(key.uprn);
+	}
+
+	//removes the entries of one check and those read across every check of its building, or of the whole building when checkId is null
+	private void invalidate(String uprn,String checkId) {
+		synchronized (cache) {
+			generation(uprn).incrementAndGet();
+			HashMap<String,Set<Key>> building=keys.get(uprn);
+			if (building==null) return;
+			List<Set<Key>> removed=new ArrayList<Set<Key>>();
+			if (checkId==null) {
+				removed.addAll(building.values());
+				keys.remove(uprn);
+			} else {
+				if (building.containsKey(checkId)) removed.add(building.remove(checkId));
+				if (building.containsKey(null)) removed.add(building.remove(null));
+				if (building.isEmpty()) keys.remove(uprn);
+			}
+			for (Set<Key> check: removed) {
+				for (Key k: check) cache.remove(k);
+				invalidations.add(check.size());
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+}
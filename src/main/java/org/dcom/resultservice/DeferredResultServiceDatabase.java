@@ -0,0 +1,93 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+* Stands in for a ResultServiceDatabase that is still being connected in the background, so the service can start serving before its database is reachable.
+* Until the database is set every call throws ResultServiceBusyException.
+*/
+public class DeferredResultServiceDatabase implements ResultServiceDatabase {
+
+	private volatile ResultServiceDatabase delegate;
+	private volatile boolean closed=false;
+
+	public void set(ResultServiceDatabase database) {
+		synchronized (this) {
+			if (!closed) {
+				delegate=database;
+				return;
+			}
+		}
+		//the service stopped while the database was connecting
+		database.close();
+	}
+
+	public boolean isReady() {
+		return delegate!=null;
+	}
+
+	private ResultServiceDatabase delegate() {
+		ResultServiceDatabase database=delegate;
+		if (database==null) throw new ResultServiceBusyException("The result database is not connected yet");
+		return database;
+	}
+
+	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn) {
+		return delegate().getComplianceChecks(uprn);
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+		delegate().updateUPRN(oldUPRN,newUPRN);
+	}
+
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit) {
+		return delegate().getResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit);
+	}
+
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+		delegate().streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,consumer);
+	}
+
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window) {
+		return delegate().summariseResults(uprn,checkId,start,end,window);
+	}
+
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		return delegate().addResults(uprn,checkId,results,conditions);
+	}
+
+	public LocalDateTime storedTime(LocalDateTime time) {
+		return delegate().storedTime(time);
+	}
+
+	public void close() {
+		ResultServiceDatabase database;
+		synchronized (this) {
+			closed=true;
+			database=delegate;
+		}
+		if (database!=null) database.close();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import com.owlike.genson.Genson;
+import com.owlike.genson.stream.JsonStreamException;
+import com.owlike.genson.stream.ObjectReader;
+import com.owlike.genson.stream.ValueType;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+* Reads a JSON upload of the form {"conditions":[..],"results":[..]} in a single pass at the token level, without building a tree of the document.
+* Results are objects whose keys are the ComplianceCheckResultItem fields, unknown keys are skipped.
+*/
+public class JSONResultUpload {
+
+	//Genson is thread safe once built, so one instance serves every upload
+	private static final Genson GENSON=new Genson();
+
+	private JSONResultUpload() {}
+
+	static ObjectReader createReader(InputStream body) {
+		return GENSON.createReader(body);
+	}
+
+	/**
+	* Reads the whole upload and then passes its results to the consumer in batches, the conditions go with the first batch. Nothing is passed on if any part of the upload is malformed.
+	* @throws JsonStreamException if the upload is not valid JSON or a result is incomplete
+	*/
+	public static void read(InputStream body,int batchSize,BiConsumer<List<ComplianceCheckResultItem>,List<String>> consumer) {
+		ObjectReader reader=createReader(body);
+		List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		List<String> conditions=new ArrayList<String>();
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				ValueType type=reader.next();
+				String name=reader.name();
+				if (name.equals("conditions") && type==ValueType.ARRAY) {
+					readList(reader,type,conditions);
+				} else if (name.equals("results") && type==ValueType.ARRAY) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						if (reader.next()!=ValueType.OBJECT) throw new JsonStreamException("A result must be an object");
+						results.add(readItem(reader));
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} finally {
+			reader.close();
+		}
+		UploadedResult.pass(results,conditions,batchSize,consumer);
+	}
+
+	//reads one result object, the reader is positioned on its start
+	static ComplianceCheckResultItem readItem(ObjectReader reader) {
+		try {
+			return readResult(reader).build();
+		} catch (IllegalArgumentException e) {
+			throw new JsonStreamException(e.getMessage());
+		}
+	}
+
+	//reads one result object whole, so that the reader is after it even if the result is invalid
+	static UploadedResult readResult(ObjectReader reader) {
+		UploadedResult item=new UploadedResult();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			ValueType type=reader.next();
+			String name=reader.name();
+			if (!UploadedResult.isField(name)) {
+				reader.skipValue();
+			} else if (type==ValueType.ARRAY && UploadedResult.isList(name)) {
+				reader.beginArray();
+				while (reader.hasNext()) item.set(name,value(reader,reader.next(),item));
+				reader.endArray();
+			} else {
+				item.set(name,value(reader,type,item));
+			}
+		}
+		reader.endObject();
+		return item;
+	}
+
+	//an object or array where a value is expected is skipped and makes the result invalid
+	private static String value(ObjectReader reader,ValueType type,UploadedResult item) {
+		if (type==ValueType.ARRAY || type==ValueType.OBJECT) {
+			reader.skipValue();
+			item.invalid("Expected a value but found "+type);
+			return null;
+		}
+		return type==ValueType.NULL ? null : reader.valueAsString();
+	}
+
+	static void readList(ObjectReader reader,ValueType type,List<String> into) {
+		if (type==ValueType.NULL) return;
+		if (type!=ValueType.ARRAY) {
+			into.add(text(reader));
+			return;
+		}
+		reader.beginArray();
+		while (reader.hasNext()) {
+			reader.next();
+			into.add(text(reader));
+		}
+		reader.endArray();
+	}
+
+	static String text(ObjectReader reader) {
+		ValueType type=reader.getValueType();
+		if (type==ValueType.NULL) return null;
+		if (type==ValueType.ARRAY || type==ValueType.OBJECT) throw new JsonStreamException("Expected a value but found "+type);
+		return reader.valueAsString();
+	}
+}
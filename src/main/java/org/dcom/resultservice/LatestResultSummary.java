@@ -0,0 +1,126 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* A materialised view of the latest result of every compliance check (and document reference within it) for each building, so that a building overview can be answered with one map lookup.
+* Database implementations update it as results are written and load a building from storage the first time it is requested.
+* When the summary is bounded a building is loaded again once its load is older than the time to live, so that results written by other instances are picked up, and the least recently used buildings are dropped beyond the maximum.
+*/
+public class LatestResultSummary {
+
+	private static class Entry {
+		private String reference;
+		private String uid;
+		private String result;
+		private LocalDateTime time;
+
+		private Entry(String reference,String uid,String result,LocalDateTime time) {
+			this.reference=reference;
+			this.uid=uid;
+			this.result=result;
+			this.time=time;
+		}
+	}
+
+	private static class Building {
+		private ConcurrentHashMap<String,Entry> entries=new ConcurrentHashMap<String,Entry>();
+		//0 until the building has been loaded from storage
+		private volatile long loadedAt;
+	}
+
+	private long ttlMillis;
+	private LinkedHashMap<String,Building> buildings;
+
+	//an unbounded summary whose buildings stay loaded, for a backend that loads every building up front
+	public LatestResultSummary() {
+		this(0,0);
+	}
+
+	//ttlMillis or maxBuildings of 0 disable the time to live or the bound
+	public LatestResultSummary(long ttlMillis,int maxBuildings) {
+		this.ttlMillis=ttlMillis;
+		buildings=new LinkedHashMap<String,Building>(16,0.75f,true) {
+			protected boolean removeEldestEntry(Map.Entry<String,Building> eldest) {
+				return maxBuildings>0 && size()>maxBuildings;
+			}
+		};
+	}
+
+	private Building building(String uprn,boolean create) {
+		synchronized (buildings) {
+			Building building=buildings.get(uprn);
+			if (building==null && create) {
+				building=new Building();
+				buildings.put(uprn,building);
+			}
+			return building;
+		}
+	}
+
+	private static String key(String uid,String reference) {
+		return uid+"\n"+reference;
+	}
+
+	//records a result if it is newer than the one already held for the same check and reference
+	public void update(String uprn,String uid,String reference,String result,LocalDateTime time) {
+		if (result==null || time==null) return;
+		Entry entry=new Entry(reference,uid,result,time);
+		building(uprn,true).entries.merge(key(uid,reference),entry,(a,b) -> b.time.isAfter(a.time) ? b : a);
+	}
+
+	//false once the load has outlived the time to live, the entries already held are kept and merged with the reload
+	public boolean isLoaded(String uprn) {
+		Building building=building(uprn,false);
+		if (building==null || building.loadedAt==0) return false;
+		return ttlMillis<=0 || System.currentTimeMillis()-building.loadedAt<ttlMillis;
+	}
+
+	public void markLoaded(String uprn) {
+		building(uprn,true).loadedAt=System.currentTimeMillis();
+	}
+
+	public List<ComplianceCheckResultIndexItem> get(String uprn) {
+		List<ComplianceCheckResultIndexItem> results=new ArrayList<ComplianceCheckResultIndexItem>();
+		Building building=building(uprn,false);
+		if (building==null) return results;
+		for (Entry e: building.entries.values()) results.add(new ComplianceCheckResultIndexItem(e.reference,e.uid,e.result,e.time));
+		return results;
+	}
+
+	public void rename(String oldUPRN,String newUPRN) {
+		Building building;
+		synchronized (buildings) {
+			building=buildings.remove(oldUPRN);
+		}
+		if (building!=null) {
+			for (Entry e: building.entries.values()) update(newUPRN,e.uid,e.reference,e.result,e.time);
+		}
+		//the new building may already have had results of its own, so it is reloaded on next use
+		Building renamed=building(newUPRN,false);
+		if (renamed!=null) renamed.loadedAt=0;
+	}
+}
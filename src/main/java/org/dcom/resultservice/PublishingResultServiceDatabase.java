@@ -0,0 +1,77 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+* Passes the results accepted by the ResultServiceDatabase it wraps to a ResultEventHub, so that event streams see each upload as soon as it is stored.
+*/
+public class PublishingResultServiceDatabase implements ResultServiceDatabase {
+
+	private ResultServiceDatabase delegate;
+	private ResultEventHub hub;
+
+	public PublishingResultServiceDatabase(ResultServiceDatabase delegate,ResultEventHub hub) {
+		this.delegate=delegate;
+		this.hub=hub;
+	}
+
+	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn) {
+		return delegate.getComplianceChecks(uprn);
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+		delegate.updateUPRN(oldUPRN,newUPRN);
+	}
+
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit) {
+		return delegate.getResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit);
+	}
+
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+		delegate.streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,consumer);
+	}
+
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window) {
+		return delegate.summariseResults(uprn,checkId,start,end,window);
+	}
+
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		LocalDateTime conditionsTime=delegate.addResults(uprn,checkId,results,conditions);
+		//only results the database accepted are published, a refused upload throws before this point. They carry the times a read of the history gives them
+		List<ComplianceCheckResultItem> stored=new ArrayList<ComplianceCheckResultItem>(results.size());
+		for (ComplianceCheckResultItem item: results) stored.add(new ComplianceCheckResultItem(item.getReference(),delegate.storedTime(item.getTime()),item.getReasons(),item.getAttributation(),item.getResult(),item.getSupportingFileData(),item.getSupportingFileContentType()));
+		if (!stored.isEmpty()) hub.publish(uprn,checkId,stored);
+		return conditionsTime;
+	}
+
+	public LocalDateTime storedTime(LocalDateTime time) {
+		return delegate.storedTime(time);
+	}
+
+	public void close() {
+		delegate.close();
+	}
+}
@@ -0,0 +1,41 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Response;
+
+/**
+* Answers requests that need the database with 503 while the service is still starting, leaving the service information, /ready and /metrics available.
+*/
+public class ReadinessFilter implements ContainerRequestFilter {
+
+	private ResultServiceStartup startup;
+
+	public ReadinessFilter(ResultServiceStartup startup) {
+		this.startup=startup;
+	}
+
+	public void filter(ContainerRequestContext request) {
+		if (startup.isReady()) return;
+		String path=request.getUriInfo().getPath().replaceAll("^/+|/+$","");
+		if (path.isEmpty() || path.equals("ready") || path.equals("metrics")) return;
+		request.abortWith(Response.status(503).header("Retry-After","5").build());
+	}
+}
@@ -0,0 +1,216 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.resultservice.metrics.ResultServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+/**
+* Runs the database bound requests of the API away from the container's worker threads, so that slow history reads cannot use up the connector and stall cheap requests.
+* Each route has its own limit on requests in progress. A request over the limit waits its turn, and gets 503 if it has not started within the route's timeout or if too many of the route's requests are already waiting.
+* Requests run on virtual threads where the runtime has them and otherwise on a bounded pool.
+*/
+public class RequestExecutor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( RequestExecutor.class );
+
+	public static final String INDEX="index";
+	public static final String HISTORY="history";
+	public static final String INGEST="ingest";
+	public static final String UPDATE="update";
+
+	/**
+	* The limit and counters of one group of API methods.
+	*/
+	private static class Route {
+		private Semaphore permits;
+		private int concurrency;
+		private long timeoutMillis;
+		//requests waiting for a permit, oldest first, taken by whichever thread next finds a permit free
+		private ConcurrentLinkedQueue<Pending> waiting=new ConcurrentLinkedQueue<Pending>();
+		private AtomicInteger waitingCount=new AtomicInteger();
+		private LongAdder busy=new LongAdder();
+		private LongAdder timeouts=new LongAdder();
+
+		private Route(int concurrency,long timeoutMillis) {
+			permits=new Semaphore(concurrency);
+			this.concurrency=concurrency;
+			this.timeoutMillis=timeoutMillis;
+		}
+	}
+
+	/**
+	* One request, answered by whichever of the worker and the timeout claims it first.
+	*/
+	private class Pending implements Runnable {
+		private Route route;
+		private AsyncResponse response;
+		private Callable<Response> request;
+		private AtomicBoolean started=new AtomicBoolean(false);
+
+		private Pending(Route route,AsyncResponse response,Callable<Response> request) {
+			this.route=route;
+			this.response=response;
+			this.request=request;
+		}
+
+		//runs holding a permit of the route
+		public void run() {
+			try {
+				//nobody is waiting for a request that has timed out
+				if (!started.compareAndSet(false,true)) return;
+				response.setTimeout(0,TimeUnit.MILLISECONDS);
+				response.resume(request.call());
+			} catch (Throwable e) {
+				response.resume(e);
+			} finally {
+				route.permits.release();
+				dispatch(route);
+			}
+		}
+
+		private void timeout(AsyncResponse r) {
+			if (started.compareAndSet(false,true)) {
+				if (route.waiting.remove(this)) route.waitingCount.decrementAndGet();
+				route.timeouts.increment();
+				r.resume(Response.status(503).build());
+			} else {
+				//the request is running, a handler that does nothing would let the container answer 503
+				r.setTimeout(route.timeoutMillis,TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void refuse() {
+			if (!started.compareAndSet(false,true)) return;
+			route.busy.increment();
+			response.resume(Response.status(503).build());
+		}
+	}
+
+	private ExecutorService executor;
+	private int maxWaiting;
+	private Map<String,Route> routes=new ConcurrentHashMap<String,Route>();
+
+	/**
+	* @param threads the size of the pool when virtual threads are not used
+	* @param queueSize the requests of each route that may wait to start before further requests of the route are refused
+	*/
+	public RequestExecutor(int threads,int queueSize,boolean virtualThreads) {
+		maxWaiting=queueSize;
+		executor=virtualThreads ? newVirtualThreadExecutor() : null;
+		if (executor==null) {
+			AtomicInteger count=new AtomicInteger();
+			executor=new ThreadPoolExecutor(threads,threads,60,TimeUnit.SECONDS,new ArrayBlockingQueue<Runnable>(queueSize),r -> {
+				Thread t=new Thread(r,"resultservice-request-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+			((ThreadPoolExecutor)executor).allowCoreThreadTimeOut(true);
+		}
+	}
+
+	//virtual threads arrived in Java 21, the service is built for Java 11 so they are looked up by reflection
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			ExecutorService executor=(ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			LOGGER.info("Running requests on virtual threads");
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	//the executor set up from the environment, with a route for each group of API methods
+	public static RequestExecutor fromConfiguration() {
+		RequestExecutor requestExecutor=new RequestExecutor(ResultServiceConfiguration.getInt("DCOM_ResultService_RequestThreads",64),ResultServiceConfiguration.getInt("DCOM_ResultService_RequestQueue",1000),ResultServiceConfiguration.getBoolean("DCOM_ResultService_VirtualThreads",true));
+		requestExecutor.addRoute(INDEX,ResultServiceConfiguration.getInt("DCOM_ResultService_IndexConcurrency",32),ResultServiceConfiguration.getLong("DCOM_ResultService_IndexTimeoutSeconds",10)*1000);
+		requestExecutor.addRoute(HISTORY,ResultServiceConfiguration.getInt("DCOM_ResultService_HistoryConcurrency",16),ResultServiceConfiguration.getLong("DCOM_ResultService_HistoryTimeoutSeconds",60)*1000);
+		requestExecutor.addRoute(INGEST,ResultServiceConfiguration.getInt("DCOM_ResultService_IngestConcurrency",16),ResultServiceConfiguration.getLong("DCOM_ResultService_IngestTimeoutSeconds",120)*1000);
+		requestExecutor.addRoute(UPDATE,ResultServiceConfiguration.getInt("DCOM_ResultService_UpdateConcurrency",4),ResultServiceConfiguration.getLong("DCOM_ResultService_UpdateTimeoutSeconds",60)*1000);
+		return requestExecutor;
+	}
+
+	public void addRoute(String name,int concurrency,long timeoutMillis) {
+		Route route=new Route(concurrency,timeoutMillis);
+		routes.put(name,route);
+		ResultServiceMetrics metrics=ResultServiceMetrics.get();
+		metrics.gauge("resultservice_requests_in_progress","Requests running or waiting on the request executor",() -> route.concurrency-route.permits.availablePermits()+route.waitingCount.get(),"route",name);
+		metrics.counter("resultservice_requests_refused_total","Requests answered with 503 by the request executor",route.busy::sum,"route",name,"reason","busy");
+		metrics.counter("resultservice_requests_refused_total","Requests answered with 503 by the request executor",route.timeouts::sum,"route",name,"reason","timeout");
+	}
+
+	/**
+	* Runs the request on the executor once the route has a permit free and resumes the response with its result. The permit of the route is held until the response has been written, so a streamed history counts against the limit until it is complete.
+	* The timeout covers only the time the request waits to start. Once it has started it runs to completion, so an upload is never answered while its body is still being read and stored.
+	*/
+	public void submit(String name,AsyncResponse response,Callable<Response> request) {
+		Route route=routes.get(name);
+		if (route==null) throw new IllegalArgumentException("Unknown route "+name);
+		if (route.waitingCount.incrementAndGet()>maxWaiting) {
+			route.waitingCount.decrementAndGet();
+			route.busy.increment();
+			response.resume(Response.status(503).build());
+			return;
+		}
+		Pending pending=new Pending(route,response,request);
+		response.setTimeoutHandler(pending::timeout);
+		response.setTimeout(route.timeoutMillis,TimeUnit.MILLISECONDS);
+		route.waiting.add(pending);
+		dispatch(route);
+	}
+
+	//starts waiting requests while the route has permits free, called whenever a request is queued or a permit released so none is left waiting beside a free permit
+	private void dispatch(Route route) {
+		while (!route.waiting.isEmpty() && route.permits.tryAcquire()) {
+			Pending pending=route.waiting.poll();
+			if (pending==null) {
+				//taken by another thread or timed out, the queue is checked again
+				route.permits.release();
+				continue;
+			}
+			route.waitingCount.decrementAndGet();
+			try {
+				executor.execute(pending);
+			} catch (RejectedExecutionException e) {
+				route.permits.release();
+				pending.refuse();
+			}
+		}
+	}
+
+	public void close() {
+		executor.shutdown();
+	}
+}
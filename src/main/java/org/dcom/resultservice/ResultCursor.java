@@ -0,0 +1,68 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Base64;
+
+/**
+* The position of the last result on a page of results. Results are returned newest first, ordered by time and then document reference, so the next page holds everything strictly before this position.
+* Clients receive the cursor as an opaque string and hand it back unchanged.
+*/
+public class ResultCursor {
+
+	private Instant time;
+	private String reference;
+
+	public ResultCursor(Instant time,String reference) {
+		this.time=time;
+		this.reference=reference;
+	}
+
+	public static ResultCursor after(ComplianceCheckResultItem item) {
+		return new ResultCursor(item.getTime().atZone(ZoneId.systemDefault()).toInstant(),item.getReference());
+	}
+
+	public Instant getTime() {
+		return time;
+	}
+
+	public String getReference() {
+		return reference;
+	}
+
+	public String encode() {
+		String value=time.getEpochSecond()+"."+time.getNano()+"\n"+reference;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	//throws IllegalArgumentException if the value was not produced by encode
+	public static ResultCursor decode(String value) {
+		try {
+			String decoded=new String(Base64.getUrlDecoder().decode(value),StandardCharsets.UTF_8);
+			int split=decoded.indexOf('\n');
+			String[] time=decoded.substring(0,split).split("\\.");
+			return new ResultCursor(Instant.ofEpochSecond(Long.parseLong(time[0]),Long.parseLong(time[1])),decoded.substring(split+1));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+/**
+* Pushes new results to the server sent event streams of the API. Publishing only renders each result once per access level and places it on the queue of every matching subscriber, the events are written to the connections by a small pool so an upload never waits on a client.
+* Each subscriber has at most one send in flight and the pool never waits for it to complete, the next event is sent when it does, so a slow connection does not hold a sender from the other subscribers.
+* A subscriber whose queue fills up is too slow to keep up and is disconnected, it can reconnect and read what it missed from the history.
+*/
+public class ResultEventHub {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( ResultEventHub.class );
+	//a subscriber whose connection takes longer than this to accept one event is disconnected by the heartbeat
+	private static final long SEND_TIMEOUT_MILLIS=10000;
+
+	/**
+	* One open event stream, for a building or a single compliance check of it.
+	*/
+	private class Subscriber {
+		private String uprn;
+		private String checkId;
+		private int level;
+		private SseEventSink sink;
+		private long opened=System.currentTimeMillis();
+		private ArrayBlockingQueue<OutboundSseEvent> queue;
+		private AtomicBoolean scheduled=new AtomicBoolean(false);
+		//when the event being sent was handed to the sink, 0 while nothing is being sent
+		private volatile long sendingSince=0;
+
+		private Subscriber(String uprn,String checkId,int level,SseEventSink sink) {
+			this.uprn=uprn;
+			this.checkId=checkId;
+			this.level=level;
+			this.sink=sink;
+			queue=new ArrayBlockingQueue<OutboundSseEvent>(queueSize);
+		}
+	}
+
+	private volatile Sse sse;
+	private int queueSize;
+	private int maxSubscribers;
+	private long maxAgeMillis;
+	private Map<String,Set<Subscriber>> subscribers=new ConcurrentHashMap<String,Set<Subscriber>>();
+	private AtomicInteger count=new AtomicInteger();
+	private ExecutorService senders;
+	private ScheduledExecutorService heartbeat;
+
+	private LongAdder published=new LongAdder();
+	private LongAdder disconnected=new LongAdder();
+
+	/**
+	* @param queueSize the events that may wait for one subscriber before it is disconnected as too slow
+	* @param maxAgeMillis how long a stream stays open, after which the client reconnects and its token is checked again
+	*/
+	public ResultEventHub(int queueSize,int maxSubscribers,int threads,long maxAgeMillis) {
+		this.queueSize=queueSize;
+		this.maxSubscribers=maxSubscribers;
+		this.maxAgeMillis=maxAgeMillis;
+		AtomicInteger threadCount=new AtomicInteger();
+		senders=Executors.newFixedThreadPool(threads,r -> {
+			Thread t=new Thread(r,"resultservice-events-"+threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	//sends a comment to every subscriber now and then, which finds connections the client has closed, and ends streams that have reached their maximum age or whose send has stalled
+	public void start(long heartbeatSeconds) {
+		heartbeat=Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t=new Thread(r,"resultservice-events-heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		heartbeat.scheduleWithFixedDelay(() -> {
+			try {
+				if (sse==null) return;
+				OutboundSseEvent ping=sse.newEventBuilder().comment("").build();
+				long now=System.currentTimeMillis();
+				for (Set<Subscriber> building: subscribers.values()) {
+					for (Subscriber s: building) {
+						if (now-s.opened>maxAgeMillis) {
+							remove(s);
+						} else if (s.sendingSince!=0 && now-s.sendingSince>SEND_TIMEOUT_MILLIS) {
+							//a sink that writes in the sending thread does not return to time out itself, closing it frees the thread
+							LOGGER.debug("Disconnecting stalled event subscriber for "+s.uprn);
+							remove(s);
+						} else {
+							offer(s,ping);
+						}
+					}
+				}
+			} catch (Exception e) {
+				LOGGER.warn("Could not send event heartbeat: "+e.getMessage());
+			}
+		},heartbeatSeconds,heartbeatSeconds,TimeUnit.SECONDS);
+	}
+
+	public void close() {
+		if (heartbeat!=null) heartbeat.shutdownNow();
+		senders.shutdownNow();
+		for (Set<Subscriber> building: subscribers.values()) {
+			for (Subscriber s: building) remove(s);
+		}
+	}
+
+	/**
+	* Streams the new results of a building, or of one of its checks when checkId is not null, to the sink.
+	* @return false if the hub already holds its maximum number of subscribers
+	*/
+	public boolean subscribe(String uprn,String checkId,int level,SseEventSink sink,Sse sse) {
+		if (count.incrementAndGet()>maxSubscribers) {
+			count.decrementAndGet();
+			return false;
+		}
+		this.sse=sse;
+		Subscriber subscriber=new Subscriber(uprn,checkId,level,sink);
+		//added inside compute so that it cannot race with the removal of an empty set
+		subscribers.compute(uprn,(k,v) -> {
+			if (v==null) v=new CopyOnWriteArraySet<Subscriber>();
+			v.add(subscriber);
+			return v;
+		});
+		return true;
+	}
+
+	public void publish(String uprn,String checkId,List<ComplianceCheckResultItem> results) {
+		Set<Subscriber> building=subscribers.get(uprn);
+		if (building==null || building.isEmpty() || sse==null) return;
+		//each result is rendered once for every access level that is listening
+		List<List<OutboundSseEvent>> events=new ArrayList<List<OutboundSseEvent>>();
+		for (int level=0;level<=4;level++) events.add(null);
+		for (Subscriber s: building) {
+			if (s.checkId!=null && !s.checkId.equals(checkId)) continue;
+			List<OutboundSseEvent> rendered=events.get(s.level);
+			if (rendered==null) {
+				rendered=render(checkId,results,s.level);
+				events.set(s.level,rendered);
+			}
+			for (OutboundSseEvent event: rendered) {
+				if (!offer(s,event)) break;
+			}
+		}
+		published.add(results.size());
+	}
+
+	private List<OutboundSseEvent> render(String checkId,List<ComplianceCheckResultItem> results,int level) {
+		List<OutboundSseEvent> rendered=new ArrayList<OutboundSseEvent>(results.size());
+		for (ComplianceCheckResultItem item: results) {
+			String data="{\"complianceCheckUID\":\""+checkId.replace("\\","\\\\").replace("\"","\\\"")+"\",\"result\":"+forLevel(item,level).toJSON()+"}";
+			rendered.add(sse.newEventBuilder().name("result").mediaType(MediaType.APPLICATION_JSON_TYPE).data(String.class,data).build());
+		}
+		return rendered;
+	}
+
+	//the part of a result a subscriber at the given access level may see, as the databases return it
+	private static ComplianceCheckResultItem forLevel(ComplianceCheckResultItem item,int level) {
+		if (level<2) return item;
+		List<String> reasons=new ArrayList<String>();
+		List<String> supportingFileData=new ArrayList<String>();
+		List<String> supportingFileContentType=new ArrayList<String>();
+		if (level<3) {
+			if (item.getReasons()!=null) reasons.addAll(item.getReasons());
+			if (item.getSupportingFileData()!=null) supportingFileData.addAll(item.getSupportingFileData());
+			if (item.getSupportingFileContentType()!=null) supportingFileContentType.addAll(item.getSupportingFileContentType());
+		}
+		return new ComplianceCheckResultItem(item.getReference(),item.getTime(),reasons,"",item.getResult()==null ? "" : item.getResult(),supportingFileData,supportingFileContentType);
+	}
+
+	//queues an event without blocking, disconnecting a subscriber that has fallen too far behind
+	private boolean offer(Subscriber s,OutboundSseEvent event) {
+		if (!s.queue.offer(event)) {
+			LOGGER.debug("Disconnecting slow event subscriber for "+s.uprn);
+			remove(s);
+			return false;
+		}
+		if (s.scheduled.compareAndSet(false,true)) schedule(s);
+		return true;
+	}
+
+	//sends queued events while their sends complete at once, returning once a send is left pending, the rest are sent when it completes
+	private void drain(Subscriber s) {
+		try {
+			OutboundSseEvent event;
+			while ((event=s.queue.poll())!=null) {
+				if (s.sink.isClosed()) {
+					s.scheduled.set(false);
+					remove(s);
+					return;
+				}
+				s.sendingSince=System.currentTimeMillis();
+				CompletableFuture<?> sent=s.sink.send(event).toCompletableFuture();
+				if (!sent.isDone()) {
+					sent.whenComplete((r,e) -> {
+						s.sendingSince=0;
+						if (e!=null) {
+							s.scheduled.set(false);
+							remove(s);
+						} else {
+							schedule(s);
+						}
+					});
+					return;
+				}
+				s.sendingSince=0;
+				sent.join();
+			}
+		} catch (Exception e) {
+			s.sendingSince=0;
+			s.scheduled.set(false);
+			remove(s);
+			return;
+		}
+		s.scheduled.set(false);
+		//an event queued after the queue was found empty but before the flag was cleared
+		if (!s.queue.isEmpty() && s.scheduled.compareAndSet(false,true)) schedule(s);
+	}
+
+	//continues draining on the pool, never on the thread that completed a send
+	private void schedule(Subscriber s) {
+		try {
+			senders.execute(() -> drain(s));
+		} catch (RejectedExecutionException e) {
+			//the hub is closing
+			s.scheduled.set(false);
+		}
+	}
+
+	private void remove(Subscriber s) {
+		Set<Subscriber> building=subscribers.get(s.uprn);
+		if (building==null || !building.remove(s)) return;
+		count.decrementAndGet();
+		disconnected.increment();
+		s.queue.clear();
+		try {
+			s.sink.close();
+		} catch (Exception e) {
+			//the client has already gone
+		}
+		subscribers.computeIfPresent(s.uprn,(k,v) -> v.isEmpty() ? null : v);
+	}
+
+	public int getSubscribers() {
+		return count.get();
+	}
+
+	public long getPublished() {
+		return published.sum();
+	}
+
+	public long getDisconnected() {
+		return disconnected.sum();
+	}
+}
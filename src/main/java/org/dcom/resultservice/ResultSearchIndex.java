@@ -0,0 +1,194 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+* An inverted index of the text of the results of one compliance check. Each term maps to the results containing it, recording which fields it came from so that a search never matches text the caller is not allowed to see.
+* Terms are held sorted so that prefix queries are a range lookup.
+*/
+public class ResultSearchIndex {
+
+	public static final int REFERENCE=1;
+	public static final int CONDITIONS=2;
+	public static final int REASONS=4;
+	public static final int ATTRIBUTION=8;
+
+	/**
+	* Identifies one result within a check by its time and document reference.
+	*/
+	public static class Match {
+		private LocalDateTime time;
+		private String reference;
+
+		public Match(LocalDateTime time,String reference) {
+			this.time=time;
+			this.reference=reference;
+		}
+
+		public static Match of(ComplianceCheckResultItem item) {
+			return new Match(item.getTime(),item.getReference());
+		}
+
+		public LocalDateTime getTime() {
+			return time;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Match)) return false;
+			Match m=(Match)o;
+			return time.equals(m.time) && Objects.equals(reference,m.reference);
+		}
+
+		public int hashCode() {
+			return Objects.hash(time,reference);
+		}
+	}
+
+	private TreeMap<String,Map<Match,Integer>> postings=new TreeMap<String,Map<Match,Integer>>();
+	private ReadWriteLock lock=new ReentrantReadWriteLock();
+	//0 until the history has been read into the index
+	private volatile long expires=0;
+
+	//the fields a caller at the given access level may search
+	public static int visibleFields(int level) {
+		int fields=REFERENCE|CONDITIONS;
+		if (level<3) fields|=REASONS;
+		if (level<2) fields|=ATTRIBUTION;
+		return fields;
+	}
+
+	public static String[] tokenize(String text) {
+		if (text==null) return new String[0];
+		String normalised=text.toLowerCase().replaceAll("[^\\p{L}\\p{N}*]+"," ").trim();
+		if (normalised.isEmpty()) return new String[0];
+		return normalised.split(" ");
+	}
+
+	//indexes a result as read back from the database
+	public void add(ComplianceCheckResultItem item) {
+		add(Match.of(item),item);
+	}
+
+	//indexes a result under the given match, for one whose time as read back differs from the time it was uploaded with
+	public void add(Match match,ComplianceCheckResultItem item) {
+		lock.writeLock().lock();
+		try {
+			addText(match,item.getReference(),REFERENCE);
+			//the conditions of an upload are stored as a result of their own, so when read back their text is condition text
+			int reasonField="conditions".equals(item.getReference()) ? CONDITIONS : REASONS;
+			if (item.getReasons()!=null) for (String r: item.getReasons()) addText(match,r,reasonField);
+			addText(match,item.getAttributation(),ATTRIBUTION);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	//indexes the conditions of an upload as the record they are stored as
+	public void addConditions(LocalDateTime time,List<String> conditions) {
+		Match match=new Match(time,"conditions");
+		lock.writeLock().lock();
+		try {
+			addText(match,"conditions",REFERENCE);
+			for (String c: conditions) addText(match,c,CONDITIONS);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void addText(Match match,String text,int field) {
+		for (String term: tokenize(text)) {
+			term=term.replace("*","");
+			if (term.isEmpty()) continue;
+			postings.computeIfAbsent(term,k -> new HashMap<Match,Integer>()).merge(match,field,(a,b) -> a|b);
+		}
+	}
+
+	//returns the results containing every term of the query, a term ending in * matches any term with that prefix
+	public Set<Match> search(String query,int fields) {
+		Set<Match> result=null;
+		lock.readLock().lock();
+		try {
+			for (String term: tokenize(query)) {
+				Set<Match> termMatches=new HashSet<Match>();
+				if (term.endsWith("*")) {
+					String prefix=term.replace("*","");
+					if (prefix.isEmpty()) continue;
+					for (Map<Match,Integer> p: postings.subMap(prefix,prefix+Character.MAX_VALUE).values()) collect(p,fields,result,termMatches);
+				} else {
+					Map<Match,Integer> p=postings.get(term.replace("*",""));
+					if (p!=null) collect(p,fields,result,termMatches);
+				}
+				result=termMatches;
+				if (result.isEmpty()) break;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result==null ? Collections.emptySet() : result;
+	}
+
+	//adds the visible postings, restricted to the matches of the previous terms so the work is bounded by the smaller set
+	private static void collect(Map<Match,Integer> posting,int fields,Collection<Match> restrictTo,Set<Match> into) {
+		if (restrictTo!=null && restrictTo.size()<posting.size()) {
+			for (Match m: restrictTo) {
+				Integer f=posting.get(m);
+				if (f!=null && (f&fields)!=0) into.add(m);
+			}
+		} else {
+			for (Map.Entry<Match,Integer> e: posting.entrySet()) {
+				if ((e.getValue()&fields)!=0 && (restrictTo==null || restrictTo.contains(e.getKey()))) into.add(e.getKey());
+			}
+		}
+	}
+
+	public boolean isLoaded() {
+		return expires!=0;
+	}
+
+	//true once the index is older than the expiry given when it was loaded, and should be built again
+	public boolean isExpired() {
+		return expires!=0 && System.currentTimeMillis()>=expires;
+	}
+
+	public void markLoaded(long expires) {
+		this.expires=expires;
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return postings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
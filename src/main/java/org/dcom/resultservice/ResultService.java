@@ -26,11 +26,18 @@ import org.glassfish.jersey.server.ResourceConfig;
 import org.dcom.core.servicehelper.ServiceBaseInfo;
 import javax.ws.rs.ApplicationPath;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
 import org.dcom.core.servicehelper.UserAuthorisationValidator;
 import org.dcom.core.servicehelper.KeycloakUserAuthorisationValidator;
 import org.dcom.core.servicehelper.CORSFilter;
 import org.dcom.core.services.ServiceLookup;
 import org.dcom.resultservice.influxdb.InfluxDBResultServiceDatabase;
+import org.dcom.resultservice.influxdb.InfluxDBWriteAheadLog;
+import org.dcom.resultservice.influxdb.InfluxDBWritePipeline;
+import org.dcom.resultservice.metrics.MetricsFilter;
+import org.dcom.resultservice.metrics.ResultServiceMetrics;
+import org.dcom.resultservice.local.LocalResultServiceDatabase;
 
 /**
 * The startup class of the result service, this configures, sets global variables and then starts the restful web service.
@@ -41,25 +48,48 @@ public class ResultService extends ResourceConfig {
     private static final Logger LOGGER = LoggerFactory.getLogger( ResultService.class );
 
     public ResultService() {
-        //creat the service certificate
+        //only the configuration is checked here, connecting to the database and the service lookup happens in the background so the service starts at once
         if (!DCOM.checkDCOMCertificatePassword() || !DCOM.checkDCOMCertificatePath()) {
           LOGGER.error("Certificate Variables Not Defined");
           System.exit(0);
         }
-        ServiceCertificate myCert=null;
-        try {
-          myCert=new ServiceCertificate(new File(DCOM.getDCOMCertificatePath()),DCOM.getDCOMCertificatePassword());
-        } catch (Exception e) {
-          e.printStackTrace();
-          System.exit(1);
+        boolean local=ResultServiceConfiguration.getString("DCOM_ResultService_Backend","influxdb").equals("local");
+        if (local && !DCOM.existsEnvironmentVariable("DCOM_ResultService_LocalPath")) {
+          LOGGER.error("Local Storage Path Not Defined");
+          System.exit(0);
         }
-
-        //create the database connection
-        if (!DCOM.existsEnvironmentVariable("DCOM_ResultService_InfluxDBURL") || !DCOM.existsEnvironmentVariable("DCOM_ResultService_InfluxDBUsername") || !DCOM.existsEnvironmentVariable("DCOM_ResultService_InfluxDBPassword") || !DCOM.existsEnvironmentVariable("DCOM_ResultService_InfluxDBDatabase")) {
+        if (!local && (!DCOM.existsEnvironmentVariable("DCOM_ResultService_InfluxDBURL") || !DCOM.existsEnvironmentVariable("DCOM_ResultService_InfluxDBUsername") || !DCOM.existsEnvironmentVariable("DCOM_ResultService_InfluxDBPassword") || !DCOM.existsEnvironmentVariable("DCOM_ResultService_InfluxDBDatabase"))) {
           LOGGER.error("InfluxDB Connection Variables Not Defined");
           System.exit(0);
         }
-        final ResultServiceDatabase database=new InfluxDBResultServiceDatabase(DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBURL"),DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxBUsername"),DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBPassword"),DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBDatabase"));
+        //re-key jobs of the single bucket layout must survive a restart, which a temporary directory may not
+        if (!local && ResultServiceConfiguration.getString("DCOM_ResultService_StorageLayout","bucket").equals("single") && !DCOM.existsEnvironmentVariable("DCOM_ResultService_JobPath")) {
+          LOGGER.error("Job Path Not Defined For The Single Bucket Layout");
+          System.exit(0);
+        }
+
+        //the database connection is set once it has been made
+        final DeferredResultServiceDatabase connection=new DeferredResultServiceDatabase();
+        ResultServiceDatabase backend=connection;
+        backend=new SearchingResultServiceDatabase(backend,ResultServiceConfiguration.getInt("DCOM_ResultService_SearchIndexChecks",10000),ResultServiceConfiguration.getLong("DCOM_ResultService_SearchIndexSeconds",60)*1000,ResultServiceConfiguration.getLong("DCOM_ResultService_ResultCacheSettleMillis",5000));
+        int resultCacheSize=ResultServiceConfiguration.getInt("DCOM_ResultService_ResultCacheSize",1000);
+        if (resultCacheSize>0) {
+          CachingResultServiceDatabase cache=new CachingResultServiceDatabase(backend,resultCacheSize,ResultServiceConfiguration.getInt("DCOM_ResultService_ResultCacheMaxItems",5000),ResultServiceConfiguration.getLong("DCOM_ResultService_ResultCacheSeconds",30)*1000,ResultServiceConfiguration.getLong("DCOM_ResultService_ResultCacheSettleMillis",5000));
+          ResultServiceMetrics metrics=ResultServiceMetrics.get();
+          metrics.counter("resultservice_cache_hits_total","Cache lookups answered from memory",cache::getHits,"cache","result");
+          metrics.counter("resultservice_cache_misses_total","Cache lookups that went to the source",cache::getMisses,"cache","result");
+          metrics.counter("resultservice_cache_evictions_total","Result cache entries dropped to make room",cache::getEvictions);
+          metrics.counter("resultservice_cache_invalidations_total","Result cache entries removed by writes",cache::getInvalidations);
+          metrics.gauge("resultservice_cache_entries","Entries held in a cache",cache::size,"cache","result");
+          backend=cache;
+        }
+        final ResultEventHub eventHub=new ResultEventHub(ResultServiceConfiguration.getInt("DCOM_ResultService_EventQueueSize",1000),ResultServiceConfiguration.getInt("DCOM_ResultService_EventSubscribers",1000),ResultServiceConfiguration.getInt("DCOM_ResultService_EventThreads",4),ResultServiceConfiguration.getLong("DCOM_ResultService_EventMaxSeconds",3600)*1000);
+        eventHub.start(ResultServiceConfiguration.getLong("DCOM_ResultService_EventHeartbeatSeconds",30));
+        ResultServiceMetrics.get().gauge("resultservice_event_subscribers","Open result event streams",eventHub::getSubscribers);
+        ResultServiceMetrics.get().counter("resultservice_events_published_total","Results published to event streams",eventHub::getPublished);
+        ResultServiceMetrics.get().counter("resultservice_event_streams_closed_total","Event streams closed because the client went away, fell behind or reached the maximum age",eventHub::getDisconnected);
+        backend=new PublishingResultServiceDatabase(backend,eventHub);
+        final ResultServiceDatabase database=new TimedResultServiceDatabase(backend);
 
         //create base service info
         final ServiceBaseInfo serviceBaseInfo=new ServiceBaseInfo(ServiceBaseInfo.NAME,ServiceBaseInfo.DESCRIPTION,ServiceBaseInfo.OPERATOR,ServiceBaseInfo.SECURITY_SERVICE_TYPE,ServiceBaseInfo.SECURITY_SERVICE_URI,ServiceBaseInfo.HOSTNAME,ServiceBaseInfo.PORT);
@@ -75,12 +105,44 @@ public class ResultService extends ResourceConfig {
         } 
     
 
-        LOGGER.info("Registering to Service Lookup");
-        ServiceLookup serviceLookup=DCOM.getServiceLookup();
-        serviceLookup.registerMyself(ServiceLookup.RESULTSERVICE,serviceBaseInfo.getProperty(ServiceBaseInfo.NAME),serviceBaseInfo.getProperty(ServiceBaseInfo.HOSTNAME),Integer.parseInt(serviceBaseInfo.getProperty(ServiceBaseInfo.PORT)),myCert.generateBearerToken());
+        final ResultServiceStartup startup=new ResultServiceStartup(ResultServiceConfiguration.getLong("DCOM_ResultService_StartupRetryMaxSeconds",60)*1000);
+        startup.start(() -> {
+          ResultServiceDatabase connected=local ? new LocalResultServiceDatabase(DCOM.getEnvironmentVariable("DCOM_ResultService_LocalPath"),ResultServiceConfiguration.getInt("DCOM_ResultService_LocalSegmentBytes",4*1024*1024)) : new InfluxDBResultServiceDatabase(DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBURL"),DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBUsername"),DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBPassword"),DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBDatabase"));
+          registerBackendMetrics(connected);
+          connection.set(connected);
+        },() -> {
+          ServiceCertificate myCert=new ServiceCertificate(new File(DCOM.getDCOMCertificatePath()),DCOM.getDCOMCertificatePassword());
+          ServiceLookup serviceLookup=DCOM.getServiceLookup();
+          serviceLookup.registerMyself(ServiceLookup.RESULTSERVICE,serviceBaseInfo.getProperty(ServiceBaseInfo.NAME),serviceBaseInfo.getProperty(ServiceBaseInfo.HOSTNAME),Integer.parseInt(serviceBaseInfo.getProperty(ServiceBaseInfo.PORT)),myCert.generateBearerToken());
+        });
         
         final UserAuthorisationValidator finalAuthenticator=authenticator;
+        final RuleEngineAuthoriser ruleEngineAuthoriser=new RuleEngineAuthoriser(ResultServiceConfiguration.getInt("DCOM_ResultService_AuthCacheSize",10000),ResultServiceConfiguration.getLong("DCOM_ResultService_RuleEngineTokenSeconds",300)*1000,ResultServiceConfiguration.getLong("DCOM_ResultService_RuleEngineRefreshSeconds",60)*1000);
+        ruleEngineAuthoriser.start();
+        final AuthorisationCache authorisationCache=new AuthorisationCache(authenticator,ResultServiceConfiguration.getInt("DCOM_ResultService_AuthCacheSize",10000),ResultServiceConfiguration.getLong("DCOM_ResultService_AuthCacheSeconds",60)*1000);
+        ResultServiceMetrics metrics=ResultServiceMetrics.get();
+        metrics.counter("resultservice_cache_hits_total","Cache lookups answered from memory",authorisationCache::getHits,"cache","authorisation");
+        metrics.counter("resultservice_cache_misses_total","Cache lookups that went to the source",authorisationCache::getMisses,"cache","authorisation");
+        metrics.gauge("resultservice_cache_entries","Entries held in a cache",authorisationCache::size,"cache","authorisation");
+        metrics.counter("resultservice_cache_hits_total","Cache lookups answered from memory",ruleEngineAuthoriser::getHits,"cache","rule_engine");
+        metrics.counter("resultservice_cache_misses_total","Cache lookups that went to the source",ruleEngineAuthoriser::getMisses,"cache","rule_engine");
+        metrics.gauge("resultservice_cache_entries","Entries held in a cache",ruleEngineAuthoriser::size,"cache","rule_engine");
+        final RequestExecutor requestExecutor=RequestExecutor.fromConfiguration();
         register(new CORSFilter());
+        register(new MetricsFilter());
+        register(new ReadinessFilter(startup));
+        register(new ContainerLifecycleListener() {
+          public void onStartup(Container container) {}
+          public void onReload(Container container) {}
+          public void onShutdown(Container container) {
+            LOGGER.info("Flushing pending writes");
+            startup.stop();
+            requestExecutor.close();
+            eventHub.close();
+            database.close();
+            ruleEngineAuthoriser.stop();
+          }
+        });
         register(ResultServiceAPI.class);
         register(new AbstractBinder() {
           @Override
@@ -88,7 +150,30 @@ public class ResultService extends ResourceConfig {
             bind(database).to(ResultServiceDatabase.class);
             bind(finalAuthenticator).to(UserAuthorisationValidator.class);
             bind(serviceBaseInfo).to(ServiceBaseInfo.class);
+            bind(authorisationCache).to(AuthorisationCache.class);
+            bind(ruleEngineAuthoriser).to(RuleEngineAuthoriser.class);
+            bind(requestExecutor).to(RequestExecutor.class);
+            bind(eventHub).to(ResultEventHub.class);
+            bind(startup).to(ResultServiceStartup.class);
           }
         });
     }
+
+    private static void registerBackendMetrics(ResultServiceDatabase backend) {
+        if (!(backend instanceof InfluxDBResultServiceDatabase)) return;
+        ResultServiceMetrics metrics=ResultServiceMetrics.get();
+        InfluxDBWritePipeline pipeline=((InfluxDBResultServiceDatabase)backend).getWritePipeline();
+        if (pipeline!=null) {
+          metrics.gauge("resultservice_write_queue_points","Points waiting to be written to InfluxDB",pipeline::getQueueDepth);
+          metrics.gauge("resultservice_write_queue_capacity_points","Points that may wait before uploads are refused",pipeline::getCapacity);
+          metrics.counter("resultservice_points_written_total","Points written to InfluxDB",pipeline::getPointsWritten);
+          metrics.counter("resultservice_points_dropped_total","Points dropped after repeated write failures",pipeline::getPointsDropped);
+        }
+        InfluxDBWriteAheadLog writeAheadLog=((InfluxDBResultServiceDatabase)backend).getWriteAheadLog();
+        if (writeAheadLog!=null) {
+          metrics.gauge("resultservice_wal_bytes","Bytes of the write ahead log not yet replayed into InfluxDB",writeAheadLog::getBytes);
+          metrics.counter("resultservice_points_written_total","Points written to InfluxDB",writeAheadLog::getRecordsReplayed);
+          metrics.counter("resultservice_points_dead_lettered_total","Points refused by InfluxDB and moved to the dead letter file",writeAheadLog::getRecordsDeadLettered);
+        }
+    }
 }
\ No newline at end of file
@@ -24,6 +24,7 @@ import org.dcom.core.servicehelper.ServiceBaseInfo;
 import org.dcom.core.servicehelper.UserAuthorisationValidator;
 import javax.ws.rs.GET;
 import javax.ws.rs.PUT;
+import javax.ws.rs.POST;
 import javax.ws.rs.PATCH;
 import javax.ws.rs.Produces;
 import javax.ws.rs.Consumes;
@@ -33,27 +34,23 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 import org.dcom.core.services.ComplianceCheckResultIndexItem;
 import org.dcom.core.services.ComplianceCheckResultItem;
-import java.util.HashMap;
-import java.util.ArrayList;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
-import java.util.Map;
-import org.w3c.dom.Element;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import java.io.StringReader;
-import org.xml.sax.InputSource;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import org.dcom.core.security.ServiceCertificate;
-import org.dcom.core.services.RuleEngineService;
-import org.dcom.core.security.DCOMBearerToken;
-import org.dcom.core.DCOM;
+import java.time.format.DateTimeParseException;
 import javax.ws.rs.core.MultivaluedMap;
-import com.owlike.genson.Genson;
+import com.owlike.genson.stream.JsonStreamException;
 import java.util.List;
-import java.util.Set;
+import java.io.InputStream;
+import javax.xml.stream.XMLStreamException;
+import org.dcom.resultservice.metrics.ResultServiceMetrics;
 
 
 /**
@@ -71,8 +68,27 @@ public class ResultServiceAPI {
 
 	@Inject
 	public ServiceBaseInfo serviceInfo;
+
+	@Inject
+	public AuthorisationCache authorisationCache;
+
+	@Inject
+	public RuleEngineAuthoriser ruleEngineAuthoriser;
+
+	@Inject
+	public RequestExecutor requestExecutor;
+
+	@Inject
+	public ResultEventHub eventHub;
+
+	@Inject
+	public ResultServiceStartup startup;
 	
 	//utility functions
+	//the methods that read or write the database are run by the RequestExecutor, their synchronous forms remain for callers in the same process
+	
+	private static final int UPLOAD_BATCH_SIZE=ResultServiceConfiguration.getInt("DCOM_ResultService_UploadBatchSize",1000);
+	private static final int BULK_BUFFERED_RESULTS=ResultServiceConfiguration.getInt("DCOM_ResultService_BulkBufferedResults",20000);
 	
 	private String successMessageJSON="{\"success\":true}";
 	private String successMessageXML="<success>true</success>";
@@ -85,29 +101,25 @@ public class ResultServiceAPI {
 	//level 4 is just the top level result 
 	
 	private int authorize(String token) {
-		if (token==null) return -1;
-		if ( authenticator.validatePermission(token,"level1")) return 1;
-		if ( authenticator.validatePermission(token,"level2")) return 2;
-		if ( authenticator.validatePermission(token,"level3")) return 3;
-		if ( authenticator.validatePermission(token,"level4")) return 4;
-		return -1;
+		long start=System.nanoTime();
+		int level=authorisationCache.getLevel(token);
+		ResultServiceMetrics.get().record(ResultServiceMetrics.AUTHORISATION,System.nanoTime()-start,"kind","user","outcome",level==-1 ? "denied" : "level"+level);
+		return level;
 	}
 	
 	
 	private boolean authorizeEditor(String token) {
-		if (token==null) return false;
-		if ( authenticator.validatePermission(token,"editor")) return true;
-		return false;
+		long start=System.nanoTime();
+		boolean editor=authorisationCache.isEditor(token);
+		ResultServiceMetrics.get().record(ResultServiceMetrics.AUTHORISATION,System.nanoTime()-start,"kind","editor","outcome",editor ? "granted" : "denied");
+		return editor;
 	}
 	
 	private boolean authorizeRuleEngine(String token) {
-		token=token.replace("Bearer","").trim();
-		Set<RuleEngineService> ruleEngines=DCOM.getServiceLookup().getRuleEngines();
-		for (RuleEngineService ruleEngine: ruleEngines) {
-			ServiceCertificate cert=ruleEngine.getCertificate();
-			if (cert.checkTokenValidity(new DCOMBearerToken(token))) return true;	
-		}
-		return false;
+		long start=System.nanoTime();
+		boolean authorised=ruleEngineAuthoriser.authorize(token);
+		ResultServiceMetrics.get().record(ResultServiceMetrics.AUTHORISATION,System.nanoTime()-start,"kind","rule_engine","outcome",authorised ? "granted" : "denied");
+		return authorised;
 	}
 	
 	
@@ -125,10 +137,29 @@ public class ResultServiceAPI {
 		return  Response.ok(serviceInfo.toXML()).build();
 	}
 	
+	@GET
+	@Path("/ready")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response ready() {
+		String body="{\"ready\":"+startup.isReady()+",\"registered\":"+startup.isRegistered()+"}";
+		return  Response.status(startup.isReady() ? 200 : 503).entity(body).build();
+	}
+	
+	@GET
+	@Path("/metrics")
+	@Produces("text/plain; version=0.0.4")
+	public Response metrics() {
+		return  Response.ok(ResultServiceMetrics.get().toPrometheus()).build();
+	}
+	
 	@GET
 	@Path("/{building}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response buildingJSON(@PathParam("building") String uprn,@HeaderParam("Authorization") String token) {
+	public void buildingJSON(@PathParam("building") String uprn,@HeaderParam("Authorization") String token,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.INDEX,response,() -> buildingJSON(uprn,token));
+	}
+	
+	public Response buildingJSON(String uprn,String token) {
 			StringBuffer str=new StringBuffer();
 			int level=authorize(token);
 			if (level==-1) 	return Response.status(401).build();
@@ -147,7 +178,11 @@ public class ResultServiceAPI {
 	@GET
 	@Path("/{building}")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response buildingXML(@PathParam("building") String uprn,@HeaderParam("Authorization") String token) {
+	public void buildingXML(@PathParam("building") String uprn,@HeaderParam("Authorization") String token,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.INDEX,response,() -> buildingXML(uprn,token));
+	}
+	
+	public Response buildingXML(String uprn,String token) {
 		StringBuffer str=new StringBuffer();
 		int level=authorize(token);
 		if (level==-1) 	return Response.status(401).build();
@@ -163,7 +198,11 @@ public class ResultServiceAPI {
 	@PATCH
 	@Path("/{building}/")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response updateUPRNL(@PathParam("building") String uprn,String body,@HeaderParam("Authorization") String token) {
+	public void updateUPRNL(@PathParam("building") String uprn,String body,@HeaderParam("Authorization") String token,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.UPDATE,response,() -> updateUPRNL(uprn,body,token));
+	}
+	
+	public Response updateUPRNL(String uprn,String body,String token) {
 		if (!authorizeEditor(token)) 	return Response.status(401).build();
 		database.updateUPRN(uprn,body);
 		return  Response.ok(successMessageJSON).build();
@@ -172,49 +211,141 @@ public class ResultServiceAPI {
 	@GET
 	@Path("/{building}/all")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response buildingAllJSON(@PathParam("building") String uprn,@HeaderParam("Authorization") String token,@Context UriInfo info) {
+	public void buildingAllJSON(@PathParam("building") String uprn,@HeaderParam("Authorization") String token,@Context UriInfo info,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.HISTORY,response,() -> buildingAllJSON(uprn,token,info));
+	}
+	
+	public Response buildingAllJSON(String uprn,String token,UriInfo info) {
 			return buildingJSON(uprn,null,token,info);
 	}
 	
 	@GET
 	@Path("/{building}/all")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response buildingAllXML(@PathParam("building") String uprn,@HeaderParam("Authorization") String token,@Context UriInfo info) {
+	public void buildingAllXML(@PathParam("building") String uprn,@HeaderParam("Authorization") String token,@Context UriInfo info,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.HISTORY,response,() -> buildingAllXML(uprn,token,info));
+	}
+	
+	public Response buildingAllXML(String uprn,String token,UriInfo info) {
 		return buildingXML(uprn,null,token,info);
 	}
 	
 	@GET
-	@Path("/{building}/{complianceCheckUID}")
+	@Path("/events/{building}")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	public void buildingEvents(@PathParam("building") String uprn,@HeaderParam("Authorization") String token,@Context SseEventSink sink,@Context Sse sse) {
+		subscribe(uprn,null,token,sink,sse);
+	}
+	
+	@GET
+	@Path("/events/{building}/{complianceCheckUID}")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	public void checkEvents(@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,@HeaderParam("Authorization") String token,@Context SseEventSink sink,@Context Sse sse) {
+		subscribe(uprn,uid,token,sink,sse);
+	}
+	
+	//the streams are under a prefix of their own, as a path ending in /events would hide a compliance check with that UID
+	//the stream stays open after this returns, new results are written to it by the ResultEventHub
+	private void subscribe(String uprn,String uid,String token,SseEventSink sink,Sse sse) {
+		int level=authorize(token);
+		if (level==-1) throw new WebApplicationException(401);
+		if (!eventHub.subscribe(uprn,uid,level,sink,sse)) throw new WebApplicationException(503);
+	}
+	
+	@GET
+	@Path("/{building}/{complianceCheckUID}/summary")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response buildingJSON(@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,@HeaderParam("Authorization") String token,@Context UriInfo info) {
-		List<ComplianceCheckResultItem> results=getResults(uprn,uid,token,info);
-		StringBuffer str=new StringBuffer();
-		str.append("{ \"results\":[");
+	public void summaryJSON(@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,@HeaderParam("Authorization") String token,@Context UriInfo info,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.HISTORY,response,() -> summaryJSON(uprn,uid,token,info));
+	}
+	
+	public Response summaryJSON(String uprn,String uid,String token,UriInfo info) {
+		return summary(uprn,uid,token,info,false);
+	}
+	
+	@GET
+	@Path("/{building}/{complianceCheckUID}/summary")
+	@Produces(MediaType.APPLICATION_XML)
+	public void summaryXML(@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,@HeaderParam("Authorization") String token,@Context UriInfo info,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.HISTORY,response,() -> summaryXML(uprn,uid,token,info));
+	}
+	
+	public Response summaryXML(String uprn,String uid,String token,UriInfo info) {
+		return summary(uprn,uid,token,info,true);
+	}
+	
+	//counts of each result value per window of time, so a trend view does not need to read the whole history
+	private Response summary(String uprn,String uid,String token,UriInfo info,boolean xml) {
+		int level=authorize(token);
+		if (level==-1) 	return Response.status(401).build();
+		//level 4 callers only see the latest result of each document, not its history
+		if (level==4) 	return Response.status(403).build();
+		MultivaluedMap<String,String> queryParams=info.getQueryParameters();
+		LocalDateTime start;
+		LocalDateTime end;
+		Duration window;
+		try {
+			start=queryParams.getFirst("start")==null ? null : LocalDateTime.parse(queryParams.getFirst("start"));
+			end=queryParams.getFirst("end")==null ? null : LocalDateTime.parse(queryParams.getFirst("end"));
+			window=ResultWindow.parseWindow(queryParams.getFirst("window")==null ? "1d" : queryParams.getFirst("window"));
+		} catch (DateTimeParseException | IllegalArgumentException e) {
+			return Response.status(400).build();
+		}
+		List<ResultWindow> windows=database.summariseResults(uprn,uid,start,end,window);
+		StringBuilder str=new StringBuilder(xml ? "<ResultWindows>" : "[");
 		boolean first=true;
-		for (ComplianceCheckResultItem item: results) {
-			if (first) first=false;
-			else str.append(",");
-			str.append(item.toJSON());
+		for (ResultWindow w: windows) {
+			if (xml) {
+				str.append(w.toXML());
+			} else {
+				if (first) first=false;
+				else str.append(",");
+				str.append(w.toJSON());
+			}
 		}
-		str.append("]}");
+		str.append(xml ? "</ResultWindows>" : "]");
 		return  Response.ok(str.toString()).build();
 	}
 	
+	@GET
+	@Path("/{building}/{complianceCheckUID}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void buildingJSON(@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,@HeaderParam("Authorization") String token,@Context UriInfo info,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.HISTORY,response,() -> buildingJSON(uprn,uid,token,info));
+	}
+	
+	public Response buildingJSON(String uprn,String uid,String token,UriInfo info) {
+		return streamResults(uprn,uid,token,info,ResultStreamWriter.Format.JSON);
+	}
+	
 	
 	
 	@GET
 	@Path("/{building}/{complianceCheckUID}")
 	@Produces(MediaType.APPLICATION_XML)
-	public Response buildingXML(@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,@HeaderParam("Authorization") String token,@Context UriInfo info) {
-		List<ComplianceCheckResultItem> results=getResults(uprn,uid,token,info);
-		StringBuffer str=new StringBuffer();
-		str.append("<Results>");
-		for (ComplianceCheckResultItem item: results) str.append(item.toXML());
-		str.append("</Results>");
-		return  Response.ok(str.toString()).build();
+	public void buildingXML(@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,@HeaderParam("Authorization") String token,@Context UriInfo info,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.HISTORY,response,() -> buildingXML(uprn,uid,token,info));
 	}
 	
-	private List<ComplianceCheckResultItem> getResults(String uprn,String uid,String token,UriInfo info) {
+	public Response buildingXML(String uprn,String uid,String token,UriInfo info) {
+		return streamResults(uprn,uid,token,info,ResultStreamWriter.Format.XML);
+	}
+	
+	@GET
+	@Path("/{building}/{complianceCheckUID}")
+	@Produces(ResultStreamWriter.APPLICATION_NDJSON)
+	public void buildingNDJSON(@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,@HeaderParam("Authorization") String token,@Context UriInfo info,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.HISTORY,response,() -> buildingNDJSON(uprn,uid,token,info));
+	}
+	
+	public Response buildingNDJSON(String uprn,String uid,String token,UriInfo info) {
+		return streamResults(uprn,uid,token,info,ResultStreamWriter.Format.NDJSON);
+	}
+	
+	//results are written to the response as they arrive from the database, so memory use does not grow with the length of the history
+	private Response streamResults(String uprn,String uid,String token,UriInfo info,ResultStreamWriter.Format format) {
+		int level=authorize(token);
+		if (level==-1) 	return Response.status(401).build();
 		MultivaluedMap<String,String> queryParams=info.getQueryParameters();
 		String sVal=queryParams.getFirst("start");
 		LocalDateTime start=null;
@@ -224,32 +355,50 @@ public class ResultServiceAPI {
 		if (eVal!=null) end=LocalDateTime.parse(eVal);
 		String documentFilter=queryParams.getFirst("documentFilter");
 		String freeText=queryParams.getFirst("search");
-		
-		int level=authorize(token);
-		List<ComplianceCheckResultItem> results = database.getResults(uprn,uid,start,end,documentFilter,freeText,level);
-		return results;
+		int limit=0;
+		ResultCursor after=null;
+		try {
+			if (queryParams.getFirst("limit")!=null) limit=Integer.parseInt(queryParams.getFirst("limit"));
+			if (queryParams.getFirst("cursor")!=null) after=ResultCursor.decode(queryParams.getFirst("cursor"));
+		} catch (IllegalArgumentException e) {
+			return Response.status(400).build();
+		}
+		//level 4 callers only see the latest result of each document, so there is no history to page through
+		if (level==4 && (limit>0 || after!=null)) return Response.status(403).build();
+		final LocalDateTime finalStart=start;
+		final LocalDateTime finalEnd=end;
+		final int finalLimit=limit;
+		final ResultCursor finalAfter=after;
+		StreamingOutput output=stream -> {
+			ResultStreamWriter writer=new ResultStreamWriter(stream,format);
+			writer.begin();
+			database.streamResults(uprn,uid,finalStart,finalEnd,documentFilter,freeText,level,finalAfter,finalLimit,writer);
+			//a full page may be followed by another
+			ResultCursor next=null;
+			if (finalLimit>0 && writer.getCount()==finalLimit) next=ResultCursor.after(writer.getLast());
+			writer.end(next);
+		};
+		return Response.ok(output).build();
 	}
 
 	@PUT
 	@Path("/{building}/{complianceCheckUID}")
 	@Produces(MediaType.APPLICATION_XML)
 	@Consumes(MediaType.APPLICATION_XML)
-	public Response updateXML(@HeaderParam("Authorization") String token,@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,String body) {
+	public void updateXML(@HeaderParam("Authorization") String token,@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,InputStream body,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.INGEST,response,() -> updateXML(token,uprn,uid,body));
+	}
+	
+	public Response updateXML(String token,String uprn,String uid,InputStream body) {
 			if (!authorizeRuleEngine(token)) 	return Response.status(401).build();
 			try {
-					DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-					DocumentBuilder builder = factory.newDocumentBuilder();
-					Document document = builder.parse(new InputSource(new StringReader(body)));
-					Element root = (Element) document.getDocumentElement();
-					NodeList conditionElements =  root.getElementsByTagName("conditions");
-					ArrayList<String> conditions=new ArrayList<String>();
-					for (int i=0; i < conditionElements.getLength();i++) {
-						Element cond=(Element) conditionElements.item(i);
-						conditions.add(cond.getTextContent());
-					}
-			
-					database.addResults(uprn,uid,ComplianceCheckResultItem.fromJSONCollection(body),conditions);
-					return  Response.ok(successMessageJSON).build();
+					//the whole body is read before anything is stored, so a 400 leaves nothing behind
+					XMLResultUpload.read(body,UPLOAD_BATCH_SIZE,(results,conditions) -> database.addResults(uprn,uid,results,conditions));
+					return  Response.ok(successMessageXML).build();
+			} catch (ResultServiceBusyException e) {
+				return Response.status(503).build();
+			} catch (XMLStreamException e) {
+				return Response.status(400).build();
 			} catch (Exception e) {
 				e.printStackTrace();
 				return Response.status(500).build();
@@ -261,13 +410,39 @@ public class ResultServiceAPI {
 	@Path("/{building}/{complianceCheckUID}")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response updateJSON(@HeaderParam("Authorization") String token,@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,String body) {
+	public void updateJSON(@HeaderParam("Authorization") String token,@PathParam("building") String uprn,@PathParam("complianceCheckUID") String uid,InputStream body,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.INGEST,response,() -> updateJSON(token,uprn,uid,body));
+	}
+	
+	public Response updateJSON(String token,String uprn,String uid,InputStream body) {
 			if (!authorizeRuleEngine(token)) 	return Response.status(401).build();
-			Map<String, Object> data = new Genson().deserialize(body, Map.class);
-			ArrayList<Object> conditionsTemp=(ArrayList<Object>)data.get("conditions");
-			ArrayList<String> conditions=new ArrayList<String>();
-			for (Object o: conditionsTemp) conditions.add((String)o);
-			database.addResults(uprn,uid,ComplianceCheckResultItem.fromJSONCollection(body),conditions);
+			try {
+				JSONResultUpload.read(body,UPLOAD_BATCH_SIZE,(results,conditions) -> database.addResults(uprn,uid,results,conditions));
+			} catch (ResultServiceBusyException e) {
+				return Response.status(503).build();
+			} catch (JsonStreamException e) {
+				return Response.status(400).build();
+			}
 			return  Response.ok(successMessageJSON).build();
 	}
-}
\ No newline at end of file
+	
+	@POST
+	@Path("/bulk")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Consumes(MediaType.APPLICATION_JSON)
+	public void bulkJSON(@HeaderParam("Authorization") String token,InputStream body,@Suspended AsyncResponse response) {
+		requestExecutor.submit(RequestExecutor.INGEST,response,() -> bulkJSON(token,body));
+	}
+	
+	//results for many buildings and checks in one request, authorised once and written in batches per building and check
+	public Response bulkJSON(String token,InputStream body) {
+			if (!authorizeRuleEngine(token)) 	return Response.status(401).build();
+			BulkResultUpload.Report report=BulkResultUpload.read(body,UPLOAD_BATCH_SIZE,BULK_BUFFERED_RESULTS,database::addResults);
+			//each building and check is reported, as some may be stored when others are not
+			int status=200;
+			if (report.isMalformed()) status=400;
+			else if (report.isBusy()) status=503;
+			else if (!report.isSuccess()) status=207;
+			return  Response.status(status).entity(report.toJSON()).build();
+	}
+}
@@ -0,0 +1,28 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+/**
+* Thrown by a database implementation when it cannot accept more work right now, the API reports this to the client as 503 so that it can retry later.
+*/
+public class ResultServiceBusyException extends RuntimeException {
+
+	public ResultServiceBusyException(String message) {
+		super(message);
+	}
+}
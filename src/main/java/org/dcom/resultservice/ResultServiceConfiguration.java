@@ -0,0 +1,56 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.DCOM;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+* Reads the optional tuning variables of the result service from the environment, falling back to a default when a variable is not defined.
+*/
+public class ResultServiceConfiguration {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( ResultServiceConfiguration.class );
+
+	private ResultServiceConfiguration() {}
+
+	public static String getString(String name,String defaultValue) {
+		if (!DCOM.existsEnvironmentVariable(name)) return defaultValue;
+		return DCOM.getEnvironmentVariable(name);
+	}
+
+	public static long getLong(String name,long defaultValue) {
+		if (!DCOM.existsEnvironmentVariable(name)) return defaultValue;
+		try {
+			return Long.parseLong(DCOM.getEnvironmentVariable(name).trim());
+		} catch (NumberFormatException e) {
+			LOGGER.warn("Invalid value for "+name+", using "+defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public static int getInt(String name,int defaultValue) {
+		return (int)getLong(name,defaultValue);
+	}
+
+	public static boolean getBoolean(String name,boolean defaultValue) {
+		if (!DCOM.existsEnvironmentVariable(name)) return defaultValue;
+		return Boolean.parseBoolean(DCOM.getEnvironmentVariable(name).trim());
+	}
+}
@@ -19,16 +19,30 @@ package org.dcom.resultservice;
 
 import org.dcom.core.services.ComplianceCheckResultIndexItem;
 import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.function.Consumer;
 /**
 * An interface that defines how the result service should communicate with a database implementation
 */
 public interface ResultServiceDatabase {
 
+	//the level search indexes are read at, every text of a result as at level 1 but without the supporting files, which can be large
+	public static final int INDEX_LEVEL=0;
+
 	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn);
 	public void updateUPRN(String oldUPRN,String newUPRN);
-	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level);
-	public void addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions);
+	//results are newest first, a null checkId reads every check of the building, when after is given only results older than the cursor are returned and a limit of zero or less means no limit
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit);
+	//passes each result to the consumer as it is read, returning once all have been passed
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer);
+	//counts the results in each window of the given length that holds any, oldest first, the conditions of uploads are not counted
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window);
+	//returns the time the conditions were stored at, as it will be read back, or null when there were none
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions);
+	//the time a result uploaded with the given time is read back with
+	public LocalDateTime storedTime(LocalDateTime time);
+	public void close();
 	
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+* Connects the service to its dependencies in the background, retrying with a growing delay, so that a slow or missing dependency delays readiness instead of startup.
+* The database is connected first and the service registers with the service lookup once it is ready, so it is never found before it can answer.
+*/
+public class ResultServiceStartup {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( ResultServiceStartup.class );
+
+	/**
+	* One step of startup, which is run again if it throws.
+	*/
+	public interface Step {
+		void run() throws Exception;
+	}
+
+	private long maxDelayMillis;
+	private volatile boolean ready=false;
+	private volatile boolean registered=false;
+	private volatile boolean stopped=false;
+	private Thread thread;
+
+	public ResultServiceStartup(long maxDelayMillis) {
+		this.maxDelayMillis=maxDelayMillis;
+	}
+
+	public void start(Step connect,Step register) {
+		thread=new Thread(() -> {
+			if (!retry("connect to the result database",connect)) return;
+			ready=true;
+			LOGGER.info("Result database connected, the service is ready");
+			if (!retry("register with the service lookup",register)) return;
+			registered=true;
+			LOGGER.info("Registered with the service lookup");
+		},"resultservice-startup");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//returns false if the service stopped before the step succeeded
+	private boolean retry(String what,Step step) {
+		long delay=1000;
+		while (!stopped) {
+			try {
+				step.run();
+				return true;
+			} catch (Exception e) {
+				LOGGER.warn("Could not "+what+", retrying in "+delay+"ms: "+e.getMessage());
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return false;
+			}
+			delay=Math.min(delay*2,maxDelayMillis);
+		}
+		return false;
+	}
+
+	public void stop() {
+		stopped=true;
+		if (thread!=null) thread.interrupt();
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	public boolean isRegistered() {
+		return registered;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+* Writes result items to a response as they are produced by the database, so a result history is never held in memory as a whole.
+*/
+public class ResultStreamWriter implements Consumer<ComplianceCheckResultItem> {
+
+	public static final String APPLICATION_NDJSON="application/x-ndjson";
+
+	public enum Format { JSON, XML, NDJSON }
+
+	private Writer out;
+	private Format format;
+	private boolean first=true;
+	private long count=0;
+	private ComplianceCheckResultItem last;
+
+	public ResultStreamWriter(OutputStream stream,Format format) {
+		out=new BufferedWriter(new OutputStreamWriter(stream,StandardCharsets.UTF_8));
+		this.format=format;
+	}
+
+	public void begin() throws IOException {
+		if (format==Format.JSON) out.write("{ \"results\":[");
+		else if (format==Format.XML) out.write("<Results>");
+	}
+
+	public void accept(ComplianceCheckResultItem item) {
+		try {
+			if (format==Format.JSON) {
+				if (first) first=false;
+				else out.write(",");
+				out.write(item.toJSON());
+			} else if (format==Format.XML) {
+				out.write(item.toXML());
+			} else {
+				out.write(item.toJSON());
+				out.write("\n");
+			}
+			count++;
+			last=item;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	//closes the document, including the cursor of the next page when there may be one
+	public void end(ResultCursor next) throws IOException {
+		if (format==Format.JSON) {
+			out.write("]");
+			if (next!=null) out.write(",\"next\":\""+next.encode()+"\"");
+			out.write("}");
+		} else if (format==Format.XML) {
+			if (next!=null) out.write("<Next>"+next.encode()+"</Next>");
+			out.write("</Results>");
+		} else if (next!=null) {
+			out.write("{\"next\":\""+next.encode()+"\"}\n");
+		}
+		out.flush();
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public ComplianceCheckResultItem getLast() {
+		return last;
+	}
+}
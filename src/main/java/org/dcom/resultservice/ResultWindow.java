@@ -0,0 +1,169 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+* The number of results of each value recorded for a compliance check within one window of time, in total and for each document reference.
+*/
+public class ResultWindow {
+
+	private static final Pattern WINDOW=Pattern.compile("([0-9]+)(s|m|h|d|w)");
+
+	/**
+	* Gathers counts into windows of a fixed length aligned to the epoch, as aggregateWindow does in InfluxDB.
+	* Result times are in the system time zone, as the databases return them, so they are converted to instants to be aligned and the windows are reported in the same zone.
+	*/
+	public static class Collector {
+		private Duration window;
+		private TreeMap<Instant,ResultWindow> windows=new TreeMap<Instant,ResultWindow>();
+
+		public Collector(Duration window) {
+			this.window=window;
+		}
+
+		//counts results at the given time into the window containing it
+		public void add(LocalDateTime time,String reference,String result,long count) {
+			long seconds=window.getSeconds();
+			long start=Math.floorDiv(time.atZone(ZoneId.systemDefault()).toEpochSecond(),seconds)*seconds;
+			addToWindow(Instant.ofEpochSecond(start),reference,result,count);
+		}
+
+		//counts results into the window starting at the given instant, for counts the database has already windowed
+		public void addToWindow(Instant start,String reference,String result,long count) {
+			windows.computeIfAbsent(start,k -> new ResultWindow(LocalDateTime.ofInstant(start,ZoneId.systemDefault()),LocalDateTime.ofInstant(start.plus(window),ZoneId.systemDefault()))).add(reference,result,count);
+		}
+
+		//the windows holding any results, oldest first
+		public List<ResultWindow> get() {
+			return new ArrayList<ResultWindow>(windows.values());
+		}
+	}
+
+	private LocalDateTime start;
+	private LocalDateTime end;
+	private Map<String,Long> counts=new TreeMap<String,Long>();
+	private Map<String,Map<String,Long>> references=new TreeMap<String,Map<String,Long>>();
+
+	public ResultWindow(LocalDateTime start,LocalDateTime end) {
+		this.start=start;
+		this.end=end;
+	}
+
+	/**
+	* Parses a window length such as 30m, 1d or 2w, as given in the window query parameter.
+	* @throws IllegalArgumentException if it is not a whole number of seconds, minutes, hours, days or weeks
+	*/
+	public static Duration parseWindow(String text) {
+		Matcher m=WINDOW.matcher(text==null ? "" : text.trim());
+		if (!m.matches()) throw new IllegalArgumentException("Invalid window "+text);
+		long amount=Long.parseLong(m.group(1));
+		if (amount<=0) throw new IllegalArgumentException("Invalid window "+text);
+		switch (m.group(2)) {
+			case "s": return Duration.ofSeconds(amount);
+			case "m": return Duration.ofMinutes(amount);
+			case "h": return Duration.ofHours(amount);
+			case "d": return Duration.ofDays(amount);
+			default: return Duration.ofDays(amount*7);
+		}
+	}
+
+	public void add(String reference,String result,long count) {
+		if (result==null) result="";
+		counts.merge(result,count,Long::sum);
+		references.computeIfAbsent(reference,k -> new TreeMap<String,Long>()).merge(result,count,Long::sum);
+	}
+
+	public LocalDateTime getStart() {
+		return start;
+	}
+
+	public LocalDateTime getEnd() {
+		return end;
+	}
+
+	public Map<String,Long> getCounts() {
+		return counts;
+	}
+
+	public Map<String,Map<String,Long>> getReferences() {
+		return references;
+	}
+
+	public String toJSON() {
+		StringBuilder str=new StringBuilder();
+		str.append("{\"start\":\"").append(start).append("\",\"end\":\"").append(end).append("\",\"counts\":");
+		appendJSON(str,counts);
+		str.append(",\"references\":{");
+		boolean first=true;
+		for (Map.Entry<String,Map<String,Long>> entry: references.entrySet()) {
+			if (first) first=false;
+			else str.append(",");
+			str.append(jsonString(entry.getKey())).append(":");
+			appendJSON(str,entry.getValue());
+		}
+		return str.append("}}").toString();
+	}
+
+	public String toXML() {
+		StringBuilder str=new StringBuilder();
+		str.append("<ResultWindow><start>").append(start).append("</start><end>").append(end).append("</end>");
+		appendXML(str,counts);
+		for (Map.Entry<String,Map<String,Long>> entry: references.entrySet()) {
+			str.append("<reference name=\"").append(xmlString(entry.getKey())).append("\">");
+			appendXML(str,entry.getValue());
+			str.append("</reference>");
+		}
+		return str.append("</ResultWindow>").toString();
+	}
+
+	private static void appendJSON(StringBuilder str,Map<String,Long> counts) {
+		str.append("{");
+		boolean first=true;
+		for (Map.Entry<String,Long> entry: counts.entrySet()) {
+			if (first) first=false;
+			else str.append(",");
+			str.append(jsonString(entry.getKey())).append(":").append(entry.getValue());
+		}
+		str.append("}");
+	}
+
+	private static void appendXML(StringBuilder str,Map<String,Long> counts) {
+		for (Map.Entry<String,Long> entry: counts.entrySet()) {
+			str.append("<count result=\"").append(xmlString(entry.getKey())).append("\">").append(entry.getValue()).append("</count>");
+		}
+	}
+
+	private static String jsonString(String value) {
+		return "\""+value.replace("\\","\\\\").replace("\"","\\\"")+"\"";
+	}
+
+	private static String xmlString(String value) {
+		return value.replace("&","&amp;").replace("<","&lt;").replace("\"","&quot;");
+	}
+}
@@ -0,0 +1,138 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.DCOM;
+import org.dcom.core.security.DCOMBearerToken;
+import org.dcom.core.security.ServiceCertificate;
+import org.dcom.core.services.RuleEngineService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Decides whether a bearer token was issued by a registered rule engine. The rule engine certificates are held locally and refreshed from the service lookup in the background, and tokens that have been verified are remembered until they expire, or briefly when they carry no expiry.
+* A token that is not recognised causes a refresh at most once a second, and less often while the service lookup is failing.
+*/
+public class RuleEngineAuthoriser {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( RuleEngineAuthoriser.class );
+	//how long a verified token without an exp claim is remembered, as it may be revoked at any time
+	private static final long OPAQUE_TOKEN_MILLIS=5000;
+	private static final long MAX_BACKOFF_MILLIS=60000;
+
+	private volatile List<ServiceCertificate> certificates=Collections.emptyList();
+	private volatile long lastRefresh=0;
+	//no refresh is made for an unknown token before this time, pushed back after each failed refresh
+	private volatile long retryAfter=0;
+	private int failures=0;
+	private TokenCache<Boolean> verified;
+	private long refreshMillis;
+	private ScheduledExecutorService refresher;
+
+	public RuleEngineAuthoriser(int maxSize,long tokenTtlMillis,long refreshMillis) {
+		verified=new TokenCache<Boolean>(maxSize,tokenTtlMillis,OPAQUE_TOKEN_MILLIS);
+		this.refreshMillis=refreshMillis;
+	}
+
+	public void start() {
+		refresher=Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t=new Thread(r,"rule-engine-certificates");
+			t.setDaemon(true);
+			return t;
+		});
+		refresher.scheduleWithFixedDelay(() -> {
+			try {
+				refresh();
+			} catch (Exception e) {
+				LOGGER.warn("Could not refresh rule engine certificates: "+e.getMessage());
+			}
+		},0,refreshMillis,TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (refresher!=null) refresher.shutdownNow();
+	}
+
+	public boolean authorize(String token) {
+		if (token==null) return false;
+		token=token.replace("Bearer","").trim();
+		if (verified.getIfPresent(token)!=null) return true;
+		boolean valid=check(token);
+		//a rule engine may have registered since the last refresh, but the lookup is not repeated more than once a second
+		long now=System.currentTimeMillis();
+		if (!valid && now-lastRefresh>1000 && now>=retryAfter) {
+			if (!refreshIfOlderThan(1000)) return false;
+			valid=check(token);
+		}
+		if (valid) verified.put(token,true);
+		return valid;
+	}
+
+	//concurrent misses wait for the first to refresh rather than each calling the lookup. Returns false if the refresh failed or is backing off after a failure
+	private synchronized boolean refreshIfOlderThan(long millis) {
+		long now=System.currentTimeMillis();
+		if (now<retryAfter) return false;
+		if (now-lastRefresh<=millis) return true;
+		try {
+			refresh();
+			failures=0;
+			retryAfter=0;
+			return true;
+		} catch (Exception e) {
+			failures++;
+			retryAfter=now+Math.min(MAX_BACKOFF_MILLIS,1000L<<Math.min(failures,6));
+			LOGGER.warn("Could not refresh rule engine certificates, retrying for unknown tokens after "+(retryAfter-now)+"ms: "+e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean check(String token) {
+		DCOMBearerToken bearerToken=new DCOMBearerToken(token);
+		for (ServiceCertificate cert: certificates) {
+			if (cert.checkTokenValidity(bearerToken)) return true;
+		}
+		return false;
+	}
+
+	protected synchronized void refresh() {
+		Set<RuleEngineService> ruleEngines=DCOM.getServiceLookup().getRuleEngines();
+		List<ServiceCertificate> certs=new ArrayList<ServiceCertificate>();
+		for (RuleEngineService ruleEngine: ruleEngines) certs.add(ruleEngine.getCertificate());
+		certificates=Collections.unmodifiableList(certs);
+		lastRefresh=System.currentTimeMillis();
+	}
+
+	public long getHits() {
+		return verified.getHits();
+	}
+
+	public long getMisses() {
+		return verified.getMisses();
+	}
+
+	public int size() {
+		return verified.size();
+	}
+}
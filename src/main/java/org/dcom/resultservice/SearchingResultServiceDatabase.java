@@ -0,0 +1,193 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+* Adds free text search to any ResultServiceDatabase. Each compliance check, and each building for searches across all its checks, has a ResultSearchIndex built from its history without supporting files the first time it is searched, kept up to date as results are added here and built again once older than a time to live, so results written by other instances are found.
+* A search looks up the matching results in the index and reads only the times at which they were stored from the database, newest first until the page is full, so its cost follows the number of matches returned rather than the length of the history.
+*/
+public class SearchingResultServiceDatabase implements ResultServiceDatabase {
+
+	//thrown from inside a stream to stop it once a page is full
+	private static class PageFull extends RuntimeException {
+		private PageFull() {
+			super(null,null,false,false);
+		}
+	}
+
+	private ResultServiceDatabase delegate;
+	private long ttlMillis;
+	private long settleMillis;
+	private LinkedHashMap<String,ResultSearchIndex> indexes;
+	//the time of the latest write to each check and building, dropped once it is older than the settle window
+	private ConcurrentHashMap<String,Long> lastWrites=new ConcurrentHashMap<String,Long>();
+	private volatile long lastPruned=System.currentTimeMillis();
+
+	/**
+	* @param maxChecks the number of compliance checks whose index is held in memory, the least recently searched are dropped and rebuilt on demand
+	* @param settleMillis how long after a write an index that is built may miss it, as the backend may still be writing it, such an index is built again once the write has settled
+	*/
+	public SearchingResultServiceDatabase(ResultServiceDatabase delegate,int maxChecks,long ttlMillis,long settleMillis) {
+		this.delegate=delegate;
+		this.ttlMillis=ttlMillis;
+		this.settleMillis=settleMillis;
+		indexes=new LinkedHashMap<String,ResultSearchIndex>(16,0.75f,true) {
+			protected boolean removeEldestEntry(Map.Entry<String,ResultSearchIndex> eldest) {
+				return size()>maxChecks;
+			}
+		};
+	}
+
+	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn) {
+		return delegate.getComplianceChecks(uprn);
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+		delegate.updateUPRN(oldUPRN,newUPRN);
+		synchronized (indexes) {
+			indexes.keySet().removeIf(k -> k.startsWith(oldUPRN+"\n") || k.startsWith(newUPRN+"\n"));
+		}
+	}
+
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit) {
+		List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,results::add);
+		return results;
+	}
+
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+		if (freeText==null || ResultSearchIndex.tokenize(freeText).length==0) {
+			delegate.streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,consumer);
+			return;
+		}
+		Set<ResultSearchIndex.Match> matches=getIndex(uprn,checkId).search(freeText,ResultSearchIndex.visibleFields(level));
+		if (matches.isEmpty()) return;
+		//level 4 gives only the latest result of each document, which are few, and of those only the matches
+		if (level==4) {
+			delegate.streamResults(uprn,checkId,start,end,documentFilter,null,level,null,0,item -> {
+				if (matches.contains(ResultSearchIndex.Match.of(item))) consumer.accept(item);
+			});
+			return;
+		}
+		TreeSet<LocalDateTime> times=new TreeSet<LocalDateTime>(Collections.reverseOrder());
+		for (ResultSearchIndex.Match m: matches) {
+			LocalDateTime time=m.getTime();
+			if (start!=null && time.isBefore(start)) continue;
+			if (end!=null && !time.isBefore(end)) continue;
+			if (after!=null && instant(time).isAfter(after.getTime())) continue;
+			times.add(time);
+		}
+		int[] count={0};
+		try {
+			for (LocalDateTime time: times) {
+				//the cursor only cuts into the results at its own time
+				ResultCursor from=after!=null && instant(time).equals(after.getTime()) ? after : null;
+				delegate.streamResults(uprn,checkId,time,time.plusNanos(1),documentFilter,null,level,from,0,item -> {
+					if (!matches.contains(ResultSearchIndex.Match.of(item))) return;
+					consumer.accept(item);
+					count[0]++;
+					if (limit>0 && count[0]>=limit) throw new PageFull();
+				});
+			}
+		} catch (PageFull e) {
+			//the page is complete
+		}
+	}
+
+	private static Instant instant(LocalDateTime time) {
+		return time.atZone(ZoneId.systemDefault()).toInstant();
+	}
+
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window) {
+		return delegate.summariseResults(uprn,checkId,start,end,window);
+	}
+
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		LocalDateTime conditionsTime=delegate.addResults(uprn,checkId,results,conditions);
+		long now=System.currentTimeMillis();
+		lastWrites.put(uprn+"\n"+checkId,now);
+		lastWrites.put(uprn+"\n"+null,now);
+		//at most once per settle window, so the map holds only what was written in the last two windows
+		if (now-lastPruned>=settleMillis) {
+			lastPruned=now;
+			lastWrites.values().removeIf(t -> now-t>=settleMillis);
+		}
+		//the index of the check and that of its building. Indexes that are not built yet pick these results up when they are. Entries are made as a rebuild would make them from what is read back, the conditions as a record of their own
+		for (String key: new String[]{uprn+"\n"+checkId,uprn+"\n"+null}) {
+			ResultSearchIndex index;
+			synchronized (indexes) {
+				index=indexes.get(key);
+			}
+			if (index==null) continue;
+			if (conditionsTime!=null) index.addConditions(conditionsTime,conditions);
+			for (ComplianceCheckResultItem item: results) index.add(new ResultSearchIndex.Match(delegate.storedTime(item.getTime()),item.getReference()),item);
+		}
+		return conditionsTime;
+	}
+
+	public LocalDateTime storedTime(LocalDateTime time) {
+		return delegate.storedTime(time);
+	}
+
+	public void close() {
+		delegate.close();
+	}
+
+	//a null checkId is the index of every check of the building
+	private ResultSearchIndex getIndex(String uprn,String checkId) {
+		String key=uprn+"\n"+checkId;
+		ResultSearchIndex index;
+		synchronized (indexes) {
+			index=indexes.get(key);
+			if (index==null || index.isExpired()) {
+				index=new ResultSearchIndex();
+				indexes.put(key,index);
+			}
+		}
+		if (!index.isLoaded()) {
+			synchronized (index) {
+				if (!index.isLoaded()) {
+					long started=System.currentTimeMillis();
+					delegate.streamResults(uprn,checkId,null,null,null,null,ResultServiceDatabase.INDEX_LEVEL,null,0,index::add);
+					long expires=started+ttlMillis;
+					//a write made just before may not have been readable yet
+					Long lastWrite=lastWrites.get(key);
+					if (lastWrite!=null && started-lastWrite<settleMillis) expires=Math.min(expires,lastWrite+settleMillis);
+					index.markLoaded(expires);
+				}
+			}
+		}
+		return index;
+	}
+}
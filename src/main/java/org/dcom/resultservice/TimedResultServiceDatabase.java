@@ -0,0 +1,115 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.metrics.ResultServiceMetrics;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+* Records the duration of every call to the ResultServiceDatabase it wraps in ResultServiceMetrics, with the method as a label and whether it failed.
+*/
+public class TimedResultServiceDatabase implements ResultServiceDatabase {
+
+	private ResultServiceDatabase delegate;
+
+	public TimedResultServiceDatabase(ResultServiceDatabase delegate) {
+		this.delegate=delegate;
+	}
+
+	private static void record(String method,long start,boolean failed) {
+		ResultServiceMetrics.get().record(ResultServiceMetrics.DATABASE,System.nanoTime()-start,"method",method,"outcome",failed ? "error" : "ok");
+	}
+
+	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn) {
+		long start=System.nanoTime();
+		boolean failed=true;
+		try {
+			List<ComplianceCheckResultIndexItem> result=delegate.getComplianceChecks(uprn);
+			failed=false;
+			return result;
+		} finally {
+			record("getComplianceChecks",start,failed);
+		}
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+		long start=System.nanoTime();
+		boolean failed=true;
+		try {
+			delegate.updateUPRN(oldUPRN,newUPRN);
+			failed=false;
+		} finally {
+			record("updateUPRN",start,failed);
+		}
+	}
+
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit) {
+		List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,results::add);
+		return results;
+	}
+
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+		long started=System.nanoTime();
+		boolean failed=true;
+		try {
+			delegate.streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,consumer);
+			failed=false;
+		} finally {
+			record(freeText==null ? "streamResults" : "searchResults",started,failed);
+		}
+	}
+
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window) {
+		long started=System.nanoTime();
+		boolean failed=true;
+		try {
+			List<ResultWindow> result=delegate.summariseResults(uprn,checkId,start,end,window);
+			failed=false;
+			return result;
+		} finally {
+			record("summariseResults",started,failed);
+		}
+	}
+
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		long start=System.nanoTime();
+		boolean failed=true;
+		try {
+			LocalDateTime conditionsTime=delegate.addResults(uprn,checkId,results,conditions);
+			failed=false;
+			return conditionsTime;
+		} finally {
+			record("addResults",start,failed);
+		}
+	}
+
+	public LocalDateTime storedTime(LocalDateTime time) {
+		return delegate.storedTime(time);
+	}
+
+	public void close() {
+		delegate.close();
+	}
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import com.owlike.genson.Genson;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+* A size capped cache of decisions made about bearer tokens. An entry lives until its time to live passes or the token itself expires, whichever is sooner.
+* Lookups take no lock, so every request can check its token at once. When the cache grows past its size one thread drops expired entries and then the least recently used tenth, so eviction is approximate and the cache may briefly hold a few more than its size.
+* Only decisions that grant something are cached, so tokens that are refused cannot push out those in use. A token that is not a JWT carries no expiry, it may be revoked at any time, so it can be given a shorter time to live.
+*/
+public class TokenCache<V> {
+
+	private static final Genson GENSON=new Genson();
+
+	private static class Entry<V> {
+		private V value;
+		private long expires;
+		//written on every hit without a lock, an occasional lost update only makes eviction less exact
+		private volatile long used;
+
+		private Entry(V value,long expires) {
+			this.value=value;
+			this.expires=expires;
+			used=System.currentTimeMillis();
+		}
+	}
+
+	private ConcurrentHashMap<String,Entry<V>> entries=new ConcurrentHashMap<String,Entry<V>>();
+	private ReentrantLock evicting=new ReentrantLock();
+	private int maxSize;
+	private long ttlMillis;
+	private long opaqueTtlMillis;
+	private LongAdder hits=new LongAdder();
+	private LongAdder misses=new LongAdder();
+
+	public TokenCache(int maxSize,long ttlMillis) {
+		this(maxSize,ttlMillis,ttlMillis);
+	}
+
+	//opaqueTtlMillis is the time to live of tokens without an exp claim, if shorter than ttlMillis
+	public TokenCache(int maxSize,long ttlMillis,long opaqueTtlMillis) {
+		this.maxSize=maxSize;
+		this.ttlMillis=ttlMillis;
+		this.opaqueTtlMillis=opaqueTtlMillis;
+	}
+
+	//returns the cached decision for a token, or computes it and caches it if granted says it should be
+	public V get(String token,Function<String,V> loader,Predicate<V> granted) {
+		V value=getIfPresent(token);
+		if (value!=null) return value;
+		value=loader.apply(token);
+		if (granted.test(value)) put(token,value);
+		return value;
+	}
+
+	//counts a hit or a miss, so callers that load the decision themselves are counted too
+	public V getIfPresent(String token) {
+		Entry<V> entry=entries.get(token);
+		if (entry==null) {
+			misses.increment();
+			return null;
+		}
+		long now=System.currentTimeMillis();
+		if (entry.expires<=now) {
+			entries.remove(token,entry);
+			misses.increment();
+			return null;
+		}
+		entry.used=now;
+		hits.increment();
+		return entry.value;
+	}
+
+	public void put(String token,V value) {
+		long now=System.currentTimeMillis();
+		long tokenExpiry=getTokenExpiry(token);
+		long expires=tokenExpiry==Long.MAX_VALUE ? now+Math.min(ttlMillis,opaqueTtlMillis) : Math.min(now+ttlMillis,tokenExpiry);
+		if (expires<=now) return;
+		entries.put(token,new Entry<V>(value,expires));
+		if (entries.size()>maxSize) evict(now);
+	}
+
+	//threads that find another already evicting carry on rather than wait for it
+	private void evict(long now) {
+		if (!evicting.tryLock()) return;
+		try {
+			entries.values().removeIf(entry -> entry.expires<=now);
+			int excess=entries.size()-maxSize*9/10;
+			if (excess<=0) return;
+			long[] used=new long[entries.size()];
+			int count=0;
+			for (Entry<V> entry: entries.values()) {
+				if (count==used.length) break;
+				used[count++]=entry.used;
+			}
+			if (count==0) return;
+			Arrays.sort(used,0,count);
+			long cutoff=used[Math.min(count,excess)-1];
+			entries.values().removeIf(entry -> entry.used<=cutoff);
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	//reads the exp claim of a JWT, returning Long.MAX_VALUE when the token does not carry one
+	public static long getTokenExpiry(String token) {
+		try {
+			String[] parts=token.replace("Bearer","").trim().split("\\.");
+			if (parts.length<2) return Long.MAX_VALUE;
+			String payload=new String(Base64.getUrlDecoder().decode(parts[1]),StandardCharsets.UTF_8);
+			Map<String,Object> claims=GENSON.deserialize(payload,Map.class);
+			Object exp=claims.get("exp");
+			if (exp instanceof Number) return ((Number)exp).longValue()*1000;
+		} catch (Exception e) {
+			//not a JWT, so only the time to live applies
+		}
+		return Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+* The fields of one uploaded result, named as ComplianceCheckResultItem names them in its JSON and XML forms. The JSON and XML uploads both read results through this, so the two accept the same fields and refuse the same incomplete results.
+*/
+class UploadedResult {
+
+	private String reference;
+	private String time;
+	private String result;
+	private String attributation="";
+	private List<String> reasons=new ArrayList<String>();
+	private List<String> supportingFileData=new ArrayList<String>();
+	private List<String> supportingFileContentType=new ArrayList<String>();
+	private String error;
+
+	//passes results on in batches once the whole upload has been read, the conditions go with the first batch
+	static void pass(List<ComplianceCheckResultItem> results,List<String> conditions,int batchSize,BiConsumer<List<ComplianceCheckResultItem>,List<String>> consumer) {
+		if (results.isEmpty()) {
+			consumer.accept(results,conditions);
+			return;
+		}
+		for (int i=0;i<results.size();i+=batchSize) {
+			consumer.accept(new ArrayList<ComplianceCheckResultItem>(results.subList(i,Math.min(results.size(),i+batchSize))),i==0 ? conditions : new ArrayList<String>());
+		}
+	}
+
+	static boolean isField(String name) {
+		switch (name) {
+			case "reference": case "time": case "result": case "attributation": return true;
+			default: return isList(name);
+		}
+	}
+
+	//fields that may be given more than once
+	static boolean isList(String name) {
+		return name.equals("reasons") || name.equals("supportingFileData") || name.equals("supportingFileContentType");
+	}
+
+	//a value of a list field is added to it, fields that are not part of a result are ignored
+	void set(String name,String value) {
+		switch (name) {
+			case "reference": reference=value; break;
+			case "time": time=value; break;
+			case "result": result=value; break;
+			case "attributation": if (value!=null) attributation=value; break;
+			case "reasons": if (value!=null) reasons.add(value); break;
+			case "supportingFileData": if (value!=null) supportingFileData.add(value); break;
+			case "supportingFileContentType": if (value!=null) supportingFileContentType.add(value); break;
+			default: break;
+		}
+	}
+
+	//marks the result as invalid for a reason found while reading it, the first reason is kept
+	void invalid(String reason) {
+		if (error==null) error=reason;
+	}
+
+	/**
+	* @throws IllegalArgumentException if the result was marked invalid, has no reference, time or result, or its time is not an ISO local date time
+	*/
+	ComplianceCheckResultItem build() {
+		if (error!=null) throw new IllegalArgumentException(error);
+		if (reference==null || time==null || result==null) throw new IllegalArgumentException("A result needs a reference, a time and a result");
+		LocalDateTime parsed;
+		try {
+			parsed=LocalDateTime.parse(time.trim());
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid time "+time);
+		}
+		return new ComplianceCheckResultItem(reference,parsed,reasons,attributation,result,supportingFileData,supportingFileContentType);
+	}
+}
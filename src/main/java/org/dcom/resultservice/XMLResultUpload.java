@@ -0,0 +1,98 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+* Reads an XML upload in a single pass with StAX, without building a tree of the document. The upload has the form
+* &lt;ComplianceCheckResults&gt;&lt;conditions&gt;..&lt;/conditions&gt;&lt;ComplianceCheckResultItem&gt;..&lt;/ComplianceCheckResultItem&gt;*&lt;/ComplianceCheckResults&gt;
+* where every child of the root other than conditions is a result in the form ComplianceCheckResultItem.toXML gives it, an element for each field.
+*/
+public class XMLResultUpload {
+
+	//configured once, after which creating readers from it is thread safe
+	private static final XMLInputFactory FACTORY=XMLInputFactory.newInstance();
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD,false);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,false);
+	}
+
+	private XMLResultUpload() {}
+
+	/**
+	* Reads the whole upload and then passes its results to the consumer in batches, the conditions go with the first batch. Nothing is passed on if any part of the upload is malformed.
+	*/
+	public static void read(InputStream body,int batchSize,BiConsumer<List<ComplianceCheckResultItem>,List<String>> consumer) throws XMLStreamException {
+		XMLStreamReader reader=FACTORY.createXMLStreamReader(body);
+		List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		List<String> conditions=new ArrayList<String>();
+		try {
+			int depth=0;
+			while (reader.hasNext()) {
+				int event=reader.next();
+				if (event==XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth==2) {
+						if (reader.getLocalName().equals("conditions")) conditions.add(reader.getElementText());
+						else results.add(readItem(reader));
+						depth--;
+					}
+				} else if (event==XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		UploadedResult.pass(results,conditions,batchSize,consumer);
+	}
+
+	//reads one result element up to and including its end tag
+	private static ComplianceCheckResultItem readItem(XMLStreamReader reader) throws XMLStreamException {
+		UploadedResult item=new UploadedResult();
+		while (reader.nextTag()==XMLStreamConstants.START_ELEMENT) {
+			String name=reader.getLocalName();
+			if (UploadedResult.isField(name)) item.set(name,reader.getElementText());
+			else skip(reader);
+		}
+		try {
+			return item.build();
+		} catch (IllegalArgumentException e) {
+			throw new XMLStreamException(e.getMessage(),reader.getLocation());
+		}
+	}
+
+	//skips an element that is not part of a result, along with anything inside it
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+		int depth=1;
+		while (depth>0) {
+			int event=reader.next();
+			if (event==XMLStreamConstants.START_ELEMENT) depth++;
+			else if (event==XMLStreamConstants.END_ELEMENT) depth--;
+		}
+	}
+}
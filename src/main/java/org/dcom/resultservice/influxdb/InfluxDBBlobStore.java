@@ -0,0 +1,146 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.influxdb;
+
+import org.dcom.resultservice.metrics.ResultServiceMetrics;
+import com.influxdb.client.QueryApi;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* A content addressed store for supporting files, held in a bucket of its own. Each distinct file is stored once under its SHA-256 hash and results refer to it by that hash.
+* To avoid a series per file, blobs are spread over 256 series by the first byte of their hash and each is stored at a timestamp derived from the rest of it. Writing the same file again overwrites the same point, and reading a file is a query for a single nanosecond of a single series. A file read back is hashed again, and a file that does not match is an error rather than the wrong content.
+*/
+public class InfluxDBBlobStore {
+
+	//blob timestamps fall within about thirty years of the epoch, far from any real result
+	private static final long SPAN_NANOS=30L*365*24*3600*1000000000L;
+
+	private QueryApi queryApi;
+	private String bucket;
+	private long maxCachedChars;
+	private long cachedChars=0;
+	private LinkedHashMap<String,String> contents=new LinkedHashMap<String,String>(16,0.75f,true);
+	private LinkedHashMap<String,Boolean> written;
+
+	public InfluxDBBlobStore(QueryApi queryApi,String bucket,long maxCachedChars,int maxKnownHashes) {
+		this.queryApi=queryApi;
+		this.bucket=bucket;
+		this.maxCachedChars=maxCachedChars;
+		written=new LinkedHashMap<String,Boolean>(16,0.75f,true) {
+			protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+				return size()>maxKnownHashes;
+			}
+		};
+	}
+
+	public String getBucket() {
+		return bucket;
+	}
+
+	public static String hash(String content) {
+		try {
+			byte[] digest=MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex=new StringBuilder(digest.length*2);
+			for (byte b: digest) hex.append(String.format("%02x",b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Instant timeOf(String hash) {
+		long bits=ByteBuffer.wrap(hexToBytes(hash.substring(2,18))).getLong() & Long.MAX_VALUE;
+		return Instant.ofEpochSecond(0,bits%SPAN_NANOS);
+	}
+
+	private static byte[] hexToBytes(String hex) {
+		byte[] bytes=new byte[hex.length()/2];
+		for (int i=0;i<bytes.length;i++) bytes[i]=(byte)Integer.parseInt(hex.substring(i*2,i*2+2),16);
+		return bytes;
+	}
+
+	public static Point toPoint(String hash,String content) {
+		return Point.measurement("blob").addTag("shard",hash.substring(0,2)).addField("data",content).time(timeOf(hash),WritePrecision.NS);
+	}
+
+	//recently written files are remembered, so a popular file is not sent to InfluxDB on every upload
+	public synchronized boolean isWritten(String hash) {
+		return written.containsKey(hash);
+	}
+
+	public synchronized void markWritten(String hash) {
+		written.put(hash,Boolean.TRUE);
+	}
+
+	public String load(String hash) {
+		synchronized (this) {
+			String cached=contents.get(hash);
+			if (cached!=null) return cached;
+		}
+		Instant time=timeOf(hash);
+		StringBuffer query=new StringBuffer();
+		query.append("from(bucket:\"").append(bucket).append("\")");
+		query.append(" |> range(start: ").append(time.toString()).append(", stop: ").append(time.plusNanos(1).toString()).append(")");
+		query.append(" |> filter(fn: (r) => r._measurement == \"blob\" and r.shard == \"").append(hash.substring(0,2)).append("\" and r._field == \"data\")");
+		long start=System.nanoTime();
+		List<FluxTable> tables=queryApi.query(query.toString());
+		ResultServiceMetrics.get().record(ResultServiceMetrics.QUERY,System.nanoTime()-start,"query","blob");
+		for (FluxTable table: tables) {
+			for (FluxRecord record: table.getRecords()) {
+				String content=record.getValue().toString();
+				//only part of the hash picks the point, so another file landing on the same point must not be returned in place of this one
+				if (!hash.equals(hash(content))) {
+					synchronized (this) {
+						written.remove(hash);
+					}
+					throw new IllegalStateException("Supporting file "+hash+" was overwritten by a file with hash "+hash(content));
+				}
+				cache(hash,content);
+				return content;
+			}
+		}
+		//the write of the file may have failed, so it is sent again with the next upload that refers to it
+		synchronized (this) {
+			written.remove(hash);
+		}
+		return "";
+	}
+
+	private synchronized void cache(String hash,String content) {
+		if (content.length()>maxCachedChars) return;
+		if (contents.put(hash,content)==null) cachedChars+=content.length();
+		Iterator<Map.Entry<String,String>> it=contents.entrySet().iterator();
+		while (cachedChars>maxCachedChars && it.hasNext()) {
+			cachedChars-=it.next().getValue().length();
+			it.remove();
+		}
+	}
+}
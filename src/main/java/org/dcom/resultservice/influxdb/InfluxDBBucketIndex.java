@@ -0,0 +1,156 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.influxdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.influxdb.client.BucketsApi;
+import com.influxdb.client.FindOptions;
+import com.influxdb.client.domain.Bucket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+* An in memory index of the result buckets held in InfluxDB. Bucket names have the form database_uprn_checkId, so keeping them in a sorted map lets the buckets of one building be found with a prefix range instead of listing every bucket in the organisation.
+* The index is filled at startup, updated as buckets are created and reconciled with InfluxDB in the background to pick up changes made by other instances.
+*/
+public class InfluxDBBucketIndex {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( InfluxDBBucketIndex.class );
+	private static final int PAGE_SIZE=100;
+	//how long a bucket that InfluxDB does not have is remembered as missing, so reads of unknown buildings do not each cost a lookup
+	private static final long MISS_MILLIS=10000;
+	private static final int MAX_MISSES=10000;
+
+	private BucketsApi api;
+	private String prefix;
+	private ConcurrentSkipListMap<String,Bucket> buckets=new ConcurrentSkipListMap<String,Bucket>();
+	private ConcurrentHashMap<String,Long> misses=new ConcurrentHashMap<String,Long>();
+	private ScheduledExecutorService reconciler;
+
+	public InfluxDBBucketIndex(BucketsApi api,String dbName) {
+		this.api=api;
+		prefix=dbName+"_";
+	}
+
+	public String getBucketName(String uprn,String checkId) {
+		return prefix+uprn+"_"+checkId;
+	}
+
+	//loads every bucket of this database from InfluxDB, adding new ones and dropping those that have been removed since the last load
+	public synchronized void reload() {
+		Set<String> known=new HashSet<String>(buckets.keySet());
+		Set<String> found=new HashSet<String>();
+		int offset=0;
+		while (true) {
+			FindOptions options=new FindOptions();
+			options.setLimit(PAGE_SIZE);
+			options.setOffset(offset);
+			List<Bucket> page=api.findBuckets(options).getBuckets();
+			for (Bucket b: page) {
+				if (!b.getName().startsWith(prefix)) continue;
+				buckets.put(b.getName(),b);
+				found.add(b.getName());
+			}
+			if (page.size()<PAGE_SIZE) break;
+			offset+=page.size();
+		}
+		known.removeAll(found);
+		for (String name: known) buckets.remove(name);
+		LOGGER.debug("Bucket index holds "+buckets.size()+" buckets");
+	}
+
+	public void start(long intervalSeconds) {
+		reload();
+		reconciler=Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t=new Thread(r,"influxdb-bucket-index");
+			t.setDaemon(true);
+			return t;
+		});
+		reconciler.scheduleWithFixedDelay(() -> {
+			try {
+				reload();
+			} catch (Exception e) {
+				LOGGER.warn("Could not reconcile bucket index with InfluxDB: "+e.getMessage());
+			}
+		},intervalSeconds,intervalSeconds,TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		if (reconciler!=null) reconciler.shutdownNow();
+	}
+
+	public Bucket get(String uprn,String checkId) {
+		return buckets.get(getBucketName(uprn,checkId));
+	}
+
+	public Bucket get(String name) {
+		return buckets.get(name);
+	}
+
+	//as get, but a bucket missing from the index is looked up in InfluxDB, as another instance may have created it since the index was last reconciled
+	public Bucket find(String uprn,String checkId) {
+		String name=getBucketName(uprn,checkId);
+		Bucket bucket=buckets.get(name);
+		if (bucket!=null) return bucket;
+		Long missed=misses.get(name);
+		long now=System.currentTimeMillis();
+		if (missed!=null && now-missed<MISS_MILLIS) return null;
+		bucket=api.findBucketByName(name);
+		if (bucket!=null) {
+			put(bucket);
+			return bucket;
+		}
+		if (misses.size()>=MAX_MISSES) misses.values().removeIf(t -> now-t>=MISS_MILLIS);
+		if (misses.size()<MAX_MISSES) misses.put(name,now);
+		return null;
+	}
+
+	public void put(Bucket bucket) {
+		buckets.put(bucket.getName(),bucket);
+		misses.remove(bucket.getName());
+	}
+
+	public void remove(String name) {
+		buckets.remove(name);
+	}
+
+	public List<Bucket> getAll() {
+		return new ArrayList<Bucket>(buckets.values());
+	}
+
+	//returns the buckets of one building keyed by compliance check id
+	public Map<String,Bucket> getBuilding(String uprn) {
+		String buildingPrefix=prefix+uprn+"_";
+		Map<String,Bucket> result=new TreeMap<String,Bucket>();
+		for (Map.Entry<String,Bucket> entry: buckets.subMap(buildingPrefix,buildingPrefix+Character.MAX_VALUE).entrySet()) {
+			result.put(entry.getKey().substring(buildingPrefix.length()),entry.getValue());
+		}
+		return result;
+	}
+}
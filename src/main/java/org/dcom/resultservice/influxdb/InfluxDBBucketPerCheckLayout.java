@@ -0,0 +1,77 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.influxdb;
+
+import com.influxdb.client.BucketsApi;
+import com.influxdb.client.domain.Bucket;
+import com.influxdb.client.write.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+* The original layout, with a bucket named database_uprn_checkId for each compliance check of each building. Changing a UPRN renames the buckets of the building.
+*/
+public class InfluxDBBucketPerCheckLayout implements InfluxDBStorageLayout {
+
+	private InfluxDBBucketIndex bucketIndex;
+	private BucketsApi api;
+
+	public InfluxDBBucketPerCheckLayout(InfluxDBBucketIndex bucketIndex,BucketsApi api) {
+		this.bucketIndex=bucketIndex;
+		this.api=api;
+	}
+
+	public String getBucketName(String uprn,String checkId) {
+		return bucketIndex.getBucketName(uprn,checkId);
+	}
+
+	public void tag(Point point,String uprn,String checkId) {
+		//the bucket identifies the building and check
+	}
+
+	public String from(String uprn,String checkId,String range) {
+		if (checkId==null) return fromBuilding(uprn,range,"");
+		Bucket bucket=bucketIndex.find(uprn,checkId);
+		if (bucket==null) return null;
+		return "from(bucket:\""+bucket.getName()+"\")"+range;
+	}
+
+	public String fromBuilding(String uprn,String range,String filter) {
+		List<String> tables=new ArrayList<String>();
+		for (Map.Entry<String,Bucket> entry: bucketIndex.getBuilding(uprn).entrySet()) {
+			tables.add("from(bucket:\""+entry.getValue().getName()+"\")"+range+filter+" |> set(key:\"checkId\",value:"+InfluxDBResultServiceDatabase.fluxString(entry.getKey())+")");
+		}
+		if (tables.isEmpty()) return null;
+		return tables.size()==1 ? tables.get(0) : "union(tables:["+String.join(",",tables)+"])";
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+		for (Map.Entry<String,Bucket> entry: bucketIndex.getBuilding(oldUPRN).entrySet()) {
+				Bucket b=entry.getValue();
+				String oldName=b.getName();
+				b.setName(bucketIndex.getBucketName(newUPRN,entry.getKey()));
+				b=api.updateBucket(b);
+				bucketIndex.remove(oldName);
+				bucketIndex.put(b);
+		}
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,122 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.influxdb;
+
+import org.dcom.core.DCOM;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.InfluxDBClientFactory;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.Bucket;
+import com.influxdb.client.domain.Organization;
+import com.influxdb.client.write.Point;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* A maintenance tool that moves results from the bucket per compliance check layout into the single bucket layout. Each bucket is streamed into the single bucket in batches, tagged with the UPRN and check id taken from its name, and deleted once it has been copied.
+* A bucket interrupted part way is copied again on the next run, which only overwrites the points already copied. Buckets still holding payload tags must first be converted with InfluxDBPayloadMigration.
+* Run with the same environment variables as the service while no results are being uploaded, then set DCOM_ResultService_StorageLayout to single.
+*/
+public class InfluxDBLayoutMigration {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( InfluxDBLayoutMigration.class );
+	private static final int BATCH_SIZE=5000;
+
+	private InfluxDBClient db;
+	private String dbName;
+	private Organization org;
+	private WriteApiBlocking writeApi;
+
+	public InfluxDBLayoutMigration(InfluxDBClient db,String dbName) {
+		this.db=db;
+		this.dbName=dbName;
+		for (Organization o: db.getOrganizationsApi().findOrganizations()) {
+			if (o.getName().equals("DCOM")) org=o;
+		}
+		writeApi=db.getWriteApiBlocking();
+	}
+
+	public static void main(String[] args) {
+		InfluxDBClient db=InfluxDBClientFactory.create(DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBURL"),DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBPassword").toCharArray(),"DCOM");
+		try {
+			new InfluxDBLayoutMigration(db,DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBDatabase")).run();
+		} finally {
+			db.close();
+		}
+	}
+
+	public void run() {
+		if (org==null) {
+			LOGGER.info("No DCOM organisation, nothing to migrate");
+			return;
+		}
+		String target=InfluxDBResultServiceDatabase.resultsBucket(dbName);
+		String blobs=dbName+"_blobs";
+		String prefix=dbName+"_";
+		if (db.getBucketsApi().findBucketByName(target)==null) {
+			Bucket bucket=new Bucket();
+			bucket.setOrgID(org.getId());
+			bucket.setName(target);
+			db.getBucketsApi().createBucket(bucket);
+		}
+		InfluxDBBucketIndex index=new InfluxDBBucketIndex(db.getBucketsApi(),dbName);
+		index.reload();
+		int migrated=0;
+		int skipped=0;
+		for (Bucket bucket: index.getAll()) {
+			String name=bucket.getName();
+			if (name.equals(target) || name.equals(blobs) || name.endsWith("_migrating")) continue;
+			String key=name.substring(prefix.length());
+			int split=key.indexOf('_');
+			if (split<=0 || split==key.length()-1) continue;
+			if (InfluxDBPayloadMigration.hasPayloadTags(db.getQueryApi(),name)) {
+				LOGGER.warn("Skipping "+name+", it holds payload tags and must be converted with InfluxDBPayloadMigration first");
+				skipped++;
+				continue;
+			}
+			LOGGER.info("Migrating "+name);
+			if (migrate(bucket,target,key.substring(0,split),key.substring(split+1))) migrated++;
+		}
+		LOGGER.info("Migrated "+migrated+" buckets, skipped "+skipped);
+	}
+
+	//returns false if the copy was incomplete, in which case the bucket is kept
+	private boolean migrate(Bucket bucket,String target,String uprn,String checkId) {
+		List<Point> points=new ArrayList<Point>(BATCH_SIZE);
+		String query="from(bucket:\""+bucket.getName()+"\") |> range(start: 1970-01-01T00:00:00Z, stop: "+InfluxDBResultServiceDatabase.END_OF_TIME+")"+InfluxDBResultMapper.pivot();
+		InfluxDBResultServiceDatabase.streamQuery(db.getQueryApi(),query,record -> {
+			points.add(InfluxDBResultMapper.copy(record).addTag("uprn",uprn).addTag("checkId",checkId));
+			if (points.size()>=BATCH_SIZE) {
+				writeApi.writePoints(target,"DCOM",points);
+				points.clear();
+			}
+		});
+		if (!points.isEmpty()) writeApi.writePoints(target,"DCOM",points);
+		//the bucket is only deleted once every point is known to be in the target
+		long copied=InfluxDBPayloadMigration.countResults(db.getQueryApi(),target," |> filter(fn: (r) => r.uprn == "+InfluxDBResultServiceDatabase.fluxString(uprn)+" and r.checkId == "+InfluxDBResultServiceDatabase.fluxString(checkId)+")");
+		long original=InfluxDBPayloadMigration.countResults(db.getQueryApi(),bucket.getName(),"");
+		if (copied<original) {
+			LOGGER.error("Not deleting "+bucket.getName()+", it holds "+original+" results but "+target+" holds "+copied);
+			return false;
+		}
+		db.getBucketsApi().deleteBucket(bucket);
+		return true;
+	}
+}
@@ -0,0 +1,190 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.influxdb;
+
+import org.dcom.core.DCOM;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.influxdb.client.BucketsApi;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.InfluxDBClientFactory;
+import com.influxdb.client.QueryApi;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.Bucket;
+import com.influxdb.client.domain.Organization;
+import com.influxdb.client.write.Point;
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+* A maintenance tool that converts result buckets written by earlier versions, which held reasons, attribution and supporting files as tags, to the layout written by InfluxDBResultMapper.
+* Each bucket still holding payload tags is copied into a temporary bucket with its files moved to the blob store, then, if the copy holds as many results as the original, the original is deleted and the copy takes its name. Buckets already converted are skipped, so the tool can be run again after an interruption.
+* Run with the same environment variables as the service, ideally while no results are being uploaded.
+*/
+public class InfluxDBPayloadMigration {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( InfluxDBPayloadMigration.class );
+	private static final String TEMPORARY_SUFFIX="_migrating";
+	private static final int BATCH_SIZE=5000;
+
+	private InfluxDBClient db;
+	private String dbName;
+	private Organization org;
+	private InfluxDBBlobStore blobStore;
+	private WriteApiBlocking writeApi;
+
+	public InfluxDBPayloadMigration(InfluxDBClient db,String dbName) {
+		this.db=db;
+		this.dbName=dbName;
+		for (Organization o: db.getOrganizationsApi().findOrganizations()) {
+			if (o.getName().equals("DCOM")) org=o;
+		}
+		blobStore=new InfluxDBBlobStore(db.getQueryApi(),dbName+"_blobs",0,1000000);
+		writeApi=db.getWriteApiBlocking();
+	}
+
+	public static void main(String[] args) {
+		InfluxDBClient db=InfluxDBClientFactory.create(DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBURL"),DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBPassword").toCharArray(),"DCOM");
+		try {
+			new InfluxDBPayloadMigration(db,DCOM.getEnvironmentVariable("DCOM_ResultService_InfluxDBDatabase")).run();
+		} finally {
+			db.close();
+		}
+	}
+
+	public void run() {
+		if (org==null) {
+			LOGGER.info("No DCOM organisation, nothing to migrate");
+			return;
+		}
+		InfluxDBBucketIndex index=new InfluxDBBucketIndex(db.getBucketsApi(),dbName);
+		index.reload();
+		getOrCreateBucket(blobStore.getBucket());
+		int migrated=0;
+		for (Bucket bucket: index.getAll()) {
+			String name=bucket.getName();
+			if (name.equals(blobStore.getBucket()) || name.endsWith(TEMPORARY_SUFFIX)) continue;
+			if (!hasPayloadTags(db.getQueryApi(),name)) continue;
+			LOGGER.info("Migrating "+name);
+			if (migrate(bucket)) migrated++;
+		}
+		LOGGER.info("Migrated "+migrated+" buckets");
+	}
+
+	static boolean hasPayloadTags(QueryApi queryApi,String bucket) {
+		String query="import \"influxdata/influxdb/schema\"\nschema.tagKeys(bucket: \""+bucket+"\", start: 1970-01-01T00:00:00Z, stop: "+InfluxDBResultServiceDatabase.END_OF_TIME+")";
+		for (FluxTable table: queryApi.query(query)) {
+			for (FluxRecord record: table.getRecords()) {
+				String key=record.getValue().toString();
+				if (key.equals("reasons") || key.equals("attributation") || key.equals("supportingFileData") || key.equals("supportingFileContentType")) return true;
+			}
+		}
+		return false;
+	}
+
+	//returns false if the copy was incomplete, in which case the original is kept
+	private boolean migrate(Bucket bucket) {
+		BucketsApi api=db.getBucketsApi();
+		String name=bucket.getName();
+		String temporaryName=name+TEMPORARY_SUFFIX;
+		//a copy left by an interrupted run is incomplete, so it is started again
+		Bucket previous=api.findBucketByName(temporaryName);
+		if (previous!=null) api.deleteBucket(previous);
+		Bucket temporary=getOrCreateBucket(temporaryName);
+
+		List<Point> points=new ArrayList<Point>(BATCH_SIZE);
+		List<Point> blobs=new ArrayList<Point>();
+		List<String> blobHashes=new ArrayList<String>();
+		String query="from(bucket:\""+name+"\") |> range(start: 1970-01-01T00:00:00Z, stop: "+InfluxDBResultServiceDatabase.END_OF_TIME+")"+InfluxDBResultMapper.pivot();
+		InfluxDBResultServiceDatabase.streamQuery(db.getQueryApi(),query,record -> {
+			points.add(convert(record,blobs,blobHashes));
+			if (points.size()>=BATCH_SIZE) flush(temporaryName,points,blobs,blobHashes);
+		});
+		flush(temporaryName,points,blobs,blobHashes);
+
+		//the original is only deleted once every point is known to be in the copy
+		long copied=countResults(db.getQueryApi(),temporaryName,"");
+		long original=countResults(db.getQueryApi(),name,"");
+		if (copied!=original) {
+			LOGGER.error("Not replacing "+name+", it holds "+original+" results but the copy holds "+copied);
+			return false;
+		}
+		api.deleteBucket(bucket);
+		temporary.setName(name);
+		api.updateBucket(temporary);
+		return true;
+	}
+
+	//every point of each layout, conditions included, has a result field. filter is Flux that narrows the bucket further, or empty
+	static long countResults(QueryApi queryApi,String bucket,String filter) {
+		String query="from(bucket:\""+bucket+"\") |> range(start: 1970-01-01T00:00:00Z, stop: "+InfluxDBResultServiceDatabase.END_OF_TIME+")"+filter+" |> filter(fn: (r) => r._field == \"result\") |> group() |> count()";
+		long count=0;
+		for (FluxTable table: queryApi.query(query)) {
+			for (FluxRecord record: table.getRecords()) count+=((Number)record.getValue()).longValue();
+		}
+		return count;
+	}
+
+	private Point convert(FluxRecord record,List<Point> blobs,List<String> blobHashes) {
+		if ("conditions".equals(record.getMeasurement())) {
+			Object reasons=record.getValueByKey("reasons");
+			return InfluxDBResultMapper.conditionsPoint(reasons==null ? new ArrayList<String>() : Arrays.asList(reasons.toString()),record.getTime());
+		}
+		List<String> hashes=new ArrayList<String>();
+		for (String data: split(record.getValueByKey("supportingFileData"))) {
+			String hash=InfluxDBBlobStore.hash(data);
+			if (!blobStore.isWritten(hash) && !blobHashes.contains(hash)) {
+				blobs.add(InfluxDBBlobStore.toPoint(hash,data));
+				blobHashes.add(hash);
+			}
+			hashes.add(hash);
+		}
+		Object result=record.getValueByKey("result");
+		Object attributation=record.getValueByKey("attributation");
+		return InfluxDBResultMapper.resultPoint(record.getMeasurement(),record.getTime(),result==null ? null : result.toString(),split(record.getValueByKey("reasons")),attributation==null ? null : attributation.toString(),hashes,split(record.getValueByKey("supportingFileContentType")));
+	}
+
+	private void flush(String bucket,List<Point> points,List<Point> blobs,List<String> blobHashes) {
+		if (!blobs.isEmpty()) {
+			writeApi.writePoints(blobStore.getBucket(),"DCOM",blobs);
+			for (String hash: blobHashes) blobStore.markWritten(hash);
+			blobs.clear();
+			blobHashes.clear();
+		}
+		if (!points.isEmpty()) writeApi.writePoints(bucket,"DCOM",points);
+		points.clear();
+	}
+
+	private static List<String> split(Object data) {
+		if (data==null) return new ArrayList<String>();
+		return Arrays.asList(data.toString().split(","));
+	}
+
+	private Bucket getOrCreateBucket(String name) {
+		Bucket bucket=db.getBucketsApi().findBucketByName(name);
+		if (bucket!=null) return bucket;
+		bucket=new Bucket();
+		bucket.setOrgID(org.getId());
+		bucket.setName(name);
+		return db.getBucketsApi().createBucket(bucket);
+	}
+}
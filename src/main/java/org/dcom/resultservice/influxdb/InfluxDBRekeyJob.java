@@ -0,0 +1,160 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.influxdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.write.Point;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+* Moves the results of a building in the single bucket layout from one UPRN to another. The history is worked through in windows of thirty days, each copied with the new uprn tag in batches and then deleted under the old one.
+* Progress is saved to a file after every window, so a job interrupted by a restart carries on from the last completed window. Copying a window again only overwrites the points already copied.
+*/
+public class InfluxDBRekeyJob implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( InfluxDBRekeyJob.class );
+	private static final Duration WINDOW=Duration.ofDays(30);
+	private static final int BATCH_SIZE=5000;
+	static final String SUFFIX=".rekey";
+
+	private InfluxDBClient db;
+	private String bucket;
+	private File file;
+	private String oldUPRN;
+	private String newUPRN;
+	private Instant next;
+
+	private InfluxDBRekeyJob(InfluxDBClient db,String bucket,File file,String oldUPRN,String newUPRN,Instant next) {
+		this.db=db;
+		this.bucket=bucket;
+		this.file=file;
+		this.oldUPRN=oldUPRN;
+		this.newUPRN=newUPRN;
+		this.next=next;
+	}
+
+	//records a new job on disk before it is started, so it is not lost if the service stops first
+	public static InfluxDBRekeyJob create(InfluxDBClient db,String bucket,File directory,String oldUPRN,String newUPRN) throws IOException {
+		File file=new File(directory,System.currentTimeMillis()+"-"+InfluxDBBlobStore.hash(oldUPRN+"\n"+newUPRN).substring(0,16)+SUFFIX);
+		InfluxDBRekeyJob job=new InfluxDBRekeyJob(db,bucket,file,oldUPRN,newUPRN,null);
+		job.save();
+		return job;
+	}
+
+	public static InfluxDBRekeyJob load(InfluxDBClient db,String bucket,File file) throws IOException {
+		Properties state=new Properties();
+		try (InputStream in=new FileInputStream(file)) {
+			state.load(in);
+		}
+		String next=state.getProperty("next");
+		return new InfluxDBRekeyJob(db,bucket,file,state.getProperty("oldUPRN"),state.getProperty("newUPRN"),next==null ? null : Instant.parse(next));
+	}
+
+	public String getOldUPRN() {
+		return oldUPRN;
+	}
+
+	public String getNewUPRN() {
+		return newUPRN;
+	}
+
+	public boolean isDone() {
+		return !file.exists();
+	}
+
+	public void run() {
+		LOGGER.info("Moving results of "+oldUPRN+" to "+newUPRN+(next==null ? "" : " from "+next));
+		Instant windowStart;
+		while ((windowStart=firstAfter(next))!=null) {
+			Instant windowEnd=windowStart.plus(WINDOW);
+			copy(windowStart,windowEnd);
+			//the delete range includes its stop time
+			db.getDeleteApi().delete(windowStart.atOffset(ZoneOffset.UTC),windowEnd.minusNanos(1).atOffset(ZoneOffset.UTC),"uprn="+InfluxDBResultServiceDatabase.fluxString(oldUPRN),bucket,"DCOM");
+			next=windowEnd;
+			try {
+				save();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		file.delete();
+		LOGGER.info("Moved results of "+oldUPRN+" to "+newUPRN);
+	}
+
+	//the time of the earliest point still held under the old UPRN, so empty stretches of history are skipped
+	private Instant firstAfter(Instant from) {
+		StringBuffer query=new StringBuffer();
+		query.append("from(bucket:\"").append(bucket).append("\")");
+		query.append(" |> range(start: ").append(from==null ? "1970-01-01T00:00:00Z" : from.toString()).append(", stop: ").append(InfluxDBResultServiceDatabase.END_OF_TIME).append(")");
+		query.append(" |> filter(fn: (r) => r.uprn == ").append(InfluxDBResultServiceDatabase.fluxString(oldUPRN)).append(")");
+		query.append(" |> keep(columns:[\"_time\",\"_value\"])");
+		query.append(" |> group()");
+		query.append(" |> sort(columns:[\"_time\"])");
+		query.append(" |> limit(n:1)");
+		Instant[] first={null};
+		InfluxDBResultServiceDatabase.streamQuery(db.getQueryApi(),query.toString(),record -> first[0]=record.getTime());
+		return first[0];
+	}
+
+	private void copy(Instant start,Instant stop) {
+		StringBuffer query=new StringBuffer();
+		query.append("from(bucket:\"").append(bucket).append("\")");
+		query.append(" |> range(start: ").append(start.toString()).append(", stop: ").append(stop.toString()).append(")");
+		query.append(" |> filter(fn: (r) => r.uprn == ").append(InfluxDBResultServiceDatabase.fluxString(oldUPRN)).append(")");
+		query.append(InfluxDBResultMapper.pivot());
+		List<Point> points=new ArrayList<Point>(BATCH_SIZE);
+		InfluxDBResultServiceDatabase.streamQuery(db.getQueryApi(),query.toString(),record -> {
+			Object checkId=record.getValueByKey("checkId");
+			if (checkId==null) return;
+			points.add(InfluxDBResultMapper.copy(record).addTag("uprn",newUPRN).addTag("checkId",checkId.toString()));
+			if (points.size()>=BATCH_SIZE) {
+				db.getWriteApiBlocking().writePoints(bucket,"DCOM",points);
+				points.clear();
+			}
+		});
+		if (!points.isEmpty()) db.getWriteApiBlocking().writePoints(bucket,"DCOM",points);
+	}
+
+	//written to a temporary file and moved into place, so a crash never leaves a half written state
+	private void save() throws IOException {
+		Properties state=new Properties();
+		state.setProperty("oldUPRN",oldUPRN);
+		state.setProperty("newUPRN",newUPRN);
+		if (next!=null) state.setProperty("next",next.toString());
+		File temporary=new File(file.getPath()+".tmp");
+		try (OutputStream out=new FileOutputStream(temporary)) {
+			state.store(out,null);
+		}
+		Files.move(temporary.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+	}
+}
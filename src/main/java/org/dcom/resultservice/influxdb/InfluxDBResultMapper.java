@@ -0,0 +1,111 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.influxdb;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.ResultServiceDatabase;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import com.influxdb.query.FluxRecord;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+* Converts between compliance results and InfluxDB points. Only the document reference is a tag, the result, reasons, attribution and content types are fields and supporting files are stored in the blob store and referenced by hash, so distinct payloads do not create new series.
+* Records are read after a pivot on _field, which also reads results written by earlier versions that held the payloads as tags.
+*/
+public class InfluxDBResultMapper {
+
+	private static final String[] FIELDS={"result","reasons","attributation","supportingFileHashes","supportingFileContentType"};
+
+	private Function<String,String> blobLoader;
+
+	public InfluxDBResultMapper(Function<String,String> blobLoader) {
+		this.blobLoader=blobLoader;
+	}
+
+	public static Point conditionsPoint(List<String> conditions,Instant time) {
+		return Point.measurement("conditions").addField("reasons",String.join(",",conditions)).addField("result","true").time(time,WritePrecision.NS);
+	}
+
+	public static Point resultPoint(String reference,Instant time,String result,List<String> reasons,String attributation,List<String> supportingFileHashes,List<String> supportingFileContentType) {
+		Point point=Point.measurement(reference).time(time,WritePrecision.NS);
+		if (supportingFileContentType!=null && supportingFileContentType.size()>0) point.addField("supportingFileContentType",String.join(",",supportingFileContentType));
+		if (supportingFileHashes!=null && supportingFileHashes.size()>0) point.addField("supportingFileHashes",String.join(",",supportingFileHashes));
+		if (result!=null) point.addField("result",result);
+		if (attributation!=null) point.addField("attributation",attributation);
+		if (reasons!=null && reasons.size()>0) point.addField("reasons",String.join(",",reasons));
+		return point;
+	}
+
+	//the flux that turns one record per field into one record per result
+	public static String pivot() {
+		return " |> pivot(rowKey:[\"_time\"], columnKey:[\"_field\"], valueColumn:\"_value\")";
+	}
+
+	//rebuilds a point from a pivoted record of the current layout, without its tags, for moving it elsewhere
+	public static Point copy(FluxRecord fluxRecord) {
+		Point point=Point.measurement(fluxRecord.getMeasurement()).time(fluxRecord.getTime(),WritePrecision.NS);
+		for (String field: FIELDS) {
+			Object value=fluxRecord.getValueByKey(field);
+			if (value!=null) point.addField(field,value.toString());
+		}
+		return point;
+	}
+
+	public ComplianceCheckResultItem toResultItem(FluxRecord fluxRecord,int level) {
+		List<String> reasons;
+		List<String> supportingFileData;
+		List<String> supportingFileContentType;
+		if (level <3 ) {
+			reasons=split(fluxRecord.getValueByKey("reasons"));
+			supportingFileContentType=split(fluxRecord.getValueByKey("supportingFileContentType"));
+			//supporting files are only fetched for callers allowed to see them, and never for a search index
+			Object hashes=fluxRecord.getValueByKey("supportingFileHashes");
+			if (level==ResultServiceDatabase.INDEX_LEVEL) {
+				supportingFileData=new ArrayList<String>();
+			} else if (hashes!=null) {
+				supportingFileData=new ArrayList<String>();
+				for (String hash: hashes.toString().split(",")) supportingFileData.add(blobLoader.apply(hash));
+			} else {
+				supportingFileData=split(fluxRecord.getValueByKey("supportingFileData"));
+			}
+		} else {
+			reasons=new ArrayList<String>();
+			supportingFileData=new ArrayList<String>();
+			supportingFileContentType=new ArrayList<String>();
+		}
+		String attributation="";
+		if (level <2) {
+			if (fluxRecord.getValueByKey("attributation")!=null) attributation=fluxRecord.getValueByKey("attributation").toString();
+		}
+		Object result=fluxRecord.getValueByKey("result");
+		return new ComplianceCheckResultItem(fluxRecord.getMeasurement(), LocalDateTime.ofInstant(fluxRecord.getTime(),ZoneId.systemDefault()),reasons,attributation,result==null ? "" : result.toString(),supportingFileData,supportingFileContentType);
+	}
+
+	private static List<String> split(Object data) {
+		if (data==null) return new ArrayList<String>();
+		return Arrays.asList(data.toString().split(","));
+	}
+}
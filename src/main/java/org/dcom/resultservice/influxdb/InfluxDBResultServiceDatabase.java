@@ -19,30 +19,41 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 package org.dcom.resultservice.influxdb;
 
 import org.dcom.resultservice.ResultServiceDatabase;
+import org.dcom.resultservice.ResultWindow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import org.dcom.core.services.ComplianceCheckResultIndexItem;
 import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
+import com.influxdb.client.InfluxDBClientOptions;
+import com.influxdb.client.domain.HealthCheck;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 import com.influxdb.client.BucketsApi;
 import com.influxdb.client.domain.Bucket;
-import com.influxdb.client.WriteApi;
 import java.time.ZoneOffset;
-import com.influxdb.client.domain.WritePrecision;
 import com.influxdb.client.write.Point;
 import java.time.Instant;
 import com.influxdb.query.FluxRecord;
 import com.influxdb.query.FluxTable;
 import com.influxdb.client.QueryApi;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import com.influxdb.client.domain.Organization;
 import com.influxdb.client.OrganizationsApi;
 import java.util.List;
 import java.time.ZoneId;
-import java.util.Arrays;
-import java.util.List;
+import org.dcom.resultservice.ResultServiceConfiguration;
+import org.dcom.resultservice.LatestResultSummary;
+import org.dcom.resultservice.ResultCursor;
+import org.dcom.resultservice.metrics.ResultServiceMetrics;
 
 /**
 * The implementation of ResultServiceData for InfluxDB. This seperation enables the service to be ported to use a new backend databy with just the recreation of this one file.
@@ -53,146 +64,325 @@ public class InfluxDBResultServiceDatabase implements ResultServiceDatabase {
 	private String dbName;
 	private InfluxDBClient db;
 	private Organization org;
+	private InfluxDBBucketIndex bucketIndex;
+	private LatestResultSummary summary=new LatestResultSummary(ResultServiceConfiguration.getLong("DCOM_ResultService_SummaryCacheSeconds",60)*1000,ResultServiceConfiguration.getInt("DCOM_ResultService_SummaryCacheBuildings",10000));
+	private InfluxDBWritePipeline writePipeline;
+	private InfluxDBWriteAheadLog writeAheadLog;
+	private InfluxDBBlobStore blobStore;
+	private InfluxDBResultMapper mapper;
+	private InfluxDBStorageLayout layout;
 
+	/**
+	* Connects with a single client whose connection pool is shared by queries and writes, the client is warmed with a health check so the first request does not pay for the connection.
+	* @throws RuntimeException if InfluxDB cannot be reached or the backend cannot be set up, in which case nothing it started is left open
+	*/
 	public InfluxDBResultServiceDatabase(String url,String username,String password,String database) {
-    	db = InfluxDBClientFactory.create(url,password.toCharArray());
+			int connections=ResultServiceConfiguration.getInt("DCOM_ResultService_InfluxDBConnections",32);
+			//queries are streamed through the client's dispatcher, which by default runs only five at a time per host
+			Dispatcher dispatcher=new Dispatcher();
+			dispatcher.setMaxRequests(connections);
+			dispatcher.setMaxRequestsPerHost(connections);
+			OkHttpClient.Builder http=new OkHttpClient.Builder().connectionPool(new ConnectionPool(connections,5,TimeUnit.MINUTES)).dispatcher(dispatcher);
+			db=InfluxDBClientFactory.create(InfluxDBClientOptions.builder().url(url).authenticateToken(password.toCharArray()).org("DCOM").okHttpClient(http).build());
 			dbName=database;
-			OrganizationsApi orgApi=db.getOrganizationsApi();
-			List<Organization> orgs=orgApi.findOrganizations();
-			org=null;
-			for (Organization orgThis: orgs) {
-				if (orgThis.getName().equals("DCOM"))  org=orgThis;
+			try {
+				HealthCheck health=db.health();
+				if (health.getStatus()!=HealthCheck.StatusEnum.PASS) throw new IllegalStateException("InfluxDB is not healthy: "+health.getMessage());
+				OrganizationsApi orgApi=db.getOrganizationsApi();
+				List<Organization> orgs=orgApi.findOrganizations();
+				org=null;
+				for (Organization orgThis: orgs) {
+					if (orgThis.getName().equals("DCOM"))  org=orgThis;
+				}
+				if (org==null) org=orgApi.createOrganization("DCOM");
+				bucketIndex=new InfluxDBBucketIndex(db.getBucketsApi(),dbName);
+				bucketIndex.start(ResultServiceConfiguration.getLong("DCOM_ResultService_BucketIndexRefreshSeconds",300));
+				blobStore=new InfluxDBBlobStore(db.getQueryApi(),dbName+"_blobs",ResultServiceConfiguration.getLong("DCOM_ResultService_BlobCacheChars",64*1024*1024),100000);
+				mapper=new InfluxDBResultMapper(blobStore::load);
+				if (ResultServiceConfiguration.getString("DCOM_ResultService_StorageLayout","bucket").equals("single")) {
+					getOrCreateBucket(resultsBucket(dbName));
+					String jobPath=ResultServiceConfiguration.getString("DCOM_ResultService_JobPath",null);
+					if (jobPath==null) throw new IllegalStateException("DCOM_ResultService_JobPath is required by the single bucket layout");
+					layout=new InfluxDBSingleBucketLayout(db,resultsBucket(dbName),jobPath);
+				} else {
+					layout=new InfluxDBBucketPerCheckLayout(bucketIndex,db.getBucketsApi());
+				}
+				int batchSize=ResultServiceConfiguration.getInt("DCOM_ResultService_WriteBatchSize",1000);
+				long flushMillis=ResultServiceConfiguration.getLong("DCOM_ResultService_WriteFlushMillis",1000);
+				String walPath=ResultServiceConfiguration.getString("DCOM_ResultService_WALPath",null);
+				if (walPath!=null) {
+					writeAheadLog=new InfluxDBWriteAheadLog(walPath,ResultServiceConfiguration.getLong("DCOM_ResultService_WALSegmentBytes",16*1024*1024),ResultServiceConfiguration.getLong("DCOM_ResultService_WALMaxBytes",1024L*1024*1024),db.getWriteApiBlocking(),"DCOM",this::getOrCreateBucket,batchSize,flushMillis);
+				} else {
+					writePipeline=new InfluxDBWritePipeline(db.getWriteApiBlocking(),"DCOM",batchSize,flushMillis,ResultServiceConfiguration.getInt("DCOM_ResultService_WriteQueueCapacity",100000));
+				}
+			} catch (RuntimeException e) {
+				//the startup retries, so whatever was started before the failure is stopped rather than left running
+				close();
+				throw e;
 			}
-			if (org==null) org=orgApi.createOrganization("DCOM");
-			db = InfluxDBClientFactory.create(url,password.toCharArray(),"DCOM");
-				
+	}
+	
+	//null when the write ahead log is in use
+	public InfluxDBWritePipeline getWritePipeline() {
+			return writePipeline;
+	}
+	
+	//null unless DCOM_ResultService_WALPath is set
+	public InfluxDBWriteAheadLog getWriteAheadLog() {
+			return writeAheadLog;
 	}
 	
 	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn) {
-			List<ComplianceCheckResultIndexItem> results=new ArrayList<ComplianceCheckResultIndexItem>();
-			BucketsApi api=db.getBucketsApi();
-			List<Bucket> buckets=api.findBuckets();
-			for (Bucket b: buckets) {
-				if (b.getName().startsWith(dbName+"_"+uprn)) {
-					String uid=b.getName().replace(dbName+"_"+uprn+"_","");
-					QueryApi queryApi = db.getQueryApi();
-					StringBuffer query=new StringBuffer();
-					query.append("from(bucket:\"").append(b.getName()).append("\")");
-					query.append(" |> range(start: -100y)");
-					query.append(" |> filter(fn: (r) => r._measurement != \"condition\")");
-					query.append(" |> sort(columns:[\"_time\"],desc:true)");
-					query.append(" |> limit(n:1)");
-					List<FluxTable> tables = queryApi.query(query.toString());
-					for (FluxTable fluxTable : tables) {
-						List<FluxRecord> records = fluxTable.getRecords();
-							 for (FluxRecord fluxRecord : records) {
-								 	ComplianceCheckResultIndexItem item=new ComplianceCheckResultIndexItem(fluxRecord.getMeasurement(), uid, fluxRecord.getValue().toString(), LocalDateTime.ofInstant(fluxRecord.getTime(),ZoneId.systemDefault()));
-									results.add(item);
-							 }
+			if (!summary.isLoaded(uprn)) loadSummary(uprn);
+			return summary.get(uprn);
+	}
+	
+	//rebuilds the latest result summary of a building with one query across all of its checks, concurrent loads of the same building are harmless as only newer results are kept
+	private void loadSummary(String uprn) {
+			String source=layout.fromBuilding(uprn," |> range(start: -100y)"," |> filter(fn: (r) => r._measurement != \"conditions\" and r._field == \"result\")");
+			if (source!=null) {
+				StringBuffer query=new StringBuffer(source);
+				query.append(" |> group(columns:[\"checkId\",\"_measurement\"])");
+				query.append(" |> sort(columns:[\"_time\"],desc:true)");
+				query.append(" |> limit(n:1)");
+				query.append(" |> keep(columns:[\"_time\",\"_value\",\"_measurement\",\"checkId\"])");
+				long started=System.nanoTime();
+				List<FluxTable> result = db.getQueryApi().query(query.toString());
+				ResultServiceMetrics.get().record(ResultServiceMetrics.QUERY,System.nanoTime()-started,"query","summary");
+				for (FluxTable fluxTable : result) {
+					for (FluxRecord fluxRecord : fluxTable.getRecords()) {
+						summary.update(uprn,fluxRecord.getValueByKey("checkId").toString(),fluxRecord.getMeasurement(),fluxRecord.getValue().toString(),LocalDateTime.ofInstant(fluxRecord.getTime(),ZoneId.systemDefault()));
 					}
 				}
 			}
-			return results;	
+			summary.markLoaded(uprn);
 	}
 	
 	public void updateUPRN(String oldUPRN,String newUPRN) {
-		List<Bucket> buckets=db.getBucketsApi().findBuckets();
-		for (Bucket b: buckets) {
-				if (b.getName().startsWith(dbName+"_"+oldUPRN)) {
-							b.setName(b.getName().replace(oldUPRN,newUPRN));
-				}
-		}
-	
+		layout.updateUPRN(oldUPRN,newUPRN);
+		summary.rename(oldUPRN,newUPRN);
 	}
 	
 	
-	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level) {
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit) {
 			List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
-			Bucket bucket=db.getBucketsApi().findBucketByName(dbName+"_"+uprn+"_"+checkId);
-			if (bucket==null) return results;
-			QueryApi queryApi = db.getQueryApi();
-			StringBuffer query=new StringBuffer();
-			query.append("from(bucket:\"").append(bucket.getName()).append("\")");
+			streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,results::add);
+			return results;
+	}
+	
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+			//a page is never given at level 4, which sees only the latest result
+			boolean paged=level!=4 && (after!=null || limit>0);
+			String source=layout.from(uprn,checkId,paged ? pagedRange(start,end,after) : range(start,end));
+			if (source==null) return;
+			StringBuffer query=new StringBuffer(source);
+			if (paged) {
+				appendPagedQuery(query,documentFilter,after,limit);
+			} else {
+				if (documentFilter!=null) {
+					query.append(" |> filter(fn: (r) => r._measurement == \"condition\" or r._measurement == \""+documentFilter+"\")");
+				}
+				query.append(InfluxDBResultMapper.pivot());
+				if (level==4) {
+					query.append(" |> sort(columns:[\"_time\"],desc:true)");
+					query.append(" |> limit(n:1)");
+				}
+				query.append(" |> sort(columns:[\"_time\"],desc:true)");
+			}
+			streamQuery(paged ? "page" : "results",query.toString(),fluxRecord -> consumer.accept(mapper.toResultItem(fluxRecord,level)));
+	}
+	
+	//counted in InfluxDB, so the response holds one record per window, document and result value however many results there are
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window) {
+			ResultWindow.Collector windows=new ResultWindow.Collector(window);
+			String source=layout.from(uprn,checkId,range(start,end));
+			if (source==null) return windows.get();
+			StringBuffer query=new StringBuffer(source);
+			query.append(" |> filter(fn: (r) => r._field == \"result\" and r._measurement != \"conditions\")");
+			//the result value becomes a column so that it can be grouped on
+			query.append(" |> map(fn: (r) => ({r with result: r._value}))");
+			query.append(" |> group(columns:[\"_measurement\",\"result\"])");
+			query.append(" |> aggregateWindow(every: ").append(window.getSeconds()).append("s, fn: count, timeSrc: \"_start\", createEmpty: false)");
+			streamQuery("aggregate",query.toString(),fluxRecord -> windows.addToWindow(fluxRecord.getTime(),fluxRecord.getMeasurement(),String.valueOf(fluxRecord.getValueByKey("result")),((Number)fluxRecord.getValue()).longValue()));
+			return windows.get();
+	}
+	
+	private static String range(LocalDateTime start,LocalDateTime end) {
 			if (start!=null && end !=null) {
-				query.append(" |> range(start: "+start.toString()+", stop:"+end.toString()+")");
+				return " |> range(start: "+fluxTime(start)+", stop:"+fluxTime(end)+")";
 			} else if (start!=null) {
-					query.append(" |> range(start: "+start.toString()+")");
+				return " |> range(start: "+fluxTime(start)+")";
 			} else {
-					query.append(" |> range(start: -100y, stop:26h)"); // this is the maximum in the future something can be given time zone irregularities
+				return " |> range(start: -100y, stop:26h)"; // this is the maximum in the future something can be given time zone irregularities
 			}
+	}
+	
+	//a page stops the range at the cursor and limits the merged series, so each page costs the same however far back it is
+	private static String pagedRange(LocalDateTime start,LocalDateTime end,ResultCursor after) {
+			String stop=end!=null ? fluxTime(end) : "26h";
+			if (after!=null) {
+				Instant cursorStop=after.getTime().plusNanos(1);
+				if (end==null || cursorStop.isBefore(end.atZone(ZoneId.systemDefault()).toInstant())) stop=cursorStop.toString();
+			}
+			return " |> range(start: "+(start!=null ? fluxTime(start) : "-100y")+", stop:"+stop+")";
+	}
+	
+	private static void appendPagedQuery(StringBuffer query,String documentFilter,ResultCursor after,int limit) {
 			if (documentFilter!=null) {
 				query.append(" |> filter(fn: (r) => r._measurement == \"condition\" or r._measurement == \""+documentFilter+"\")");
 			}
-			if (level==4) {
-				query.append(" |> sort(columns:[\"_time\"],desc:true)");
-				query.append(" |> limit(n:1)");
+			query.append(InfluxDBResultMapper.pivot());
+			query.append(" |> group()");
+			if (after!=null) {
+				String cursorTime="time(v:\""+after.getTime().toString()+"\")";
+				query.append(" |> filter(fn: (r) => r._time < ").append(cursorTime).append(" or (r._time == ").append(cursorTime).append(" and r._measurement < ").append(fluxString(after.getReference())).append("))");
+			}
+			query.append(" |> sort(columns:[\"_time\",\"_measurement\"],desc:true)");
+			if (limit>0) query.append(" |> limit(n:").append(limit).append(")");
+	}
+	
+	//includes the time taken by the consumer, as records are passed on while the response is read
+	private void streamQuery(String kind,String query,Consumer<FluxRecord> consumer) {
+			long start=System.nanoTime();
+			try {
+				streamQuery(db.getQueryApi(),query,consumer);
+			} finally {
+				ResultServiceMetrics.get().record(ResultServiceMetrics.QUERY,System.nanoTime()-start,"query",kind);
+			}
+	}
+	
+	//runs a query passing each record to the consumer as it is parsed from the response, rather than collecting the whole result first
+	static void streamQuery(QueryApi queryApi,String query,Consumer<FluxRecord> consumer) {
+			CountDownLatch done=new CountDownLatch(1);
+			AtomicReference<Throwable> error=new AtomicReference<Throwable>();
+			queryApi.query(query,(cancellable,fluxRecord) -> {
+				if (error.get()!=null) return;
+				try {
+					consumer.accept(fluxRecord);
+				} catch (RuntimeException e) {
+					//typically the client has gone away, so there is no point reading further
+					error.set(e);
+					cancellable.cancel();
+					done.countDown();
+				}
+			},e -> {
+				error.compareAndSet(null,e);
+				done.countDown();
+			},done::countDown);
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
 			}
-			query.append(" |> sort(columns:[\"_time\"],desc:true)");
-			List<FluxTable> tables = queryApi.query(query.toString());
-			for (FluxTable fluxTable : tables) {
-				List<FluxRecord> records = fluxTable.getRecords();
-					 for (FluxRecord fluxRecord : records) {
-							List<String> reasons;
-							List<String> supportingFileData;
-							List<String> supportingFileContentType;
-							if (level <3 ) {
-								Object data=fluxRecord.getValueByKey("reasons");
-								if (data!=null) reasons=Arrays.asList(data.toString().split(",")); else reasons=new ArrayList<String>();
-								data=fluxRecord.getValueByKey("supportingFileData");
-								if (data!=null) supportingFileData=Arrays.asList(data.toString().split(",")); else supportingFileData=new ArrayList<String>();
-								data=fluxRecord.getValueByKey("supportingFileContentType");
-								if (data!=null) supportingFileContentType=Arrays.asList(data.toString().split(",")); else 	supportingFileContentType=new ArrayList<String>();
-							} else {
-								reasons=new ArrayList<String>();
-								supportingFileData=new ArrayList<String>();
-								supportingFileContentType=new ArrayList<String>();
-							}
-							String attributation="";
-							if (level <2) {
-								if (fluxRecord.getValueByKey("attributation")!=null) attributation=fluxRecord.getValueByKey("attributation").toString();
-							}
-							ComplianceCheckResultItem item=new ComplianceCheckResultItem(fluxRecord.getMeasurement(), LocalDateTime.ofInstant(fluxRecord.getTime(),ZoneId.systemDefault()),reasons,attributation,fluxRecord.getValue().toString(),supportingFileData,supportingFileContentType);
-							results.add(item);
-					 }
+			Throwable t=error.get();
+			if (t instanceof RuntimeException) throw (RuntimeException)t;
+			if (t!=null) throw new RuntimeException(t);
+	}
+	
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+			String bucketName=layout.getBucketName(uprn,checkId);
+			List<Point> points=new ArrayList<Point>(results.size()+1);
+			List<Point> blobs=new ArrayList<Point>();
+			List<String> blobHashes=new ArrayList<String>();
+		
+			//stamped now, as the point may wait in the write queue before it reaches InfluxDB. A batch after the first of a streamed upload has no conditions of its own
+			LocalDateTime conditionsTime=null;
+			if (conditions!=null && !conditions.isEmpty()) {
+				Instant now=Instant.now();
+				conditionsTime=LocalDateTime.ofInstant(now,ZoneId.systemDefault());
+				Point conditionsPoint=InfluxDBResultMapper.conditionsPoint(conditions,now);
+				layout.tag(conditionsPoint,uprn,checkId);
+				points.add(conditionsPoint);
 			}
 			
-			
-			return results;
+			for (ComplianceCheckResultItem result: results){
+				List<String> hashes=new ArrayList<String>();
+				if (result.getSupportingFileData()!=null) {
+					for (String data: result.getSupportingFileData()) {
+						String hash=InfluxDBBlobStore.hash(data);
+						if (!blobStore.isWritten(hash) && !blobHashes.contains(hash)) {
+							blobs.add(InfluxDBBlobStore.toPoint(hash,data));
+							blobHashes.add(hash);
+						}
+						hashes.add(hash);
+					}
+				}
+				Point point=InfluxDBResultMapper.resultPoint(result.getReference(),result.getTime().toInstant(ZoneOffset.UTC),result.getResult(),result.getReasons(),result.getAttributation(),hashes,result.getSupportingFileContentType());
+				layout.tag(point,uprn,checkId);
+				points.add(point);
+			}
+			//blobs are queued first and written first, so a result is not visible before the files it refers to. They are only remembered as written once they have been
+			if (!blobs.isEmpty()) write(blobStore.getBucket(),blobs,() -> {
+				for (String hash: blobHashes) blobStore.markWritten(hash);
+			});
+			if (!points.isEmpty()) write(bucketName,points,null);
+			//held as it will be read back, so that it compares with the times of a later load
+			for (ComplianceCheckResultItem result: results) summary.update(uprn,checkId,result.getReference(),result.getResult(),storedTime(result.getTime()));
+			return conditionsTime;
 	}
 	
-	public void addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
-		 	WriteApi writeApi=db.getWriteApi();
+	//onWritten, if given, runs once the points are durable: on disk in the write ahead log, or in InfluxDB
+	private void write(String bucketName,List<Point> points,Runnable onWritten) {
+			if (writeAheadLog!=null) {
+				//the replayer creates the bucket if needed, so an upload can be accepted while InfluxDB is unavailable
+				writeAheadLog.append(bucketName,points);
+				if (onWritten!=null) onWritten.run();
+			} else {
+				getOrCreateBucket(bucketName);
+				writePipeline.write(bucketName,points,onWritten);
+			}
+	}
+	
+	//also stops whatever a failed constructor had started, so each part may be missing
+	public void close() {
+			if (bucketIndex!=null) bucketIndex.stop();
+			if (layout!=null) layout.close();
+			if (writeAheadLog!=null) writeAheadLog.close();
+			if (writePipeline!=null) writePipeline.close();
+			db.close();
+	}
+	
+	//results are read back in the system time zone, so range bounds are given in it too
+	private static String fluxTime(LocalDateTime time) {
+		return time.atZone(ZoneId.systemDefault()).toInstant().toString();
+	}
+	
+	//times are written as UTC but read back in the system time zone
+	public LocalDateTime storedTime(LocalDateTime time) {
+		return LocalDateTime.ofInstant(time.toInstant(ZoneOffset.UTC),ZoneId.systemDefault());
+	}
+	
+	static String fluxString(String value) {
+		return "\""+value.replace("\\","\\\\").replace("\"","\\\"")+"\"";
+	}
+	
+	//the stop of a range meant to hold every point, without one Flux stops at now() and misses results dated in the future
+	static final String END_OF_TIME="2262-01-01T00:00:00Z";
+	
+	//the bucket of the single bucket layout
+	static String resultsBucket(String dbName) {
+		return dbName+"_results";
+	}
+	
+	private Bucket getOrCreateBucket(String name) {
+		Bucket bucket=bucketIndex.get(name);
+		if (bucket!=null) return bucket;
+		synchronized (bucketIndex) {
+			bucket=bucketIndex.get(name);
+			if (bucket!=null) return bucket;
 			BucketsApi buckets=db.getBucketsApi();
-			Bucket bucket=buckets.findBucketByName(dbName+"_"+uprn+"_"+checkId);
+			//another instance may have created the bucket since the index was last reconciled
+			bucket=buckets.findBucketByName(name);
 			if (bucket==null) {
 				 bucket=new Bucket();
 				 bucket.setOrgID(org.getId());
-				 bucket.setName(dbName+"_"+uprn+"_"+checkId);
+				 bucket.setName(name);
 				 bucket=buckets.createBucket(bucket);
 			}
-
-		
-			String conditionString=String.join(",",conditions);
-		  Point point = Point.measurement("conditions").addTag("reasons", conditionString);
-			point.addField("result","true");
-			writeApi.writePoint(dbName+"_"+uprn+"_"+checkId,"DCOM",point);
-			
-			for (ComplianceCheckResultItem result: results){
-				point = Point.measurement(result.getReference());
-				point.time(result.getTime().toInstant(ZoneOffset.UTC),WritePrecision.NS);
-				if (result.getSupportingFileContentType()!=null && result.getSupportingFileContentType().size()>0) { 
-					point = point.addTag("supportingFileContentType",String.join(",",result.getSupportingFileContentType()));
-				}
-				if (result.getSupportingFileData()!=null && result.getSupportingFileData().size()>0) point = point.addTag("supportingFileData",String.join(",",result.getSupportingFileData()));
-				if (result.getResult()!=null) point = point.addField("result",result.getResult());
-				if (result.getAttributation()!=null) point = point.addTag("attributation",result.getAttributation());
-				
-				if (result.getReasons()!=null && result.getReasons().size()>0) point = point.addTag("reasons",String.join(",",result.getReasons()));
-				
-				writeApi.writePoint(dbName+"_"+uprn+"_"+checkId,"DCOM",point);
-			}
-			
+			bucketIndex.put(bucket);
+			return bucket;
+		}
 	}
-	
 
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.influxdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.write.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Holds every result in one bucket with the building and compliance check as the indexed tags uprn and checkId, so the number of buckets does not grow with the number of buildings.
+* A change of UPRN is carried out by an InfluxDBRekeyJob in the background. Until it completes, queries for the new UPRN also read the results still held under the old one and the old UPRN appears empty.
+*/
+public class InfluxDBSingleBucketLayout implements InfluxDBStorageLayout {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( InfluxDBSingleBucketLayout.class );
+	private static final long RETRY_SECONDS=60;
+
+	private InfluxDBClient db;
+	private String bucket;
+	private File jobDirectory;
+	//jobs run one at a time in the order they were requested, so a chain of renames is applied in sequence
+	private ScheduledExecutorService jobs;
+	private ConcurrentHashMap<String,Set<String>> movingTo=new ConcurrentHashMap<String,Set<String>>();
+	private Set<String> movingFrom=ConcurrentHashMap.newKeySet();
+
+	public InfluxDBSingleBucketLayout(InfluxDBClient db,String bucket,String jobPath) {
+		this.db=db;
+		this.bucket=bucket;
+		jobDirectory=new File(jobPath);
+		jobDirectory.mkdirs();
+		jobs=Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t=new Thread(r,"influxdb-rekey");
+			t.setDaemon(true);
+			return t;
+		});
+		File[] pending=jobDirectory.listFiles((dir,name) -> name.endsWith(InfluxDBRekeyJob.SUFFIX));
+		if (pending!=null) {
+			Arrays.sort(pending);
+			for (File file: pending) {
+				try {
+					submit(InfluxDBRekeyJob.load(db,bucket,file));
+				} catch (IOException e) {
+					LOGGER.error("Could not resume UPRN change "+file+": "+e.getMessage());
+				}
+			}
+		}
+	}
+
+	public String getBucket() {
+		return bucket;
+	}
+
+	public String getBucketName(String uprn,String checkId) {
+		return bucket;
+	}
+
+	public void tag(Point point,String uprn,String checkId) {
+		point.addTag("uprn",uprn).addTag("checkId",checkId);
+	}
+
+	public String from(String uprn,String checkId,String range) {
+		String filter=uprnFilter(uprn);
+		if (filter==null) return null;
+		//without a check every check of the building is read, as the union of its buckets is in the other layout
+		if (checkId!=null) filter="("+filter+") and r.checkId == "+InfluxDBResultServiceDatabase.fluxString(checkId);
+		return "from(bucket:\""+bucket+"\")"+range+" |> filter(fn: (r) => "+filter+") |> drop(columns:[\"uprn\"])";
+	}
+
+	public String fromBuilding(String uprn,String range,String filter) {
+		String uprns=uprnFilter(uprn);
+		if (uprns==null) return null;
+		return "from(bucket:\""+bucket+"\")"+range+" |> filter(fn: (r) => "+uprns+")"+filter+" |> drop(columns:[\"uprn\"])";
+	}
+
+	//while results are being moved they are read under both UPRNs, dropping the uprn column lets the pivot merge the two copies of a point
+	private String uprnFilter(String uprn) {
+		if (movingFrom.contains(uprn)) return null;
+		List<String> terms=new ArrayList<String>();
+		terms.add("r.uprn == "+InfluxDBResultServiceDatabase.fluxString(uprn));
+		Set<String> sources=movingTo.get(uprn);
+		if (sources!=null) for (String source: sources) terms.add("r.uprn == "+InfluxDBResultServiceDatabase.fluxString(source));
+		return String.join(" or ",terms);
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+		try {
+			submit(InfluxDBRekeyJob.create(db,bucket,jobDirectory,oldUPRN,newUPRN));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not record UPRN change of "+oldUPRN+": "+e.getMessage(),e);
+		}
+	}
+
+	private void submit(InfluxDBRekeyJob job) {
+		Set<String> sources=new LinkedHashSet<String>();
+		sources.add(job.getOldUPRN());
+		Set<String> earlier=movingTo.remove(job.getOldUPRN());
+		if (earlier!=null) sources.addAll(earlier);
+		movingTo.computeIfAbsent(job.getNewUPRN(),k -> ConcurrentHashMap.newKeySet()).addAll(sources);
+		movingFrom.remove(job.getNewUPRN());
+		movingFrom.add(job.getOldUPRN());
+		jobs.execute(() -> run(job));
+	}
+
+	private void run(InfluxDBRekeyJob job) {
+		try {
+			job.run();
+			//after a chain of renames the old UPRN may be a source of a later destination too
+			for (Set<String> sources: movingTo.values()) sources.remove(job.getOldUPRN());
+			movingTo.values().removeIf(Set::isEmpty);
+			movingFrom.remove(job.getOldUPRN());
+		} catch (Exception e) {
+			LOGGER.warn("UPRN change of "+job.getOldUPRN()+" to "+job.getNewUPRN()+" failed, retrying in "+RETRY_SECONDS+"s: "+e.getMessage());
+			//resumes from the last completed window
+			jobs.schedule(() -> run(job),RETRY_SECONDS,TimeUnit.SECONDS);
+		}
+	}
+
+	public void close() {
+		//an unfinished job is resumed from its saved progress when the service next starts
+		jobs.shutdownNow();
+	}
+}
@@ -0,0 +1,37 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.influxdb;
+
+import com.influxdb.client.write.Point;
+
+/**
+* Decides where the results of each building and compliance check are kept in InfluxDB, so the queries and writes of InfluxDBResultServiceDatabase do not depend on how results are laid out.
+*/
+public interface InfluxDBStorageLayout {
+
+	//the bucket that results of the check are written to
+	public String getBucketName(String uprn,String checkId);
+	//adds the tags the layout needs to find the point again
+	public void tag(Point point,String uprn,String checkId);
+	//flux reading the results of one check, or of every check of the building when checkId is null, range is the range call to apply, returns null when there are no results
+	public String from(String uprn,String checkId,String range);
+	//flux reading the results of every check of a building with the check in a checkId column, filter is applied to each source before they are combined, returns null when the building has no results
+	public String fromBuilding(String uprn,String range,String filter);
+	public void updateUPRN(String oldUPRN,String newUPRN);
+	public void close();
+}
@@ -0,0 +1,363 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.influxdb;
+
+import org.dcom.resultservice.metrics.ResultServiceMetrics;
+import org.dcom.resultservice.ResultServiceBusyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import com.influxdb.exceptions.InfluxException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+* An append only log on local disk that uploads are acknowledged against, so that ingest does not depend on InfluxDB being reachable or fast.
+* Each upload is appended as one checksummed record of line protocol and fsynced, with concurrent uploads sharing a single fsync. Segments are sealed once they are full or old enough, and a background replayer writes sealed segments to InfluxDB and deletes them once every record has been written.
+* Segments left behind by a crash are replayed at startup, a record torn by the crash fails its checksum and ends the segment.
+* Points that InfluxDB refuses as invalid are appended to a dead letter file in the same directory, so that they do not hold up the segments behind them.
+*/
+public class InfluxDBWriteAheadLog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( InfluxDBWriteAheadLog.class );
+	private static final String SUFFIX=".wal";
+	private static final int HEADER_BYTES=8;
+	private static final String DEAD_LETTERS="dead-letter.log";
+
+	private Path directory;
+	private long segmentBytes;
+	private long maxBytes;
+	private WriteApiBlocking writeApi;
+	private String org;
+	private Consumer<String> bucketCreator;
+	private int batchSize;
+	private long flushMillis;
+
+	private final Object appendLock=new Object();
+	private final Object syncLock=new Object();
+	private volatile FileChannel current;
+	private long currentSequence;
+	private long currentSize;
+	private long currentOpened;
+	private volatile long appended=0;
+	private volatile long synced=0;
+	private AtomicLong totalBytes=new AtomicLong();
+	private AtomicLong replayed=new AtomicLong();
+	private AtomicLong deadLettered=new AtomicLong();
+	private Thread replayer;
+	private volatile boolean running=true;
+
+	public InfluxDBWriteAheadLog(String directory,long segmentBytes,long maxBytes,WriteApiBlocking writeApi,String org,Consumer<String> bucketCreator,int batchSize,long flushMillis) {
+		this.directory=Paths.get(directory);
+		this.segmentBytes=segmentBytes;
+		this.maxBytes=maxBytes;
+		this.writeApi=writeApi;
+		this.org=org;
+		this.bucketCreator=bucketCreator;
+		this.batchSize=batchSize;
+		this.flushMillis=flushMillis;
+		try {
+			Files.createDirectories(this.directory);
+			List<Path> existing=segments();
+			for (Path p: existing) totalBytes.addAndGet(Files.size(p));
+			if (existing.size()>0) LOGGER.info("Replaying "+existing.size()+" write ahead log segments");
+			currentSequence=existing.isEmpty() ? 0 : sequenceOf(existing.get(existing.size()-1));
+			openSegment();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		replayer=new Thread(this::replay,"influxdb-wal-replayer");
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	//appends the points of one upload and returns once they are on disk
+	public void append(String bucket,List<Point> points) {
+		byte[] payload=encode(bucket,points);
+		CRC32 crc=new CRC32();
+		crc.update(payload);
+		ByteBuffer record=ByteBuffer.allocate(HEADER_BYTES+payload.length);
+		record.putInt(payload.length).putInt((int)crc.getValue()).put(payload).flip();
+		long sequence;
+		try {
+			synchronized (appendLock) {
+				if (!running) throw new ResultServiceBusyException("The write ahead log is closed");
+				if (totalBytes.get()+record.remaining()>maxBytes) throw new ResultServiceBusyException("The write ahead log is full");
+				if (currentSize>0 && currentSize+record.remaining()>segmentBytes) roll();
+				int size=record.remaining();
+				while (record.hasRemaining()) current.write(record);
+				currentSize+=size;
+				totalBytes.addAndGet(size);
+				sequence=++appended;
+			}
+			sync(sequence);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	//uploads arriving together wait on one fsync rather than one each
+	private void sync(long sequence) throws IOException {
+		if (synced>=sequence) return;
+		synchronized (syncLock) {
+			if (synced>=sequence) return;
+			long target=appended;
+			current.force(false);
+			synced=target;
+		}
+	}
+
+	//must hold appendLock
+	private void roll() throws IOException {
+		synchronized (syncLock) {
+			current.force(false);
+			current.close();
+			synced=appended;
+			openSegment();
+		}
+	}
+
+	private void openSegment() throws IOException {
+		currentSequence++;
+		current=FileChannel.open(segmentPath(currentSequence),StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.APPEND);
+		currentSize=0;
+		currentOpened=System.currentTimeMillis();
+	}
+
+	private void replay() {
+		int failures=0;
+		while (running) {
+			try {
+				List<Path> sealed=sealedSegments();
+				if (sealed.isEmpty()) {
+					rollIfDue();
+					Thread.sleep(flushMillis);
+					continue;
+				}
+				for (Path p: sealed) {
+					long size=Files.size(p);
+					replaySegment(p);
+					Files.delete(p);
+					totalBytes.addAndGet(-size);
+				}
+				failures=0;
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				failures++;
+				LOGGER.warn("Replaying write ahead log failed, retrying: "+e.getMessage());
+				try {
+					Thread.sleep(Math.min(60000,100L<<Math.min(failures,10)));
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	//seals the active segment once it has waited a flush interval, so its records are replayed promptly
+	private void rollIfDue() throws IOException {
+		synchronized (appendLock) {
+			if (running && currentSize>0 && System.currentTimeMillis()-currentOpened>=flushMillis) roll();
+		}
+	}
+
+	private void replaySegment(Path segment) throws IOException {
+		//in the order the buckets first appear, so records are written in the order they were appended
+		Map<String,List<String>> pending=new LinkedHashMap<String,List<String>>();
+		int pendingCount=0;
+		//read onto the heap rather than mapped, a mapping outlives the channel and would stop the segment being deleted on Windows
+		ByteBuffer buffer;
+		try (FileChannel channel=FileChannel.open(segment,StandardOpenOption.READ)) {
+			buffer=ByteBuffer.allocate((int)channel.size());
+			while (buffer.hasRemaining()) if (channel.read(buffer)<0) break;
+		}
+		buffer.flip();
+		while (buffer.remaining()>=HEADER_BYTES) {
+			int length=buffer.getInt();
+			int checksum=buffer.getInt();
+			if (length<0 || length>buffer.remaining()) {
+				LOGGER.warn("Ignoring torn record at the end of "+segment);
+				break;
+			}
+			byte[] payload=new byte[length];
+			buffer.get(payload);
+			CRC32 crc=new CRC32();
+			crc.update(payload);
+			if ((int)crc.getValue()!=checksum) {
+				LOGGER.warn("Ignoring corrupt record at the end of "+segment);
+				break;
+			}
+			ByteBuffer data=ByteBuffer.wrap(payload);
+			String bucket=readString(data);
+			List<String> lines=pending.computeIfAbsent(bucket,k -> new ArrayList<String>());
+			int count=data.getInt();
+			for (int i=0;i<count;i++) lines.add(readString(data));
+			pendingCount+=count;
+			if (pendingCount>=batchSize) {
+				write(pending);
+				pendingCount=0;
+			}
+		}
+		write(pending);
+	}
+
+	private void write(Map<String,List<String>> pending) throws IOException {
+		for (Map.Entry<String,List<String>> entry: pending.entrySet()) {
+			if (entry.getValue().isEmpty()) continue;
+			bucketCreator.accept(entry.getKey());
+			try {
+				write(entry.getKey(),entry.getValue());
+			} catch (InfluxException e) {
+				if (!isPermanent(e)) throw e;
+				//the points are written one at a time to find those that are refused, so only they are set aside
+				for (String line: entry.getValue()) {
+					try {
+						write(entry.getKey(),Collections.singletonList(line));
+					} catch (InfluxException le) {
+						if (!isPermanent(le)) throw le;
+						deadLetter(entry.getKey(),line,le);
+					}
+				}
+			}
+		}
+		pending.clear();
+	}
+
+	private void write(String bucket,List<String> lines) {
+		long start=System.nanoTime();
+		writeApi.writeRecords(bucket,org,WritePrecision.NS,lines);
+		ResultServiceMetrics.get().record(ResultServiceMetrics.WRITE,System.nanoTime()-start,"path","wal");
+		replayed.addAndGet(lines.size());
+	}
+
+	//InfluxDB refuses these for the data itself, so writing the same points again can never succeed
+	static boolean isPermanent(InfluxException e) {
+		int status=e.status();
+		return status==400 || status==413 || status==422;
+	}
+
+	//each refused point is kept as a comment naming its bucket and the error, followed by its line protocol
+	private void deadLetter(String bucket,String line,InfluxException e) throws IOException {
+		LOGGER.error("InfluxDB refused a point for "+bucket+", moving it to "+DEAD_LETTERS+": "+e.getMessage());
+		String entry="# "+bucket+" "+e.status()+" "+String.valueOf(e.getMessage()).replace('\n',' ')+"\n"+line+"\n";
+		Files.write(directory.resolve(DEAD_LETTERS),entry.getBytes(StandardCharsets.UTF_8),StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.APPEND);
+		deadLettered.incrementAndGet();
+	}
+
+	private static byte[] encode(String bucket,List<Point> points) {
+		List<byte[]> lines=new ArrayList<byte[]>(points.size());
+		byte[] name=bucket.getBytes(StandardCharsets.UTF_8);
+		int size=4+name.length+4;
+		for (Point p: points) {
+			byte[] line=p.toLineProtocol().getBytes(StandardCharsets.UTF_8);
+			lines.add(line);
+			size+=4+line.length;
+		}
+		ByteBuffer buffer=ByteBuffer.allocate(size);
+		buffer.putInt(name.length).put(name).putInt(lines.size());
+		for (byte[] line: lines) buffer.putInt(line.length).put(line);
+		return buffer.array();
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes=new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	private Path segmentPath(long sequence) {
+		return directory.resolve(String.format("segment-%016d",sequence)+SUFFIX);
+	}
+
+	private static long sequenceOf(Path segment) {
+		String name=segment.getFileName().toString();
+		return Long.parseLong(name.substring("segment-".length(),name.length()-SUFFIX.length()));
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> result=new ArrayList<Path>();
+		try (DirectoryStream<Path> stream=Files.newDirectoryStream(directory,"segment-*"+SUFFIX)) {
+			for (Path p: stream) result.add(p);
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	private List<Path> sealedSegments() throws IOException {
+		List<Path> result=new ArrayList<Path>();
+		long active;
+		synchronized (appendLock) {
+			active=currentSequence;
+		}
+		for (Path p: segments()) {
+			if (sequenceOf(p)<active) result.add(p);
+		}
+		return result;
+	}
+
+	//stops the replayer, anything not yet replayed stays on disk and is replayed at the next start
+	public void close() {
+		synchronized (appendLock) {
+			running=false;
+		}
+		replayer.interrupt();
+		try {
+			replayer.join(10000);
+			synchronized (syncLock) {
+				current.force(false);
+				current.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			LOGGER.error("Could not close write ahead log: "+e.getMessage());
+		}
+	}
+
+	public long getBytes() {
+		return totalBytes.get();
+	}
+
+	public long getRecordsReplayed() {
+		return replayed.get();
+	}
+
+	public long getRecordsDeadLettered() {
+		return deadLettered.get();
+	}
+}
@@ -0,0 +1,219 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.influxdb;
+
+import org.dcom.resultservice.metrics.ResultServiceMetrics;
+import org.dcom.resultservice.ResultServiceBusyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.write.Point;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* A single long lived writer shared by all requests. Points are queued, grouped by bucket and written to InfluxDB in batches once enough have arrived or the flush interval passes.
+* The queue is bounded, when it is full new writes are refused with a ResultServiceBusyException rather than letting memory grow while InfluxDB is slow.
+* Buckets are written in the order their points were queued, so points queued by one write reach InfluxDB before those of a later write to another bucket.
+*/
+public class InfluxDBWritePipeline {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( InfluxDBWritePipeline.class );
+	private static final int MAX_ATTEMPTS=5;
+
+	//tracks the points of one write, so that its callback runs once all of them are in InfluxDB
+	private static class Completion {
+		private AtomicInteger remaining;
+		private volatile boolean failed=false;
+		private Runnable onWritten;
+
+		private Completion(int points,Runnable onWritten) {
+			remaining=new AtomicInteger(points);
+			this.onWritten=onWritten;
+		}
+
+		private void done(boolean written) {
+			if (!written) failed=true;
+			if (remaining.decrementAndGet()==0 && !failed) onWritten.run();
+		}
+	}
+
+	private static class PendingPoint {
+		private String bucket;
+		private Point point;
+		private Completion completion;
+
+		private PendingPoint(String bucket,Point point,Completion completion) {
+			this.bucket=bucket;
+			this.point=point;
+			this.completion=completion;
+		}
+	}
+
+	private WriteApiBlocking writeApi;
+	private String org;
+	private int batchSize;
+	private long flushMillis;
+	private int capacity;
+	private Semaphore space;
+	private LinkedBlockingQueue<PendingPoint> queue=new LinkedBlockingQueue<PendingPoint>();
+	private Thread writer;
+	private volatile boolean running=true;
+
+	private LongAdder pointsWritten=new LongAdder();
+	private LongAdder pointsDropped=new LongAdder();
+	private LongAdder flushes=new LongAdder();
+	private LongAdder flushNanos=new LongAdder();
+	private AtomicLong maxFlushNanos=new AtomicLong();
+
+	public InfluxDBWritePipeline(WriteApiBlocking writeApi,String org,int batchSize,long flushMillis,int capacity) {
+		this.writeApi=writeApi;
+		this.org=org;
+		this.batchSize=batchSize;
+		this.flushMillis=flushMillis;
+		this.capacity=capacity;
+		space=new Semaphore(capacity);
+		writer=new Thread(this::run,"influxdb-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void write(String bucket,List<Point> points) {
+		write(bucket,points,null);
+	}
+
+	//queues all the points of one write or none of them, so a write refused as busy can be retried without writing any point twice. Room for the whole write is reserved before any point is queued, a write larger than the queue could never fit and is refused outright
+	//onWritten runs on the writer thread once every point has been written, and never if any are dropped
+	public void write(String bucket,List<Point> points,Runnable onWritten) {
+		if (points.size()>capacity) throw new IllegalArgumentException("A write of "+points.size()+" points is larger than the write queue of "+capacity);
+		if (!running) throw new ResultServiceBusyException("The write pipeline is shutting down");
+		if (!space.tryAcquire(points.size())) throw new ResultServiceBusyException("The write queue is full");
+		Completion completion=onWritten==null || points.isEmpty() ? null : new Completion(points.size(),onWritten);
+		for (Point p: points) queue.add(new PendingPoint(bucket,p,completion));
+	}
+
+	private void run() {
+		List<PendingPoint> batch=new ArrayList<PendingPoint>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				PendingPoint first=queue.poll(flushMillis,TimeUnit.MILLISECONDS);
+				if (first==null) continue;
+				batch.add(first);
+				long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(flushMillis);
+				while (batch.size()<batchSize) {
+					queue.drainTo(batch,batchSize-batch.size());
+					long wait=deadline-System.nanoTime();
+					if (batch.size()>=batchSize || wait<=0 || !running) break;
+					PendingPoint next=queue.poll(wait,TimeUnit.NANOSECONDS);
+					if (next!=null) batch.add(next);
+				}
+				flush(batch);
+			} catch (InterruptedException e) {
+				running=false;
+			} finally {
+				space.release(batch.size());
+				batch.clear();
+			}
+		}
+	}
+
+	private void flush(List<PendingPoint> batch) throws InterruptedException {
+		//in the order the buckets were first queued
+		Map<String,List<PendingPoint>> byBucket=new LinkedHashMap<String,List<PendingPoint>>();
+		for (PendingPoint p: batch) byBucket.computeIfAbsent(p.bucket,k -> new ArrayList<PendingPoint>()).add(p);
+		for (Map.Entry<String,List<PendingPoint>> entry: byBucket.entrySet()) {
+			List<Point> points=new ArrayList<Point>(entry.getValue().size());
+			for (PendingPoint p: entry.getValue()) points.add(p.point);
+			boolean written=false;
+			for (int attempt=1;;attempt++) {
+				long start=System.nanoTime();
+				try {
+					writeApi.writePoints(entry.getKey(),org,points);
+					recordFlush(System.nanoTime()-start);
+					pointsWritten.add(points.size());
+					written=true;
+					break;
+				} catch (Exception e) {
+					if (attempt>=MAX_ATTEMPTS) {
+						LOGGER.error("Dropping "+points.size()+" points for "+entry.getKey()+" after "+attempt+" attempts: "+e.getMessage());
+						pointsDropped.add(points.size());
+						break;
+					}
+					LOGGER.warn("Write to "+entry.getKey()+" failed, retrying: "+e.getMessage());
+					Thread.sleep(100L<<attempt);
+				}
+			}
+			for (PendingPoint p: entry.getValue()) if (p.completion!=null) p.completion.done(written);
+		}
+	}
+
+	private void recordFlush(long nanos) {
+		flushes.increment();
+		flushNanos.add(nanos);
+		maxFlushNanos.accumulateAndGet(nanos,Math::max);
+		ResultServiceMetrics.get().record(ResultServiceMetrics.WRITE,nanos,"path","pipeline");
+	}
+
+	//stops accepting writes and waits for the queued points to reach InfluxDB
+	public void close() {
+		running=false;
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!queue.isEmpty()) LOGGER.error(queue.size()+" points were not written before shutdown");
+	}
+
+	public int getQueueDepth() {
+		return capacity-space.availablePermits();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getPointsWritten() {
+		return pointsWritten.sum();
+	}
+
+	public long getPointsDropped() {
+		return pointsDropped.sum();
+	}
+
+	public long getFlushCount() {
+		return flushes.sum();
+	}
+
+	public long getFlushNanos() {
+		return flushNanos.sum();
+	}
+
+	public long getMaxFlushNanos() {
+		return maxFlushNanos.get();
+	}
+}
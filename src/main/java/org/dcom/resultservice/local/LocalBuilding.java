@@ -0,0 +1,206 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.local;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.ResultCursor;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+* The results of one building, stored in a directory of LocalSegment files. Each compliance check has an in memory index from time and document reference to the position of the record, so a time range is read by walking a slice of the index and only the records returned are decoded.
+* Appends are serialised per building, reads walk the concurrent index without locking.
+*/
+public class LocalBuilding {
+
+	/**
+	* Orders records by time and then by document reference, the order pages of results are cut in.
+	*/
+	private static class Key implements Comparable<Key> {
+		private LocalDateTime time;
+		private String reference;
+
+		private Key(LocalDateTime time,String reference) {
+			this.time=time;
+			this.reference=reference;
+		}
+
+		public int compareTo(Key k) {
+			int c=time.compareTo(k.time);
+			return c!=0 ? c : reference.compareTo(k.reference);
+		}
+	}
+
+	/**
+	* The records of one check, newest first, ordered by the record it will give next so several checks can be merged.
+	*/
+	private static class Source implements Comparable<Source> {
+		private String checkId;
+		private Iterator<Map.Entry<Key,Long>> entries;
+		private Map.Entry<Key,Long> next;
+
+		private Source(String checkId,Iterator<Map.Entry<Key,Long>> entries) {
+			this.checkId=checkId;
+			this.entries=entries;
+		}
+
+		private static void add(PriorityQueue<Source> sources,String checkId,NavigableMap<Key,Long> index) {
+			Source source=new Source(checkId,index.entrySet().iterator());
+			if (source.advance()) sources.add(source);
+		}
+
+		private boolean advance() {
+			next=entries.hasNext() ? entries.next() : null;
+			return next!=null;
+		}
+
+		//the newest record comes first
+		public int compareTo(Source s) {
+			return s.next.getKey().compareTo(next.getKey());
+		}
+	}
+
+	private File directory;
+	private int segmentBytes;
+	private List<LocalSegment> segments=new CopyOnWriteArrayList<LocalSegment>();
+	private ConcurrentHashMap<String,ConcurrentSkipListMap<Key,Long>> checks=new ConcurrentHashMap<String,ConcurrentSkipListMap<Key,Long>>();
+
+	private LocalBuilding(File directory,int segmentBytes) {
+		this.directory=directory;
+		this.segmentBytes=segmentBytes;
+	}
+
+	//maps the segments of a building and rebuilds its index, passing each record to the visitor, a building with no directory yet is empty
+	public static LocalBuilding open(File directory,int segmentBytes,Consumer<LocalRecord> visitor) throws IOException {
+		LocalBuilding building=new LocalBuilding(directory,segmentBytes);
+		File[] files=directory.listFiles((dir,name) -> name.startsWith("segment-") && name.endsWith(".seg"));
+		if (files==null) return building;
+		Arrays.sort(files);
+		for (File file: files) {
+			int segment=building.segments.size();
+			building.segments.add(LocalSegment.open(file,(offset,payload) -> {
+				LocalRecord record=LocalRecord.fromBytes(payload);
+				building.index(record,segment,offset);
+				visitor.accept(record);
+			}));
+		}
+		return building;
+	}
+
+	private void index(LocalRecord record,int segment,int offset) {
+		//a result with the same time and reference replaces the earlier one, as a point does in InfluxDB
+		checks.computeIfAbsent(record.getCheckId(),k -> new ConcurrentSkipListMap<Key,Long>()).put(new Key(record.getTime(),record.getReference()),((long)segment<<32)|offset);
+	}
+
+	//appends the records and forces them to disk before they are indexed, so a result is never read that could still be lost
+	public synchronized void append(List<LocalRecord> records) throws IOException {
+		directory.mkdirs();
+		long[] locations=new long[records.size()];
+		Set<LocalSegment> written=new HashSet<LocalSegment>();
+		for (int i=0;i<records.size();i++) {
+			byte[] payload=records.get(i).toBytes();
+			int segment=segments.size()-1;
+			int offset=segment<0 ? -1 : segments.get(segment).append(payload);
+			if (offset<0) {
+				segment=segments.size();
+				segments.add(LocalSegment.create(new File(directory,String.format("segment-%016d.seg",segment)),Math.max(segmentBytes,LocalSegment.recordSize(payload))));
+				offset=segments.get(segment).append(payload);
+			}
+			written.add(segments.get(segment));
+			locations[i]=((long)segment<<32)|offset;
+		}
+		for (LocalSegment segment: written) segment.force();
+		for (int i=0;i<records.size();i++) index(records.get(i),(int)(locations[i]>>>32),(int)locations[i]);
+	}
+
+	private LocalRecord read(long location) {
+		return LocalRecord.fromBytes(segments.get((int)(location>>>32)).read((int)location));
+	}
+
+	//every record of the building, oldest first within each check
+	public void forEach(Consumer<LocalRecord> consumer) {
+		for (ConcurrentSkipListMap<Key,Long> check: checks.values()) {
+			for (Long location: check.values()) consumer.accept(read(location));
+		}
+	}
+
+	//a null checkId reads every check of the building, merged newest first
+	public void stream(String checkId,LocalDateTime start,LocalDateTime end,String documentFilter,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+		PriorityQueue<Source> sources=new PriorityQueue<Source>();
+		if (checkId==null) {
+			for (Map.Entry<String,ConcurrentSkipListMap<Key,Long>> check: checks.entrySet()) Source.add(sources,check.getKey(),slice(check.getValue(),start,end,level,after));
+		} else {
+			NavigableMap<Key,Long> index=checks.get(checkId);
+			if (index==null) return;
+			Source.add(sources,checkId,slice(index,start,end,level,after));
+		}
+		Set<String> seen=new HashSet<String>();
+		int count=0;
+		while (!sources.isEmpty()) {
+			Source source=sources.poll();
+			Map.Entry<Key,Long> entry=source.next;
+			if (source.advance()) sources.add(source);
+			String reference=entry.getKey().reference;
+			if (documentFilter!=null && !documentFilter.equals(reference)) continue;
+			//at level 4 only the latest result of each document reference of each check is given
+			if (level==4 && !seen.add(source.checkId+"\n"+reference)) continue;
+			consumer.accept(read(entry.getValue()).toResultItem(level));
+			count++;
+			if (limit>0 && count>=limit) return;
+		}
+	}
+
+	private static NavigableMap<Key,Long> slice(NavigableMap<Key,Long> index,LocalDateTime start,LocalDateTime end,int level,ResultCursor after) {
+		//an empty reference sorts before any other at the same time
+		if (start!=null) index=index.tailMap(new Key(start,""),true);
+		if (end!=null) index=index.headMap(new Key(end,""),false);
+		//at level 4 a cursor would reach results older than the latest
+		if (after!=null && level!=4) index=index.headMap(new Key(LocalDateTime.ofInstant(after.getTime(),ZoneId.systemDefault()),after.getReference()),false);
+		return index.descendingMap();
+	}
+
+	//unmaps the segments, so the files can be moved or deleted, reads of the building fail from then on
+	public void close() {
+		for (LocalSegment segment: segments) segment.close();
+	}
+
+	//removes the files of the building, once its records have been copied elsewhere and it is closed
+	public void delete() {
+		delete(directory);
+	}
+
+	public static void delete(File directory) {
+		File[] files=directory.listFiles();
+		if (files!=null) for (File file: files) file.delete();
+		directory.delete();
+	}
+}
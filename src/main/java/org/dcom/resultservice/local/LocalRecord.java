@@ -0,0 +1,164 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.local;
+
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.ResultServiceDatabase;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* One stored result, or the conditions of an upload stored as a result with the reference "conditions", together with the compliance check it belongs to.
+*/
+public class LocalRecord {
+
+	private String checkId;
+	private String reference;
+	private LocalDateTime time;
+	private String result;
+	private String attributation;
+	private List<String> reasons;
+	private List<String> supportingFileData;
+	private List<String> supportingFileContentType;
+
+	public LocalRecord(String checkId,String reference,LocalDateTime time,String result,String attributation,List<String> reasons,List<String> supportingFileData,List<String> supportingFileContentType) {
+		this.checkId=checkId;
+		this.reference=reference;
+		this.time=time;
+		this.result=result;
+		this.attributation=attributation;
+		this.reasons=reasons;
+		this.supportingFileData=supportingFileData;
+		this.supportingFileContentType=supportingFileContentType;
+	}
+
+	public static LocalRecord of(String checkId,ComplianceCheckResultItem item) {
+		return new LocalRecord(checkId,item.getReference(),item.getTime(),item.getResult(),item.getAttributation(),item.getReasons(),item.getSupportingFileData(),item.getSupportingFileContentType());
+	}
+
+	public static LocalRecord conditions(String checkId,List<String> conditions,LocalDateTime time) {
+		return new LocalRecord(checkId,"conditions",time,"true",null,conditions,null,null);
+	}
+
+	public String getCheckId() {
+		return checkId;
+	}
+
+	public String getReference() {
+		return reference;
+	}
+
+	public LocalDateTime getTime() {
+		return time;
+	}
+
+	public String getResult() {
+		return result;
+	}
+
+	//the same detail the InfluxDB backend returns at each access level
+	public ComplianceCheckResultItem toResultItem(int level) {
+		List<String> itemReasons=new ArrayList<String>();
+		List<String> itemData=new ArrayList<String>();
+		List<String> itemContentType=new ArrayList<String>();
+		if (level<3) {
+			if (reasons!=null) itemReasons.addAll(reasons);
+			if (supportingFileData!=null && level!=ResultServiceDatabase.INDEX_LEVEL) itemData.addAll(supportingFileData);
+			if (supportingFileContentType!=null) itemContentType.addAll(supportingFileContentType);
+		}
+		String itemAttributation="";
+		if (level<2 && attributation!=null) itemAttributation=attributation;
+		return new ComplianceCheckResultItem(reference,time,itemReasons,itemAttributation,result==null ? "" : result,itemData,itemContentType);
+	}
+
+	public byte[] toBytes() {
+		try {
+			ByteArrayOutputStream bytes=new ByteArrayOutputStream(256);
+			DataOutputStream out=new DataOutputStream(bytes);
+			writeString(out,checkId);
+			writeString(out,reference);
+			out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+			out.writeInt(time.getNano());
+			writeString(out,result);
+			writeString(out,attributation);
+			writeList(out,reasons);
+			writeList(out,supportingFileData);
+			writeList(out,supportingFileContentType);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static LocalRecord fromBytes(byte[] payload) {
+		try {
+			DataInputStream in=new DataInputStream(new ByteArrayInputStream(payload));
+			String checkId=readString(in);
+			String reference=readString(in);
+			LocalDateTime time=LocalDateTime.ofEpochSecond(in.readLong(),in.readInt(),ZoneOffset.UTC);
+			return new LocalRecord(checkId,reference,time,readString(in),readString(in),readList(in),readList(in),readList(in));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	//strings are length prefixed rather than written with writeUTF, which cannot hold supporting files over 64KB
+	private static void writeString(DataOutputStream out,String value) throws IOException {
+		if (value==null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes=value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length=in.readInt();
+		if (length<0) return null;
+		byte[] bytes=new byte[length];
+		in.readFully(bytes);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	private static void writeList(DataOutputStream out,List<String> values) throws IOException {
+		if (values==null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.size());
+		for (String value: values) writeString(out,value);
+	}
+
+	private static List<String> readList(DataInputStream in) throws IOException {
+		int size=in.readInt();
+		if (size<0) return null;
+		List<String> values=new ArrayList<String>(size);
+		for (int i=0;i<size;i++) values.add(readString(in));
+		return values;
+	}
+}
@@ -0,0 +1,193 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.local;
+
+import org.dcom.core.services.ComplianceCheckResultIndexItem;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.LatestResultSummary;
+import org.dcom.resultservice.ResultCursor;
+import org.dcom.resultservice.ResultServiceDatabase;
+import org.dcom.resultservice.ResultWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+* An embedded implementation of ResultServiceDatabase for installations without InfluxDB. Each building is a directory of append only, memory mapped segment files under one root directory, see LocalBuilding.
+* A building is loaded and indexed the first time it is used and then held in memory, so this backend suits sites with a modest number of buildings.
+*/
+public class LocalResultServiceDatabase implements ResultServiceDatabase {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger( LocalResultServiceDatabase.class );
+
+	private File root;
+	private int segmentBytes;
+	private ConcurrentHashMap<String,LocalBuilding> buildings=new ConcurrentHashMap<String,LocalBuilding>();
+	private LatestResultSummary summary=new LatestResultSummary();
+	//writes share the lock, a change of UPRN holds it alone while it moves a building's files
+	private ReadWriteLock renameLock=new ReentrantReadWriteLock();
+
+	public LocalResultServiceDatabase(String path,int segmentBytes) {
+		root=new File(path);
+		root.mkdirs();
+		this.segmentBytes=segmentBytes;
+		LOGGER.info("Storing results in "+root.getAbsolutePath());
+	}
+
+	private File directory(String uprn) {
+		try {
+			//encoded so that any UPRN is a single, safe file name
+			return new File(root,URLEncoder.encode(uprn,"UTF-8").replace(".","%2E").replace("*","%2A"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	//loads the building on first use, creating it if it has no results yet. Only writes create buildings
+	private LocalBuilding building(String uprn) {
+		return buildings.computeIfAbsent(uprn,k -> open(uprn));
+	}
+
+	//the building if it has any results, so reads of unknown UPRNs hold nothing in memory
+	private LocalBuilding existing(String uprn) {
+		LocalBuilding building=buildings.get(uprn);
+		if (building!=null) return building;
+		renameLock.readLock().lock();
+		try {
+			if (!directory(uprn).isDirectory()) return null;
+			return building(uprn);
+		} finally {
+			renameLock.readLock().unlock();
+		}
+	}
+
+	private LocalBuilding open(String uprn) {
+		try {
+			return LocalBuilding.open(directory(uprn),segmentBytes,record -> {
+				if (!record.getReference().equals("conditions")) summary.update(uprn,record.getCheckId(),record.getReference(),record.getResult(),record.getTime());
+			});
+		} catch (IOException e) {
+			throw new RuntimeException("Could not load results of "+uprn+": "+e.getMessage(),e);
+		}
+	}
+
+	public List<ComplianceCheckResultIndexItem> getComplianceChecks(String uprn) {
+		existing(uprn);
+		return summary.get(uprn);
+	}
+
+	public void updateUPRN(String oldUPRN,String newUPRN) {
+		renameLock.writeLock().lock();
+		try {
+			//the mappings of both buildings are released before their files are moved, a read that still holds one fails rather than seeing moved files
+			LocalBuilding loaded=buildings.remove(oldUPRN);
+			if (loaded!=null) loaded.close();
+			loaded=buildings.remove(newUPRN);
+			if (loaded!=null) loaded.close();
+			File source=directory(oldUPRN);
+			File target=directory(newUPRN);
+			if (hasSegments(source)) {
+				if (!hasSegments(target)) {
+					LocalBuilding.delete(target);
+					Files.move(source.toPath(),target.toPath());
+				} else {
+					LocalBuilding from=open(oldUPRN);
+					List<LocalRecord> records=new ArrayList<LocalRecord>();
+					from.forEach(records::add);
+					from.close();
+					building(newUPRN).append(records);
+					from.delete();
+				}
+			}
+			summary.rename(oldUPRN,newUPRN);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not move results of "+oldUPRN+" to "+newUPRN+": "+e.getMessage(),e);
+		} finally {
+			renameLock.writeLock().unlock();
+		}
+	}
+
+	private static boolean hasSegments(File directory) {
+		String[] files=directory.list((dir,name) -> name.startsWith("segment-") && name.endsWith(".seg"));
+		return files!=null && files.length>0;
+	}
+
+	public List<ComplianceCheckResultItem> getResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit) {
+		List<ComplianceCheckResultItem> results=new ArrayList<ComplianceCheckResultItem>();
+		streamResults(uprn,checkId,start,end,documentFilter,freeText,level,after,limit,results::add);
+		return results;
+	}
+
+	public void streamResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, String documentFilter, String freeText,int level,ResultCursor after,int limit,Consumer<ComplianceCheckResultItem> consumer) {
+		LocalBuilding building=existing(uprn);
+		if (building!=null) building.stream(checkId,start,end,documentFilter,level,after,limit,consumer);
+	}
+
+	public List<ResultWindow> summariseResults(String uprn, String checkId, LocalDateTime start, LocalDateTime end, Duration window) {
+		ResultWindow.Collector windows=new ResultWindow.Collector(window);
+		LocalBuilding building=existing(uprn);
+		if (building==null) return windows.get();
+		building.stream(checkId,start,end,null,3,null,0,item -> {
+			if (!"conditions".equals(item.getReference())) windows.add(item.getTime(),item.getReference(),item.getResult(),1);
+		});
+		return windows.get();
+	}
+
+	public LocalDateTime addResults(String uprn, String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		List<LocalRecord> records=new ArrayList<LocalRecord>(results.size()+1);
+		LocalDateTime conditionsTime=null;
+		if (conditions!=null && !conditions.isEmpty()) {
+			conditionsTime=LocalDateTime.now();
+			records.add(LocalRecord.conditions(checkId,conditions,conditionsTime));
+		}
+		for (ComplianceCheckResultItem result: results) records.add(LocalRecord.of(checkId,result));
+		renameLock.readLock().lock();
+		try {
+			building(uprn).append(records);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not store results of "+uprn+": "+e.getMessage(),e);
+		} finally {
+			renameLock.readLock().unlock();
+		}
+		for (ComplianceCheckResultItem result: results) summary.update(uprn,checkId,result.getReference(),result.getResult(),result.getTime());
+		return conditionsTime;
+	}
+
+	//records keep the time they were given
+	public LocalDateTime storedTime(LocalDateTime time) {
+		return time;
+	}
+
+	public void close() {
+		//every append is already on disk
+		for (LocalBuilding building: buildings.values()) building.close();
+		buildings.clear();
+	}
+}
@@ -0,0 +1,144 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+* A fixed size, memory mapped file that records are only ever appended to. Each record is stored as [length][crc32][payload], and the unused end of the file is zero, so the end of the records is found again after a restart.
+* Closing a segment unmaps the file at once, rather than when the buffer is collected, so that it can be moved or deleted on Windows.
+*/
+public class LocalSegment {
+
+	private static final int HEADER=8;
+
+	private MappedByteBuffer buffer;
+	private int position;
+	//reads share the lock so the file is never unmapped under one
+	private ReadWriteLock lock=new ReentrantReadWriteLock();
+
+	private LocalSegment(MappedByteBuffer buffer,int position) {
+		this.buffer=buffer;
+		this.position=position;
+	}
+
+	public static LocalSegment create(File file,int size) throws IOException {
+		try (FileChannel channel=FileChannel.open(file.toPath(),StandardOpenOption.CREATE_NEW,StandardOpenOption.READ,StandardOpenOption.WRITE)) {
+			return new LocalSegment(channel.map(FileChannel.MapMode.READ_WRITE,0,size),0);
+		}
+	}
+
+	//maps an existing segment, passing each record and its offset to the visitor. A record torn by a crash ends the segment and is cleared so the next append overwrites it
+	public static LocalSegment open(File file,BiConsumer<Integer,byte[]> visitor) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel=FileChannel.open(file.toPath(),StandardOpenOption.READ,StandardOpenOption.WRITE)) {
+			buffer=channel.map(FileChannel.MapMode.READ_WRITE,0,channel.size());
+		}
+		LocalSegment segment=new LocalSegment(buffer,0);
+		while (segment.position+HEADER<=buffer.capacity()) {
+			int length=buffer.getInt(segment.position);
+			if (length<=0 || segment.position+HEADER+length>buffer.capacity()) break;
+			byte[] payload=segment.read(segment.position);
+			if (crc(payload)!=buffer.getInt(segment.position+4)) break;
+			visitor.accept(segment.position,payload);
+			segment.position+=HEADER+length;
+		}
+		if (segment.position+HEADER<=buffer.capacity() && buffer.getInt(segment.position)!=0) {
+			for (int i=segment.position;i<buffer.capacity();i++) buffer.put(i,(byte)0);
+			buffer.force();
+		}
+		return segment;
+	}
+
+	private static int crc(byte[] payload) {
+		CRC32 crc=new CRC32();
+		crc.update(payload);
+		return (int)crc.getValue();
+	}
+
+	public static int recordSize(byte[] payload) {
+		return HEADER+payload.length;
+	}
+
+	//returns the offset of the record, or -1 if the segment is full. Callers serialise appends
+	public int append(byte[] payload) {
+		if (position+HEADER+payload.length>buffer.capacity()) return -1;
+		int offset=position;
+		ByteBuffer view=buffer.duplicate();
+		view.position(offset+HEADER);
+		view.put(payload);
+		buffer.putInt(offset+4,crc(payload));
+		//the length goes last, a record is not seen until it is complete
+		buffer.putInt(offset,payload.length);
+		position+=HEADER+payload.length;
+		return offset;
+	}
+
+	public byte[] read(int offset) {
+		lock.readLock().lock();
+		try {
+			if (buffer==null) throw new IllegalStateException("The segment has been closed");
+			byte[] payload=new byte[buffer.getInt(offset)];
+			ByteBuffer view=buffer.duplicate();
+			view.position(offset+HEADER);
+			view.get(payload);
+			return payload;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void force() {
+		buffer.force();
+	}
+
+	//waits for reads in progress, later reads fail
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (buffer!=null) unmap(buffer);
+			buffer=null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	//the JDK only unmaps a buffer when it is collected, Unsafe.invokeCleaner does it now. Without it the mapping is left to the collector
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass=Class.forName("sun.misc.Unsafe");
+			Field field=unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Method invokeCleaner=unsafeClass.getMethod("invokeCleaner",ByteBuffer.class);
+			invokeCleaner.invoke(field.get(null),buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			//left to the collector
+		}
+	}
+}
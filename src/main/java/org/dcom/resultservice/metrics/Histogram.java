@@ -0,0 +1,69 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* A latency histogram with fixed buckets from half a millisecond to a minute. Each bucket is a striped LongAdder, so recording from many threads never takes a lock and rarely contends.
+*/
+public class Histogram {
+
+	static final double[] BOUNDS={0.0005,0.001,0.0025,0.005,0.01,0.025,0.05,0.1,0.25,0.5,1,2.5,5,10,30,60};
+	private static final long[] BOUND_NANOS=new long[BOUNDS.length];
+	static {
+		for (int i=0;i<BOUNDS.length;i++) BOUND_NANOS[i]=(long)(BOUNDS[i]*TimeUnit.SECONDS.toNanos(1));
+	}
+
+	//the last bucket counts observations above every bound
+	private LongAdder[] buckets=new LongAdder[BOUNDS.length+1];
+	private LongAdder count=new LongAdder();
+	private LongAdder sumNanos=new LongAdder();
+
+	public Histogram() {
+		for (int i=0;i<buckets.length;i++) buckets[i]=new LongAdder();
+	}
+
+	public void record(long nanos) {
+		int i=0;
+		while (i<BOUND_NANOS.length && nanos>BOUND_NANOS[i]) i++;
+		buckets[i].increment();
+		count.increment();
+		sumNanos.add(nanos);
+	}
+
+	//cumulative counts per bound, as Prometheus expects, the last being the total
+	long[] cumulative() {
+		long[] result=new long[buckets.length];
+		long total=0;
+		for (int i=0;i<buckets.length;i++) {
+			total+=buckets[i].sum();
+			result[i]=total;
+		}
+		return result;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getSumSeconds() {
+		return sumNanos.sum()/1e9;
+	}
+}
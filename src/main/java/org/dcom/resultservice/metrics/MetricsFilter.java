@@ -0,0 +1,74 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.metrics;
+
+import java.io.IOException;
+import java.util.List;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.uri.UriTemplate;
+
+/**
+* Times every API request by route template, method and status. A response with a body is timed once the body has been written, so streamed histories are measured in full.
+*/
+public class MetricsFilter implements ContainerRequestFilter,ContainerResponseFilter,WriterInterceptor {
+
+	private static final String START="org.dcom.resultservice.metrics.start";
+	private static final String LABELS="org.dcom.resultservice.metrics.labels";
+
+	public void filter(ContainerRequestContext request) {
+		request.setProperty(START,System.nanoTime());
+	}
+
+	public void filter(ContainerRequestContext request,ContainerResponseContext response) {
+		Object start=request.getProperty(START);
+		if (start==null) return;
+		String[] labels={"route",route(request),"method",request.getMethod(),"status",String.valueOf(response.getStatus())};
+		if (response.hasEntity()) {
+			//finished in aroundWriteTo
+			request.setProperty(LABELS,labels);
+		} else {
+			ResultServiceMetrics.get().record(ResultServiceMetrics.HTTP,System.nanoTime()-(Long)start,labels);
+		}
+	}
+
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		try {
+			context.proceed();
+		} finally {
+			Object start=context.getProperty(START);
+			String[] labels=(String[])context.getProperty(LABELS);
+			if (start!=null && labels!=null) ResultServiceMetrics.get().record(ResultServiceMetrics.HTTP,System.nanoTime()-(Long)start,labels);
+		}
+	}
+
+	//the matched path template, so that every building shares one series
+	private static String route(ContainerRequestContext request) {
+		if (!(request.getUriInfo() instanceof ExtendedUriInfo)) return "unknown";
+		List<UriTemplate> templates=((ExtendedUriInfo)request.getUriInfo()).getMatchedTemplates();
+		if (templates.isEmpty()) return "unmatched";
+		StringBuilder route=new StringBuilder();
+		for (int i=templates.size()-1;i>=0;i--) route.append("/").append(templates.get(i).getTemplate());
+		return route.toString().replaceAll("/+","/");
+	}
+}
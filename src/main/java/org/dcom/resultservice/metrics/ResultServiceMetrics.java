@@ -0,0 +1,153 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package org.dcom.resultservice.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+* The metrics of the service, exported at /metrics in the Prometheus text format. Latencies are recorded into Histograms keyed by family and label set, gauges are read from the components that own them when the metrics are exported.
+* There is one registry per process, shared by the API and the database classes.
+*/
+public class ResultServiceMetrics {
+
+	public static final String HTTP="resultservice_http_request_duration_seconds";
+	public static final String DATABASE="resultservice_database_call_duration_seconds";
+	public static final String QUERY="resultservice_influxdb_query_duration_seconds";
+	public static final String WRITE="resultservice_influxdb_write_duration_seconds";
+	public static final String AUTHORISATION="resultservice_authorisation_duration_seconds";
+
+	private static final ResultServiceMetrics INSTANCE=new ResultServiceMetrics();
+
+	/**
+	* The histograms of one metric, one per set of label values.
+	*/
+	private static class Family {
+		private String help;
+		private ConcurrentHashMap<String,Histogram> histograms=new ConcurrentHashMap<String,Histogram>();
+
+		private Family(String help) {
+			this.help=help;
+		}
+	}
+
+	/**
+	* A value read when the metrics are exported.
+	*/
+	private static class Gauge {
+		private String help;
+		private String type;
+		private Map<String,Supplier<Number>> values=new ConcurrentSkipListMap<String,Supplier<Number>>();
+
+		private Gauge(String help,String type) {
+			this.help=help;
+			this.type=type;
+		}
+	}
+
+	private Map<String,Family> families=new TreeMap<String,Family>();
+	private ConcurrentSkipListMap<String,Gauge> gauges=new ConcurrentSkipListMap<String,Gauge>();
+
+	private ResultServiceMetrics() {
+		families.put(HTTP,new Family("Requests to the API by route, method and status"));
+		families.put(DATABASE,new Family("Calls to the result database by method, including the time to stream results to the client"));
+		families.put(QUERY,new Family("Flux queries sent to InfluxDB by kind"));
+		families.put(WRITE,new Family("Batches written to InfluxDB by the write pipeline or write ahead log replay"));
+		families.put(AUTHORISATION,new Family("Authorisation decisions by kind and outcome"));
+	}
+
+	public static ResultServiceMetrics get() {
+		return INSTANCE;
+	}
+
+	//labels are given as name,value pairs
+	public void record(String family,long nanos,String... labels) {
+		histogram(family,labels).record(nanos);
+	}
+
+	public Histogram histogram(String family,String... labels) {
+		ConcurrentHashMap<String,Histogram> histograms=families.get(family).histograms;
+		String key=labels(labels);
+		Histogram histogram=histograms.get(key);
+		if (histogram==null) histogram=histograms.computeIfAbsent(key,k -> new Histogram());
+		return histogram;
+	}
+
+	//a gauge for a value that goes up and down, registering the same name and labels again replaces the source
+	public void gauge(String name,String help,Supplier<Number> value,String... labels) {
+		gauges.computeIfAbsent(name,k -> new Gauge(help,"gauge")).values.put(labels(labels),value);
+	}
+
+	//a counter kept by another component, such as a cache's hit count
+	public void counter(String name,String help,Supplier<Number> value,String... labels) {
+		gauges.computeIfAbsent(name,k -> new Gauge(help,"counter")).values.put(labels(labels),value);
+	}
+
+	private static String labels(String[] labels) {
+		if (labels.length==0) return "";
+		StringBuilder s=new StringBuilder();
+		for (int i=0;i+1<labels.length;i+=2) {
+			if (s.length()>0) s.append(",");
+			s.append(labels[i]).append("=\"").append(labels[i+1].replace("\\","\\\\").replace("\"","\\\"").replace("\n","\\n")).append("\"");
+		}
+		return s.toString();
+	}
+
+	public String toPrometheus() {
+		StringBuilder out=new StringBuilder(8192);
+		for (Map.Entry<String,Family> entry: families.entrySet()) {
+			String name=entry.getKey();
+			Family family=entry.getValue();
+			out.append("# HELP ").append(name).append(" ").append(family.help).append("\n");
+			out.append("# TYPE ").append(name).append(" histogram\n");
+			for (Map.Entry<String,Histogram> h: new TreeMap<String,Histogram>(family.histograms).entrySet()) {
+				String labels=h.getKey();
+				String prefix=labels.isEmpty() ? "" : labels+",";
+				long[] cumulative=h.getValue().cumulative();
+				for (int i=0;i<Histogram.BOUNDS.length;i++) {
+					out.append(name).append("_bucket{").append(prefix).append("le=\"").append(Histogram.BOUNDS[i]).append("\"} ").append(cumulative[i]).append("\n");
+				}
+				out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative[cumulative.length-1]).append("\n");
+				out.append(name).append("_sum").append(braces(labels)).append(" ").append(h.getValue().getSumSeconds()).append("\n");
+				out.append(name).append("_count").append(braces(labels)).append(" ").append(cumulative[cumulative.length-1]).append("\n");
+			}
+		}
+		for (Map.Entry<String,Gauge> entry: gauges.entrySet()) {
+			Gauge gauge=entry.getValue();
+			out.append("# HELP ").append(entry.getKey()).append(" ").append(gauge.help).append("\n");
+			out.append("# TYPE ").append(entry.getKey()).append(" ").append(gauge.type).append("\n");
+			for (Map.Entry<String,Supplier<Number>> value: gauge.values.entrySet()) {
+				Number n;
+				try {
+					n=value.getValue().get();
+				} catch (RuntimeException e) {
+					continue;
+				}
+				out.append(entry.getKey()).append(braces(value.getKey())).append(" ").append(n).append("\n");
+			}
+		}
+		return out.toString();
+	}
+
+	private static String braces(String labels) {
+		return labels.isEmpty() ? "" : "{"+labels+"}";
+	}
+}
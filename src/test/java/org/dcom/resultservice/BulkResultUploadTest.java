@@ -0,0 +1,175 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+public class BulkResultUploadTest {
+
+	private Map<String,List<ComplianceCheckResultItem>> stored=new LinkedHashMap<String,List<ComplianceCheckResultItem>>();
+	private Map<String,List<String>> storedConditions=new LinkedHashMap<String,List<String>>();
+	private Set<String> failing=new HashSet<String>();
+	private Set<String> busy=new HashSet<String>();
+	private int writes=0;
+
+	private void addResults(String uprn,String checkId,List<ComplianceCheckResultItem> results,List<String> conditions) {
+		writes++;
+		if (failing.contains(uprn)) throw new IllegalStateException("write failed");
+		if (busy.contains(uprn)) throw new ResultServiceBusyException("busy");
+		stored.computeIfAbsent(uprn+"/"+checkId,k -> new ArrayList<ComplianceCheckResultItem>()).addAll(results);
+		storedConditions.computeIfAbsent(uprn+"/"+checkId,k -> new ArrayList<String>()).addAll(conditions);
+	}
+
+	private BulkResultUpload.Report read(String body,int batchSize,int maxBuffered) {
+		return BulkResultUpload.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),batchSize,maxBuffered,this::addResults);
+	}
+
+	private static String item(String reference) {
+		return "{\"reference\":\""+reference+"\",\"time\":\"2022-01-01T12:00:00\",\"result\":\"pass\"}";
+	}
+
+	private static String upload(String uprn,String checkId,String... results) {
+		return "{\"building\":\""+uprn+"\",\"complianceCheckUID\":\""+checkId+"\",\"conditions\":[\"fire\"],\"results\":["+String.join(",",results)+"]}";
+	}
+
+	private static String bulk(String... uploads) {
+		return "{\"uploads\":["+String.join(",",uploads)+"]}";
+	}
+
+	private static BulkResultUpload.Outcome outcome(BulkResultUpload.Report report,String uprn,String checkId) {
+		for (BulkResultUpload.Outcome outcome: report.getOutcomes()) {
+			if (uprn.equals(outcome.getUprn()) && checkId.equals(outcome.getCheckId())) return outcome;
+		}
+		return null;
+	}
+
+	@Test
+	public void storesEveryBuildingAndCheck() {
+		BulkResultUpload.Report report=read(bulk(upload("1","a",item("x"),item("y")),upload("2","a",item("z"))),10,100);
+		assertTrue(report.isSuccess());
+		assertEquals(3,report.getStored());
+		assertEquals(2,stored.get("1/a").size());
+		assertEquals(Arrays.asList("fire"),storedConditions.get("2/a"));
+		assertEquals(2,outcome(report,"1","a").getStored());
+	}
+
+	@Test
+	public void mergesUploadsOfTheSameBuildingAndCheck() {
+		BulkResultUpload.Report report=read(bulk(upload("1","a",item("x")),upload("2","a",item("y")),upload("1","a",item("z"))),10,100);
+		assertEquals(2,report.getOutcomes().size());
+		assertEquals(2,outcome(report,"1","a").getStored());
+		assertEquals(Arrays.asList("x","z"),Arrays.asList(stored.get("1/a").get(0).getReference(),stored.get("1/a").get(1).getReference()));
+	}
+
+	@Test
+	public void refusesAnInvalidUploadWholeAndStoresTheRest() {
+		BulkResultUpload.Report report=read(bulk(upload("1","a",item("x")),upload("2","a",item("y"),"{\"reference\":\"no result\",\"time\":\"2022-01-01T12:00:00\"}"),upload("3","a",item("z"))),10,100);
+		assertFalse(report.isSuccess());
+		assertFalse(report.isMalformed());
+		assertEquals(2,report.getStored());
+		assertNull(stored.get("2/a"));
+		BulkResultUpload.Outcome refused=outcome(report,"2","a");
+		assertFalse(refused.isSuccess());
+		assertEquals(1,refused.getRefused());
+		assertNotNull(refused.getError());
+		assertTrue(outcome(report,"1","a").isSuccess());
+		assertTrue(outcome(report,"3","a").isSuccess());
+	}
+
+	@Test
+	public void refusesAnUploadWithoutABuilding() {
+		BulkResultUpload.Report report=read(bulk("{\"complianceCheckUID\":\"a\",\"results\":["+item("x")+"]}",upload("1","a",item("y"))),10,100);
+		assertFalse(report.isSuccess());
+		assertEquals(1,report.getStored());
+		assertEquals(1,stored.size());
+	}
+
+	@Test
+	public void acceptsTheBuildingAndCheckAfterTheResults() {
+		BulkResultUpload.Report report=read(bulk("{\"results\":["+item("x")+"],\"building\":\"1\",\"complianceCheckUID\":\"a\"}"),10,100);
+		assertTrue(report.isSuccess());
+		assertEquals(1,stored.get("1/a").size());
+	}
+
+	@Test
+	public void reportsADestinationTheDatabaseRefusesAndStoresTheOthers() {
+		failing.add("2");
+		BulkResultUpload.Report report=read(bulk(upload("1","a",item("x")),upload("2","a",item("y"),item("z")),upload("3","a",item("w"))),1,100);
+		assertFalse(report.isSuccess());
+		assertFalse(report.isBusy());
+		assertEquals(2,report.getStored());
+		BulkResultUpload.Outcome refused=outcome(report,"2","a");
+		assertEquals(0,refused.getStored());
+		assertEquals(2,refused.getRefused());
+		assertEquals(1,stored.get("1/a").size());
+		assertEquals(1,stored.get("3/a").size());
+	}
+
+	@Test
+	public void takesNoMoreResultsForADestinationOnceItFails() {
+		failing.add("2");
+		BulkResultUpload.Report report=read(bulk(upload("2","a",item("x")),upload("2","a",item("y"))),1,100);
+		assertEquals(2,outcome(report,"2","a").getRefused());
+		assertEquals(1,writes);
+	}
+
+	@Test
+	public void isBusyOnlyIfNothingWasStored() {
+		busy.add("1");
+		busy.add("2");
+		BulkResultUpload.Report report=read(bulk(upload("1","a",item("x")),upload("2","a",item("y"))),10,100);
+		assertTrue(report.isBusy());
+		busy.remove("2");
+		report=read(bulk(upload("1","a",item("x")),upload("2","a",item("y"))),10,100);
+		assertFalse(report.isBusy());
+		assertFalse(report.isSuccess());
+	}
+
+	@Test
+	public void writesGroupsInBatches() {
+		List<List<ComplianceCheckResultItem>> batches=new ArrayList<List<ComplianceCheckResultItem>>();
+		String body=bulk(upload("1","a",item("v"),item("w"),item("x"),item("y"),item("z")));
+		BulkResultUpload.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),2,100,(uprn,checkId,results,conditions) -> batches.add(results));
+		assertEquals(Arrays.asList(2,2,1),Arrays.asList(batches.get(0).size(),batches.get(1).size(),batches.get(2).size()));
+	}
+
+	@Test
+	public void reportsWhatWasStoredBeforeAMalformedBody() {
+		BulkResultUpload.Report report=read("{\"uploads\":["+upload("1","a",item("x"))+","+upload("2","a",item("y"))+","+upload("3","a",item("z"))+" "+upload("4","a",item("w"))+"]}",10,1);
+		assertTrue(report.isMalformed());
+		assertFalse(report.isSuccess());
+		assertEquals(report.getStored(),stored.size());
+		assertTrue(report.toJSON().contains("\"error\":"));
+	}
+}
@@ -0,0 +1,147 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import com.owlike.genson.stream.JsonStreamException;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class JSONResultUploadTest {
+
+	private static final String FULL="{\"reference\":\"doc\",\"time\":\"2022-01-01T12:00:30\",\"result\":\"pass\",\"attributation\":\"inspector\",\"reasons\":[\"a\",\"b\"],\"supportingFileData\":[\"data\"],\"supportingFileContentType\":[\"text/plain\"]}";
+	private static final String EMPTY_LISTS="{\"reference\":\"other\",\"time\":\"2022-02-01T08:15:00\",\"result\":\"fail\",\"attributation\":\"\",\"reasons\":[],\"supportingFileData\":[],\"supportingFileContentType\":[]}";
+
+	private List<List<ComplianceCheckResultItem>> batches=new ArrayList<List<ComplianceCheckResultItem>>();
+	private List<List<String>> conditions=new ArrayList<List<String>>();
+
+	private void read(String body,int batchSize) {
+		JSONResultUpload.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),batchSize,(results,batchConditions) -> {
+			batches.add(results);
+			conditions.add(batchConditions);
+		});
+	}
+
+	private List<ComplianceCheckResultItem> all() {
+		List<ComplianceCheckResultItem> all=new ArrayList<ComplianceCheckResultItem>();
+		for (List<ComplianceCheckResultItem> batch: batches) all.addAll(batch);
+		return all;
+	}
+
+	private static String upload(String... results) {
+		return "{\"conditions\":[\"fire\"],\"results\":["+String.join(",",results)+"]}";
+	}
+
+	private static String item(String reference,String time) {
+		return "{\"reference\":\""+reference+"\",\"time\":\""+time+"\",\"result\":\"pass\"}";
+	}
+
+	private static void assertSameItem(ComplianceCheckResultItem expected,ComplianceCheckResultItem actual) {
+		assertEquals(expected.getReference(),actual.getReference());
+		assertEquals(expected.getTime(),actual.getTime());
+		assertEquals(expected.getResult(),actual.getResult());
+		assertEquals(expected.getAttributation(),actual.getAttributation());
+		assertEquals(expected.getReasons(),actual.getReasons());
+		assertEquals(expected.getSupportingFileData(),actual.getSupportingFileData());
+		assertEquals(expected.getSupportingFileContentType(),actual.getSupportingFileContentType());
+	}
+
+	//the streamed parse must give what the existing deserialisation gives for the same body
+	private void assertReadsAsCollection(String body) {
+		List<ComplianceCheckResultItem> expected=ComplianceCheckResultItem.fromJSONCollection(body);
+		read(body,2);
+		assertEquals(expected.size(),all().size());
+		for (int i=0;i<expected.size();i++) assertSameItem(expected.get(i),all().get(i));
+	}
+
+	private void assertRefused(String body) {
+		try {
+			read(body,1);
+			fail("Expected the upload to be refused");
+		} catch (JsonStreamException e) {
+			assertTrue(batches.isEmpty());
+		}
+	}
+
+	@Test
+	public void readsAResultAsFromJSONCollectionDoes() {
+		assertReadsAsCollection(upload(FULL));
+	}
+
+	@Test
+	public void readsManyResultsAsFromJSONCollectionDoes() {
+		assertReadsAsCollection(upload(FULL,EMPTY_LISTS,FULL,EMPTY_LISTS,FULL));
+	}
+
+	@Test
+	public void readsResultsBeforeConditionsAsFromJSONCollectionDoes() {
+		assertReadsAsCollection("{\"results\":["+EMPTY_LISTS+","+FULL+"],\"conditions\":[\"fire\"]}");
+	}
+
+	@Test
+	public void passesResultsInBatchesWithTheConditionsFirst() {
+		read(upload(item("a","2022-01-01T12:00:00"),item("b","2022-01-01T12:00:01"),item("c","2022-01-01T12:00:02")),2);
+		assertEquals(2,batches.size());
+		assertEquals(2,batches.get(0).size());
+		assertEquals(Arrays.asList("fire"),conditions.get(0));
+		assertTrue(conditions.get(1).isEmpty());
+		assertEquals("c",batches.get(1).get(0).getReference());
+	}
+
+	@Test
+	public void passesConditionsOfAnUploadWithoutResults() {
+		read("{\"conditions\":[\"fire\"],\"results\":[]}",10);
+		assertEquals(1,batches.size());
+		assertTrue(batches.get(0).isEmpty());
+		assertEquals(Arrays.asList("fire"),conditions.get(0));
+	}
+
+	@Test
+	public void skipsKeysThatAreNotPartOfAResult() {
+		read(upload("{\"reference\":\"doc\",\"extra\":{\"nested\":[1,2]},\"time\":\"2022-01-01T12:00:00\",\"result\":\"pass\"}"),10);
+		assertEquals("doc",all().get(0).getReference());
+	}
+
+	@Test
+	public void storesNothingFromMalformedJSON() {
+		assertRefused("{\"conditions\":[\"fire\"],\"results\":["+item("a","2022-01-01T12:00:00")+","+item("b","2022-01-01T12:00:01")+" "+item("c","2022-01-01T12:00:02")+"]}");
+	}
+
+	@Test
+	public void storesNothingFromATruncatedUpload() {
+		assertRefused("{\"conditions\":[\"fire\"],\"results\":["+item("a","2022-01-01T12:00:00")+","+item("b","2022-01-01T12:00:01")+",{\"reference\":\"c\",\"ti");
+	}
+
+	@Test
+	public void storesNothingIfAResultIsIncomplete() {
+		assertRefused(upload(item("a","2022-01-01T12:00:00"),"{\"reference\":\"b\",\"time\":\"2022-01-01T12:00:00\"}"));
+	}
+
+	@Test
+	public void storesNothingIfATimeIsInvalid() {
+		assertRefused(upload(item("a","2022-01-01T12:00:00"),item("b","yesterday")));
+	}
+}
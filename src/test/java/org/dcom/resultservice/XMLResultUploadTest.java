@@ -0,0 +1,143 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Test;
+
+public class XMLResultUploadTest {
+
+	private List<List<ComplianceCheckResultItem>> batches=new ArrayList<List<ComplianceCheckResultItem>>();
+	private List<List<String>> conditions=new ArrayList<List<String>>();
+
+	private void read(String body,int batchSize) throws XMLStreamException {
+		XMLResultUpload.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),batchSize,(results,batchConditions) -> {
+			batches.add(results);
+			conditions.add(batchConditions);
+		});
+	}
+
+	private List<ComplianceCheckResultItem> all() {
+		List<ComplianceCheckResultItem> all=new ArrayList<ComplianceCheckResultItem>();
+		for (List<ComplianceCheckResultItem> batch: batches) all.addAll(batch);
+		return all;
+	}
+
+	private static String item(String reference,String time,String result) {
+		return "<ComplianceCheckResultItem><reference>"+reference+"</reference><time>"+time+"</time><result>"+result+"</result></ComplianceCheckResultItem>";
+	}
+
+	private static void assertSameItem(ComplianceCheckResultItem expected,ComplianceCheckResultItem actual) {
+		assertEquals(expected.getReference(),actual.getReference());
+		assertEquals(expected.getTime(),actual.getTime());
+		assertEquals(expected.getResult(),actual.getResult());
+		assertEquals(expected.getAttributation(),actual.getAttributation());
+		assertEquals(expected.getReasons(),actual.getReasons());
+		assertEquals(expected.getSupportingFileData(),actual.getSupportingFileData());
+		assertEquals(expected.getSupportingFileContentType(),actual.getSupportingFileContentType());
+	}
+
+	private void assertRefused(String body) {
+		try {
+			read(body,1);
+			fail("Expected the upload to be refused");
+		} catch (XMLStreamException e) {
+			assertTrue(batches.isEmpty());
+		}
+	}
+
+	@Test
+	public void readsEveryField() throws Exception {
+		read("<ComplianceCheckResults><conditions>fire</conditions><ComplianceCheckResultItem><reference>doc</reference><time>2022-01-01T12:00:00</time><result>pass</result><attributation>inspector</attributation><reasons>a</reasons><reasons>b</reasons><supportingFileData>data</supportingFileData><supportingFileContentType>text/plain</supportingFileContentType></ComplianceCheckResultItem></ComplianceCheckResults>",10);
+		assertEquals(1,batches.size());
+		assertEquals(Arrays.asList("fire"),conditions.get(0));
+		assertSameItem(new ComplianceCheckResultItem("doc",LocalDateTime.of(2022,1,1,12,0),Arrays.asList("a","b"),"inspector","pass",Arrays.asList("data"),Arrays.asList("text/plain")),batches.get(0).get(0));
+	}
+
+	@Test
+	public void readsResultsAsComplianceCheckResultItemWritesThem() throws Exception {
+		List<ComplianceCheckResultItem> items=Arrays.asList(
+			new ComplianceCheckResultItem("doc",LocalDateTime.of(2022,1,1,12,0,30),Arrays.asList("a","b"),"inspector","pass",Arrays.asList("data"),Arrays.asList("text/plain")),
+			new ComplianceCheckResultItem("other",LocalDateTime.of(2022,2,1,8,15),new ArrayList<String>(),"","fail",new ArrayList<String>(),new ArrayList<String>()));
+		StringBuilder body=new StringBuilder("<ComplianceCheckResults>");
+		for (ComplianceCheckResultItem item: items) body.append(item.toXML());
+		body.append("</ComplianceCheckResults>");
+		read(body.toString(),10);
+		assertEquals(items.size(),all().size());
+		for (int i=0;i<items.size();i++) assertSameItem(items.get(i),all().get(i));
+	}
+
+	@Test
+	public void passesResultsInBatchesWithTheConditionsFirst() throws Exception {
+		StringBuilder body=new StringBuilder("<ComplianceCheckResults>");
+		for (int i=0;i<5;i++) body.append(item("doc"+i,"2022-01-01T12:00:0"+i,"pass"));
+		body.append("<conditions>fire</conditions></ComplianceCheckResults>");
+		read(body.toString(),2);
+		assertEquals(3,batches.size());
+		assertEquals(Arrays.asList(2,2,1),Arrays.asList(batches.get(0).size(),batches.get(1).size(),batches.get(2).size()));
+		assertEquals(Arrays.asList("fire"),conditions.get(0));
+		assertTrue(conditions.get(1).isEmpty());
+		assertEquals("doc4",batches.get(2).get(0).getReference());
+	}
+
+	@Test
+	public void passesConditionsOfAnUploadWithoutResults() throws Exception {
+		read("<ComplianceCheckResults><conditions>fire</conditions></ComplianceCheckResults>",10);
+		assertEquals(1,batches.size());
+		assertTrue(batches.get(0).isEmpty());
+		assertEquals(Arrays.asList("fire"),conditions.get(0));
+	}
+
+	@Test
+	public void skipsElementsThatAreNotPartOfAResult() throws Exception {
+		read("<ComplianceCheckResults><ComplianceCheckResultItem><reference>doc</reference><extra><nested>x</nested></extra><time>2022-01-01T12:00:00</time><result>pass</result></ComplianceCheckResultItem></ComplianceCheckResults>",10);
+		assertEquals("doc",all().get(0).getReference());
+		assertEquals("pass",all().get(0).getResult());
+	}
+
+	@Test
+	public void storesNothingFromAMalformedDocument() {
+		assertRefused("<ComplianceCheckResults>"+item("a","2022-01-01T12:00:00","pass")+item("b","2022-01-01T12:00:01","pass")+"<ComplianceCheckResultItem><reference>c</ComplianceCheckResultItem></ComplianceCheckResults>");
+	}
+
+	@Test
+	public void storesNothingFromATruncatedDocument() {
+		assertRefused("<ComplianceCheckResults>"+item("a","2022-01-01T12:00:00","pass")+item("b","2022-01-01T12:00:01","pass")+"<ComplianceCheckResultItem><reference>c</refer");
+	}
+
+	@Test
+	public void storesNothingIfAResultIsIncomplete() {
+		assertRefused("<ComplianceCheckResults>"+item("a","2022-01-01T12:00:00","pass")+"<ComplianceCheckResultItem><reference>b</reference><time>2022-01-01T12:00:00</time></ComplianceCheckResultItem></ComplianceCheckResults>");
+	}
+
+	@Test
+	public void storesNothingIfATimeIsInvalid() {
+		assertRefused("<ComplianceCheckResults>"+item("a","2022-01-01T12:00:00","pass")+item("b","yesterday","pass")+"</ComplianceCheckResults>");
+	}
+}
@@ -0,0 +1,133 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InfluxDBWriteAheadLogTest {
+
+	@Rule
+	public TemporaryFolder folder=new TemporaryFolder();
+
+	//a write API that keeps the lines written to it, or refuses every write when written is null
+	private static WriteApiBlocking writeApi(List<String> written) {
+		return (WriteApiBlocking)Proxy.newProxyInstance(WriteApiBlocking.class.getClassLoader(),new Class<?>[]{WriteApiBlocking.class},(proxy,method,args) -> {
+			if (!method.getName().equals("writeRecords")) return null;
+			if (written==null) throw new IllegalStateException("InfluxDB is unavailable");
+			@SuppressWarnings("unchecked")
+			List<String> lines=(List<String>)args[3];
+			written.addAll(lines);
+			return null;
+		});
+	}
+
+	private static Point point(int i) {
+		return Point.measurement("reference"+i).addField("result","pass").time(Instant.ofEpochSecond(i),WritePrecision.NS);
+	}
+
+	//appends one point per upload while InfluxDB is unavailable, so everything stays in the log
+	private List<Path> appendUnreplayed(long segmentBytes,int uploads) throws IOException {
+		InfluxDBWriteAheadLog log=new InfluxDBWriteAheadLog(folder.getRoot().getPath(),segmentBytes,1024*1024,writeApi(null),"DCOM",b -> {},1000,60000);
+		for (int i=0;i<uploads;i++) log.append("bucket",Collections.singletonList(point(i)));
+		log.close();
+		return segments();
+	}
+
+	private List<String> replay(int expected) throws Exception {
+		List<String> written=Collections.synchronizedList(new ArrayList<String>());
+		InfluxDBWriteAheadLog log=new InfluxDBWriteAheadLog(folder.getRoot().getPath(),1024*1024,1024*1024,writeApi(written),"DCOM",b -> {},1000,10);
+		try {
+			long deadline=System.currentTimeMillis()+10000;
+			while (log.getRecordsReplayed()<expected && System.currentTimeMillis()<deadline) Thread.sleep(10);
+			//a little longer, so that records beyond those expected would show up
+			Thread.sleep(100);
+		} finally {
+			log.close();
+		}
+		return new ArrayList<String>(written);
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> result=new ArrayList<Path>();
+		try (DirectoryStream<Path> stream=Files.newDirectoryStream(folder.getRoot().toPath(),"segment-*.wal")) {
+			for (Path p: stream) result.add(p);
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	private static List<String> lines(int count) {
+		List<String> lines=new ArrayList<String>();
+		for (int i=0;i<count;i++) lines.add(point(i).toLineProtocol());
+		return lines;
+	}
+
+	@Test
+	public void replaysEveryRecordAfterARestart() throws Exception {
+		appendUnreplayed(1024*1024,3);
+		assertEquals(lines(3),replay(3));
+	}
+
+	@Test
+	public void ignoresARecordTornAtTheEnd() throws Exception {
+		List<Path> written=appendUnreplayed(1024*1024,3);
+		Path segment=written.get(written.size()-1);
+		try (FileChannel channel=FileChannel.open(segment,StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size()-3);
+		}
+		assertEquals(lines(2),replay(2));
+	}
+
+	@Test
+	public void ignoresACorruptRecordAtTheEnd() throws Exception {
+		List<Path> written=appendUnreplayed(1024*1024,3);
+		Path segment=written.get(written.size()-1);
+		byte[] bytes=Files.readAllBytes(segment);
+		bytes[bytes.length-1]^=0xff;
+		Files.write(segment,bytes);
+		assertEquals(lines(2),replay(2));
+	}
+
+	@Test
+	public void rollsOverToANewSegmentOnceFull() throws Exception {
+		//every record is larger than a segment, so each is given a segment of its own
+		List<Path> written=appendUnreplayed(1,3);
+		assertTrue("expected a segment per record, found "+written.size(),written.size()>=3);
+		assertEquals(lines(3),replay(3));
+		for (Path p: written) assertTrue(p+" should be deleted once replayed",Files.notExists(p));
+	}
+}
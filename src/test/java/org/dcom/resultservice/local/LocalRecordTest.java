@@ -0,0 +1,87 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class LocalRecordTest {
+
+	private static LocalRecord roundTrip(LocalRecord record) {
+		return LocalRecord.fromBytes(record.toBytes());
+	}
+
+	@Test
+	public void keepsEveryFieldThroughBytes() {
+		LocalDateTime time=LocalDateTime.of(2022,3,4,5,6,7,123456789);
+		LocalRecord record=roundTrip(new LocalRecord("check","doc",time,"pass","inspector",Arrays.asList("a","b"),Arrays.asList("data"),Arrays.asList("text/plain")));
+		assertEquals("check",record.getCheckId());
+		assertEquals("doc",record.getReference());
+		assertEquals(time,record.getTime());
+		assertEquals("pass",record.getResult());
+		ComplianceCheckResultItem item=record.toResultItem(1);
+		assertEquals("inspector",item.getAttributation());
+		assertEquals(Arrays.asList("a","b"),item.getReasons());
+		assertEquals(Arrays.asList("data"),item.getSupportingFileData());
+		assertEquals(Arrays.asList("text/plain"),item.getSupportingFileContentType());
+	}
+
+	@Test
+	public void keepsMissingValuesMissing() {
+		LocalRecord record=roundTrip(new LocalRecord("check","doc",LocalDateTime.of(1960,1,1,0,0),null,null,null,null,null));
+		assertNull(record.getResult());
+		assertEquals(LocalDateTime.of(1960,1,1,0,0),record.getTime());
+		ComplianceCheckResultItem item=record.toResultItem(1);
+		assertEquals("",item.getResult());
+		assertEquals("",item.getAttributation());
+		assertEquals(0,item.getReasons().size());
+	}
+
+	@Test
+	public void holdsSupportingFilesLargerThanWriteUTFAllows() {
+		char[] chars=new char[100000];
+		Arrays.fill(chars,'x');
+		String data=new String(chars);
+		LocalRecord record=roundTrip(new LocalRecord("check","doc",LocalDateTime.of(2022,1,1,0,0),"pass",null,null,Arrays.asList(data),null));
+		assertEquals(data,record.toResultItem(1).getSupportingFileData().get(0));
+	}
+
+	@Test
+	public void keepsConditionsAsAResult() {
+		List<String> conditions=Arrays.asList("fire","access");
+		LocalRecord record=roundTrip(LocalRecord.conditions("check",conditions,LocalDateTime.of(2022,1,1,0,0)));
+		assertEquals("conditions",record.getReference());
+		assertEquals(conditions,record.toResultItem(1).getReasons());
+	}
+
+	@Test
+	public void hidesDetailAboveLevelOne() {
+		LocalRecord record=new LocalRecord("check","doc",LocalDateTime.of(2022,1,1,0,0),"fail","inspector",Arrays.asList("reason"),Arrays.asList("data"),Arrays.asList("text/plain"));
+		assertEquals("",record.toResultItem(2).getAttributation());
+		assertEquals(Arrays.asList("reason"),record.toResultItem(2).getReasons());
+		assertEquals(0,record.toResultItem(3).getReasons().size());
+		assertEquals(0,record.toResultItem(3).getSupportingFileData().size());
+		assertEquals("fail",record.toResultItem(4).getResult());
+	}
+}
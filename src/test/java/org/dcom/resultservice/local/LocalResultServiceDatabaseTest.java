@@ -0,0 +1,120 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.local;
+
+import static org.junit.Assert.assertEquals;
+import org.dcom.core.services.ComplianceCheckResultItem;
+import org.dcom.resultservice.ResultCursor;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalResultServiceDatabaseTest {
+
+	@Rule
+	public TemporaryFolder folder=new TemporaryFolder();
+
+	private LocalResultServiceDatabase database;
+
+	@Before
+	public void open() {
+		database=new LocalResultServiceDatabase(folder.getRoot().getAbsolutePath(),4096);
+	}
+
+	@After
+	public void close() {
+		database.close();
+	}
+
+	private static ComplianceCheckResultItem result(String reference,int hour,String value) {
+		return new ComplianceCheckResultItem(reference,LocalDateTime.of(2022,1,1,hour,0),new ArrayList<String>(),"",value,new ArrayList<String>(),new ArrayList<String>());
+	}
+
+	private static List<String> describe(List<ComplianceCheckResultItem> items) {
+		List<String> described=new ArrayList<String>();
+		for (ComplianceCheckResultItem item: items) described.add(item.getReference()+"@"+item.getTime().getHour()+"="+item.getResult());
+		return described;
+	}
+
+	private void addExample() {
+		database.addResults("100","fire",Arrays.asList(result("doc",1,"fail"),result("doc",3,"pass")),null);
+		database.addResults("100","access",Arrays.asList(result("doc",2,"pass"),result("plan",4,"fail")),null);
+		database.addResults("200","fire",Arrays.asList(result("doc",5,"pass")),null);
+	}
+
+	@Test
+	public void readsEveryCheckOfTheBuildingWithoutACheck() {
+		addExample();
+		assertEquals(Arrays.asList("plan@4=fail","doc@3=pass","doc@2=pass","doc@1=fail"),describe(database.getResults("100",null,null,null,null,null,3,null,0)));
+	}
+
+	@Test
+	public void pagesAndFiltersAcrossEveryCheck() {
+		addExample();
+		List<ComplianceCheckResultItem> page=database.getResults("100",null,null,null,null,null,3,null,2);
+		assertEquals(Arrays.asList("plan@4=fail","doc@3=pass"),describe(page));
+		assertEquals(Arrays.asList("doc@2=pass","doc@1=fail"),describe(database.getResults("100",null,null,null,null,null,3,ResultCursor.after(page.get(1)),2)));
+		assertEquals(Arrays.asList("doc@3=pass","doc@2=pass","doc@1=fail"),describe(database.getResults("100",null,null,null,"doc",null,3,null,0)));
+	}
+
+	@Test
+	public void givesTheLatestOfEachDocumentOfEachCheckAtLevelFour() {
+		addExample();
+		assertEquals(Arrays.asList("plan@4=fail","doc@3=pass","doc@2=pass"),describe(database.getResults("100",null,null,null,null,null,4,null,0)));
+	}
+
+	@Test
+	public void readsNothingForABuildingWithoutResults() {
+		assertEquals(0,database.getResults("300",null,null,null,null,null,3,null,0).size());
+	}
+
+	@Test
+	public void readsOfAnUnknownBuildingLeaveNothingBehind() {
+		database.getResults("300","fire",null,null,null,null,3,null,0);
+		database.summariseResults("300","fire",null,null,Duration.ofHours(1));
+		assertEquals(0,database.getComplianceChecks("300").size());
+		assertEquals(0,folder.getRoot().list().length);
+	}
+
+	@Test
+	public void movesResultsToANewUPRN() {
+		addExample();
+		database.getResults("100",null,null,null,null,null,3,null,0);
+		database.updateUPRN("100","400");
+		assertEquals(0,database.getResults("100",null,null,null,null,null,3,null,0).size());
+		assertEquals(4,database.getResults("400",null,null,null,null,null,3,null,0).size());
+		assertEquals(3,database.getComplianceChecks("400").size());
+	}
+
+	@Test
+	public void mergesResultsIntoAUPRNThatHasItsOwn() {
+		addExample();
+		database.getResults("200","fire",null,null,null,null,3,null,0);
+		database.updateUPRN("100","200");
+		assertEquals(Arrays.asList("doc@5=pass","plan@4=fail","doc@3=pass","doc@2=pass","doc@1=fail"),describe(database.getResults("200",null,null,null,null,null,3,null,0)));
+		assertEquals(0,database.getComplianceChecks("100").size());
+	}
+}
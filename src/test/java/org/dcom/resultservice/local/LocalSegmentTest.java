@@ -0,0 +1,110 @@
+/*
+Copyright (C) 2022 Cardiff University
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package org.dcom.resultservice.local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalSegmentTest {
+
+	@Rule
+	public TemporaryFolder folder=new TemporaryFolder();
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static List<String> reopen(File file) throws Exception {
+		List<String> records=new ArrayList<String>();
+		LocalSegment.open(file,(offset,payload) -> records.add(new String(payload,StandardCharsets.UTF_8)));
+		return records;
+	}
+
+	@Test
+	public void findsEveryRecordAgainWhenOpened() throws Exception {
+		File file=new File(folder.getRoot(),"segment");
+		LocalSegment segment=LocalSegment.create(file,1024);
+		int first=segment.append(bytes("first"));
+		int second=segment.append(bytes("second"));
+		segment.force();
+		assertEquals(0,first);
+		assertEquals(LocalSegment.recordSize(bytes("first")),second);
+		assertArrayEquals(bytes("second"),segment.read(second));
+
+		List<Integer> offsets=new ArrayList<Integer>();
+		List<String> records=new ArrayList<String>();
+		LocalSegment.open(file,(offset,payload) -> {
+			offsets.add(offset);
+			records.add(new String(payload,StandardCharsets.UTF_8));
+		});
+		assertEquals(List.of(first,second),offsets);
+		assertEquals(List.of("first","second"),records);
+	}
+
+	@Test
+	public void refusesARecordThatDoesNotFit() throws Exception {
+		LocalSegment segment=LocalSegment.create(new File(folder.getRoot(),"segment"),32);
+		assertEquals(0,segment.append(new byte[24]));
+		assertEquals(-1,segment.append(new byte[1]));
+	}
+
+	@Test
+	public void dropsACorruptRecordAtTheEndAndAppendsOverIt() throws Exception {
+		File file=new File(folder.getRoot(),"segment");
+		LocalSegment segment=LocalSegment.create(file,1024);
+		segment.append(bytes("kept"));
+		int torn=segment.append(bytes("torn"));
+		segment.force();
+		//a crash part way through writing the payload leaves a checksum that does not match
+		try (RandomAccessFile raf=new RandomAccessFile(file,"rw")) {
+			raf.seek(torn+LocalSegment.recordSize(new byte[0]));
+			raf.write('x');
+		}
+
+		List<String> records=new ArrayList<String>();
+		LocalSegment reopened=LocalSegment.open(file,(offset,payload) -> records.add(new String(payload,StandardCharsets.UTF_8)));
+		assertEquals(List.of("kept"),records);
+		assertEquals(torn,reopened.append(bytes("after")));
+		reopened.force();
+		assertEquals(List.of("kept","after"),reopen(file));
+	}
+
+	@Test
+	public void ignoresALengthThatRunsPastTheEnd() throws Exception {
+		File file=new File(folder.getRoot(),"segment");
+		LocalSegment segment=LocalSegment.create(file,64);
+		int torn=segment.append(bytes("kept"))+LocalSegment.recordSize(bytes("kept"));
+		segment.force();
+		try (RandomAccessFile raf=new RandomAccessFile(file,"rw")) {
+			raf.seek(torn);
+			raf.writeInt(1000);
+		}
+		assertEquals(List.of("kept"),reopen(file));
+		//the torn header was cleared, so opening again finds the same records
+		assertEquals(List.of("kept"),reopen(file));
+	}
+}